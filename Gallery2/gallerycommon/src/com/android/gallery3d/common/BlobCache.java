@@ -51,13 +51,33 @@
 // [16] Length of this blob (not including header)
 // [20] Blob
 //
-// Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// Below are the interface for BlobCache. Lookups can run concurrently from
+// multiple threads: they only read the mapped index and use positional reads
+// on the data files. Inserts, copy-overs and region flips are serialized by a
+// single writer lock, so callers do not need any external synchronization.
+//
+// The data files can also be read through read-only memory mappings with
+// lookup(MappedLookupRequest). That returns a view of the blob inside the
+// mapping instead of a copy. The region holding the blob is pinned until the
+// request is released, and a region flip waits for the pins on the region it
+// is about to truncate.
+//
+// A flip loses the blobs of the truncated region which were not looked up
+// (and so copied over) since the previous flip. To keep the frequently used
+// ones, the lookups of each slot are counted in memory, and compact() copies
+// the hot blobs of the inactive region into the active region, a few at a
+// time, once the active region is filling up.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
+// public void insert(long[] keys, byte[][] data, int count) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
+// public boolean lookup(MappedLookupRequest req) throws IOException;
+// public void release(MappedLookupRequest req);
+// public int locate(MappedLookupRequest[] reqs, int count);
+// public boolean needsCompaction();
+// public int compact(int maxBytes) throws IOException;
 // public void close();
 // public void syncIndex();
 // public void syncAll();
@@ -71,9 +91,12 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.Adler32;
 
 public class BlobCache implements Closeable {
@@ -102,6 +125,17 @@ public class BlobCache implements Closeable {
     private static final int BH_LENGTH = 16;
     private static final int BLOB_HEADER_SIZE = 20;
 
+    // A blob of the inactive region is hot, and copied by compact(), if it
+    // has been found by this many lookups.
+    private static final int HOT_ACCESS_COUNT = 2;
+    // compact() starts when the active region has used 3/4 of its bytes or
+    // entries, and uses at most 1/COMPACT_LIMIT_DIVISOR of its bytes.
+    private static final int COMPACT_LIMIT_DIVISOR = 8;
+    // Mapped lookups map the data files this many bytes at a time (or the
+    // blob, if it is larger), which keeps a large cache from using up the
+    // address space.
+    private static final int MAP_WINDOW_BYTES = 1024 * 1024;
+
     private RandomAccessFile mIndexFile;
     private RandomAccessFile mDataFile0;
     private RandomAccessFile mDataFile1;
@@ -114,15 +148,43 @@ public class BlobCache implements Closeable {
     private int mActiveEntries;
     private int mActiveBytes;
     private int mVersion;
+    private int mFlipCount;
 
     private RandomAccessFile mActiveDataFile;
     private RandomAccessFile mInactiveDataFile;
+    private FileChannel mActiveDataChannel;
+    private FileChannel mInactiveDataChannel;
     private int mActiveHashStart;
     private int mInactiveHashStart;
     private byte[] mIndexHeader = new byte[INDEX_HEADER_SIZE];
     private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
     private Adler32 mAdler32 = new Adler32();
 
+    // Readers share the read lock, so index probes and blob reads from
+    // several threads proceed in parallel. Anything that changes the index
+    // or appends to a data file holds the write lock.
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    // Read-only mappings of a window of each data file, indexed by region.
+    // mDataMapStarts is where each window starts in its file. A window is
+    // replaced when a blob lies outside of it, and dropped when the region
+    // is truncated. mPins counts the outstanding mapped lookups on each
+    // region. All are guarded by mDataMaps.
+    private final MappedByteBuffer[] mDataMaps = new MappedByteBuffer[2];
+    private final int[] mDataMapStarts = new int[2];
+    private final int[] mPins = new int[2];
+
+    // The number of lookups which found each slot since the slot was filled,
+    // indexed by region and slot. They are not saved in the index, and are
+    // approximate: readers update them without a lock.
+    private int[][] mAccessCounts;
+
+    // The flip count when the current compaction started, the next slot of
+    // the inactive region it looks at, and the bytes it has copied.
+    private int mCompactFlip = -1;
+    private int mCompactSlot;
+    private int mCompactBytes;
+
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
     // The ".0" file and the ".1" file each stores data for a region. Each of
@@ -173,8 +235,13 @@ public class BlobCache implements Closeable {
     // called after this is called.
     @Override
     public void close() {
-        syncAll();
-        closeAll();
+        mLock.writeLock().lock();
+        try {
+            syncAll();
+            closeAll();
+        } finally {
+            mLock.writeLock().unlock();
+        }
     }
 
     private void closeAll() {
@@ -272,6 +339,7 @@ public class BlobCache implements Closeable {
                     0, mIndexFile.length());
             mIndexBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
+            mAccessCounts = new int[2][mMaxEntries];
             setActiveVariables();
             return true;
         } catch (IOException ex) {
@@ -283,6 +351,8 @@ public class BlobCache implements Closeable {
     private void setActiveVariables() throws IOException {
         mActiveDataFile = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
         mInactiveDataFile = (mActiveRegion == 1) ? mDataFile0 : mDataFile1;
+        mActiveDataChannel = mActiveDataFile.getChannel();
+        mInactiveDataChannel = mInactiveDataFile.getChannel();
         mActiveDataFile.setLength(mActiveBytes);
         mActiveDataFile.seek(mActiveBytes);
 
@@ -324,7 +394,9 @@ public class BlobCache implements Closeable {
 
     // Flip the active region and the inactive region.
     private void flipRegion() throws IOException {
+        mFlipCount++;
         mActiveRegion = 1 - mActiveRegion;
+        unmapRegion(mActiveRegion);
         mActiveEntries = 0;
         mActiveBytes = DATA_HEADER_SIZE;
 
@@ -335,6 +407,7 @@ public class BlobCache implements Closeable {
 
         setActiveVariables();
         clearHash(mActiveHashStart);
+        Arrays.fill(mAccessCounts[mActiveRegion], 0);
         syncIndex();
     }
 
@@ -363,8 +436,43 @@ public class BlobCache implements Closeable {
             throw new RuntimeException("blob is too large!");
         }
 
-        if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
-                || mActiveEntries * 2 >= mMaxEntries) {
+        mLock.writeLock().lock();
+        try {
+            insertLocked(key, data);
+            updateIndexHeader();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    // Inserts the first count (keys[i], data[i]) pairs into the cache. The
+    // writer lock is taken once for the whole batch, and the index is synced
+    // once at the end.
+    public void insert(long[] keys, byte[][] data, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (DATA_HEADER_SIZE + BLOB_HEADER_SIZE + data[i].length
+                    > mMaxBytes) {
+                throw new RuntimeException("blob is too large!");
+            }
+        }
+
+        mLock.writeLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                insertLocked(keys[i], data[i]);
+            }
+            updateIndexHeader();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        syncIndex();
+    }
+
+    // The caller must hold the write lock, and update the index header
+    // afterwards.
+    private void insertLocked(long key, byte[] data) throws IOException {
+        if (!hasSpaceFor(data.length)) {
             flipRegion();
         }
 
@@ -376,7 +484,13 @@ public class BlobCache implements Closeable {
         }
 
         insertInternal(key, data, data.length);
-        updateIndexHeader();
+    }
+
+    // Returns true if a blob of the given length can be appended to the
+    // active region without flipping.
+    private boolean hasSpaceFor(int length) {
+        return mActiveBytes + BLOB_HEADER_SIZE + length <= mMaxBytes
+                && mActiveEntries * 2 < mMaxEntries;
     }
 
     // Appends the data to the active file. It also updates the hash entry.
@@ -384,15 +498,34 @@ public class BlobCache implements Closeable {
     // pointed by mSlotOffset.
     private void insertInternal(long key, byte[] data, int length)
             throws IOException {
+        writeBlobHeader(key, checkSum(data, 0, length), length);
+        mActiveDataFile.write(data, 0, length);
+        updateSlot(key, length);
+    }
+
+    // The same as above, but the data is the remaining bytes of a buffer.
+    private void insertInternal(long key, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        writeBlobHeader(key, checkSum(data), length);
+        // The channel shares its position with mActiveDataFile.
+        ByteBuffer src = data.duplicate();
+        while (src.hasRemaining()) {
+            mActiveDataChannel.write(src);
+        }
+        updateSlot(key, length);
+    }
+
+    private void writeBlobHeader(long key, int sum, int length)
+            throws IOException {
         byte[] header = mBlobHeader;
-        int sum = checkSum(data);
         writeLong(header, BH_KEY, key);
         writeInt(header, BH_CHECKSUM, sum);
         writeInt(header, BH_OFFSET, mActiveBytes);
         writeInt(header, BH_LENGTH, length);
         mActiveDataFile.write(header);
-        mActiveDataFile.write(data, 0, length);
+    }
 
+    private void updateSlot(long key, int length) {
         mIndexBuffer.putLong(mSlotOffset, key);
         mIndexBuffer.putInt(mSlotOffset + 8, mActiveBytes);
         mActiveBytes += BLOB_HEADER_SIZE + length;
@@ -407,12 +540,11 @@ public class BlobCache implements Closeable {
 
     // This method is for one-off lookup. For repeated lookup, use the version
     // accepting LookupRequest to avoid repeated memory allocation.
-    private LookupRequest mLookupRequest = new LookupRequest();
     public byte[] lookup(long key) throws IOException {
-        mLookupRequest.key = key;
-        mLookupRequest.buffer = null;
-        if (lookup(mLookupRequest)) {
-            return mLookupRequest.buffer;
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        if (lookup(req)) {
+            return req.buffer;
         } else {
             return null;
         }
@@ -428,45 +560,312 @@ public class BlobCache implements Closeable {
     //
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
+    //
+    // It is safe to call this method from multiple threads at the same time.
     public boolean lookup(LookupRequest req) throws IOException {
-        // Look up in the active region first.
-        if (lookupInternal(req.key, mActiveHashStart)) {
-            if (getBlob(mActiveDataFile, mFileOffset, req)) {
+        mLock.readLock().lock();
+        try {
+            // Look up in the active region first.
+            int offset = probe(req.key, mActiveHashStart);
+            if (offset != 0 && getBlob(mActiveDataChannel, offset, req)) {
                 return true;
             }
+
+            // Look up in the inactive region.
+            offset = probe(req.key, mInactiveHashStart);
+            if (offset == 0 || !getBlob(mInactiveDataChannel, offset, req)) {
+                return false;
+            }
+
+            // If we don't have enough space to insert this blob into the
+            // active file, just return it.
+            if (!hasSpaceFor(req.length)) {
+                return true;
+            }
+        } finally {
+            mLock.readLock().unlock();
         }
 
-        // We want to copy the data from the inactive file to the active file
-        // if it's available. So we keep the offset of the hash entry so we can
-        // avoid looking it up again.
-        int insertOffset = mSlotOffset;
+        // Otherwise copy it over to the active file. This needs the write
+        // lock, which cannot be acquired while holding the read lock.
+        copyOver(req.key, req.buffer, req.length);
+        return true;
+    }
 
-        // Look up in the inactive region.
-        if (lookupInternal(req.key, mInactiveHashStart)) {
-            if (getBlob(mInactiveDataFile, mFileOffset, req)) {
-                // If we don't have enough space to insert this blob into
-                // the active file, just return it.
-                if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
-                    || mActiveEntries * 2 >= mMaxEntries) {
+    // Copies a blob found in the inactive region to the active region.
+    private void copyOver(long key, byte[] data, int length) {
+        mLock.writeLock().lock();
+        try {
+            // The regions may have been flipped, or another reader may have
+            // copied the same blob, since the read lock was released.
+            if (!hasSpaceFor(length) || lookupInternal(key, mActiveHashStart)) {
+                return;
+            }
+            int count = getAccessCount(key, mInactiveHashStart);
+            insertInternal(key, data, length);
+            setAccessCount(count);
+            mActiveEntries++;
+            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            updateIndexHeader();
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public static class MappedLookupRequest {
+        public long key;        // input: the key to find
+        public ByteBuffer data; // output: a read-only view of the blob
+        private int region = -1;  // the region pinned by this request
+
+        // Set by locate(): the region and offset where the blob was found
+        // (-1 and 0 if it was not), valid as long as mFlipCount is still
+        // locatedFlip.
+        private int locatedFlip = -1;
+        private int locatedRegion;
+        private int locatedOffset;
+    }
+
+    // Finds the blobs for a batch of requests with one pass over the index
+    // under a single read lock, and returns the number of blobs found. The
+    // data is not read: a following lookup(req) of each request uses the
+    // location found here and skips probing the index, unless the regions
+    // have been flipped in between. A key which is not found here is also
+    // reported missing by that lookup.
+    public int locate(MappedLookupRequest[] reqs, int count) {
+        int found = 0;
+        mLock.readLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                MappedLookupRequest req = reqs[i];
+                int region = mActiveRegion;
+                int offset = probe(req.key, mActiveHashStart);
+                if (offset == 0) {
+                    region = 1 - mActiveRegion;
+                    offset = probe(req.key, mInactiveHashStart);
+                }
+                req.locatedFlip = mFlipCount;
+                req.locatedRegion = (offset == 0) ? -1 : region;
+                req.locatedOffset = offset;
+                if (offset != 0) ++found;
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return found;
+    }
+
+    // Returns true if the associated blob for the given key is available.
+    // req.data is then a read-only buffer over the memory mapped data file,
+    // with position 0 and limit set to the length of the blob.
+    //
+    // The buffer stays valid until req is passed to release(), which must
+    // happen before this thread inserts into the cache: the region holding
+    // the blob cannot be flipped while the request is outstanding.
+    public boolean lookup(MappedLookupRequest req) throws IOException {
+        release(req);
+        int locatedFlip = req.locatedFlip;
+        req.locatedFlip = -1;
+
+        mLock.readLock().lock();
+        try {
+            if (locatedFlip == mFlipCount) {
+                // Use the answer of locate().
+                int region = req.locatedRegion;
+                if (region < 0
+                        || !getMappedBlob(region, req.locatedOffset, req)) {
+                    return false;
+                }
+                if (region == mActiveRegion
+                        || !hasSpaceFor(req.data.remaining())) {
                     return true;
                 }
-                // Otherwise copy it over.
-                mSlotOffset = insertOffset;
-                try {
-                    insertInternal(req.key, req.buffer, req.length);
+                // Fall through to copy it over.
+            } else if (!lookupMapped(req)) {
+                return false;
+            } else if (req.region == mActiveRegion
+                    || !hasSpaceFor(req.data.remaining())) {
+                return true;
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        // Copy it over to the active file if the writer is free. We must not
+        // wait for the write lock here: a flip holding it may be waiting for
+        // the pin this request holds.
+        if (mLock.writeLock().tryLock()) {
+            try {
+                if (hasSpaceFor(req.data.remaining())
+                        && !lookupInternal(req.key, mActiveHashStart)) {
+                    int count = getAccessCount(req.key, mInactiveHashStart);
+                    insertInternal(req.key, req.data);
+                    setAccessCount(count);
                     mActiveEntries++;
                     writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
                     updateIndexHeader();
-                } catch (Throwable t) {
-                    Log.e(TAG, "cannot copy over");
                 }
-                return true;
+            } catch (Throwable t) {
+                Log.e(TAG, "cannot copy over");
+            } finally {
+                mLock.writeLock().unlock();
             }
         }
+        return true;
+    }
+
+    // Probes both regions for req.key and sets req.data to the blob found.
+    // The caller must hold the read lock.
+    private boolean lookupMapped(MappedLookupRequest req) {
+        // Look up in the active region first.
+        int offset = probe(req.key, mActiveHashStart);
+        if (offset != 0 && getMappedBlob(mActiveRegion, offset, req)) {
+            return true;
+        }
 
-        return false;
+        // Look up in the inactive region.
+        offset = probe(req.key, mInactiveHashStart);
+        return offset != 0 && getMappedBlob(1 - mActiveRegion, offset, req);
     }
 
+    // Releases the blob returned by a successful lookup(MappedLookupRequest).
+    // It is fine to release a request more than once.
+    public void release(MappedLookupRequest req) {
+        if (req.region < 0) return;
+        synchronized (mDataMaps) {
+            if (--mPins[req.region] == 0) mDataMaps.notifyAll();
+        }
+        req.region = -1;
+        req.data = null;
+    }
+
+    // Sets req.data to the blob at the specified offset of the data file of
+    // the specified region and pins the region. Returns false if the blob is
+    // not available. The caller must hold the read lock.
+    //
+    // If the data file cannot be mapped, e.g. because the address space is
+    // used up, req.data is a read-only copy of the blob instead.
+    private boolean getMappedBlob(int region, int offset,
+            MappedLookupRequest req) {
+        ByteBuffer blob;
+        try {
+            blob = mapBlob(region, offset, req.key);
+        } catch (IOException ex) {
+            Log.w(TAG, "cannot map data file", ex);
+            blob = readBlob(region, offset, req.key);
+        } catch (Throwable t) {
+            Log.e(TAG, "getMappedBlob failed.", t);
+            return false;
+        }
+        if (blob == null) return false;
+
+        synchronized (mDataMaps) {
+            mPins[region]++;
+        }
+        req.region = region;
+        req.data = blob;
+        return true;
+    }
+
+    // Returns a read-only view of the blob at the specified offset of the
+    // data file of the specified region, or null if it is not available.
+    private ByteBuffer mapBlob(int region, int offset, long key)
+            throws IOException {
+        ByteBuffer header = getDataMap(region, offset,
+                offset + BLOB_HEADER_SIZE);
+        if (header == null) {
+            Log.w(TAG, "cannot read blob header");
+            return null;
+        }
+        long blobKey = header.getLong(BH_KEY);
+        if (blobKey != key) {
+            Log.w(TAG, "blob key does not match: " + blobKey);
+            return null;
+        }
+        int sum = header.getInt(BH_CHECKSUM);
+        int blobOffset = header.getInt(BH_OFFSET);
+        if (blobOffset != offset) {
+            Log.w(TAG, "blob offset does not match: " + blobOffset);
+            return null;
+        }
+        int length = header.getInt(BH_LENGTH);
+        if (length < 0 || length > mMaxBytes - offset - BLOB_HEADER_SIZE) {
+            Log.w(TAG, "invalid blob length: " + length);
+            return null;
+        }
+        int start = offset + BLOB_HEADER_SIZE;
+        ByteBuffer blob = getDataMap(region, start, start + length);
+        if (blob == null) {
+            Log.w(TAG, "cannot read blob data");
+            return null;
+        }
+
+        blob = blob.asReadOnlyBuffer();
+        if (checkSum(blob) != sum) {
+            Log.w(TAG, "blob checksum does not match: " + sum);
+            return null;
+        }
+        return blob;
+    }
+
+    // Returns a read-only copy of the blob at the specified offset of the
+    // data file of the specified region, or null if it is not available.
+    private ByteBuffer readBlob(int region, int offset, long key) {
+        RandomAccessFile file = (region == 0) ? mDataFile0 : mDataFile1;
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        try {
+            if (!getBlob(file.getChannel(), offset, req)) return null;
+        } catch (IOException ex) {
+            Log.w(TAG, "cannot read blob", ex);
+            return null;
+        }
+        return ByteBuffer.wrap(req.buffer, 0, req.length).slice()
+                .asReadOnlyBuffer();
+    }
+
+    // Returns a buffer over the bytes [from, to) of the data file of the
+    // specified region, or null if the file is shorter than to. The buffer
+    // is a view into the window mapped for the region. The window is mapped
+    // again, MAP_WINDOW_BYTES from the window boundary at or before from,
+    // when it does not cover the range, so the data files are never mapped
+    // whole.
+    private ByteBuffer getDataMap(int region, int from, int to)
+            throws IOException {
+        synchronized (mDataMaps) {
+            MappedByteBuffer map = mDataMaps[region];
+            int start = mDataMapStarts[region];
+            if (map == null || from < start || to > start + map.capacity()) {
+                RandomAccessFile file = (region == 0) ? mDataFile0 : mDataFile1;
+                FileChannel channel = file.getChannel();
+                long size = channel.size();
+                if (size < to) return null;
+                start = from - from % MAP_WINDOW_BYTES;
+                long end = Math.min(size,
+                        Math.max(start + MAP_WINDOW_BYTES, (long) to));
+                map = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        end - start);
+                mDataMaps[region] = map;
+                mDataMapStarts[region] = start;
+            }
+            ByteBuffer view = map.duplicate();
+            view.position(from - start);
+            view.limit(to - start);
+            return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // Waits until there is no mapped lookup on the specified region, and
+    // drops its mapping. This must be called before the region is truncated.
+    private void unmapRegion(int region) {
+        synchronized (mDataMaps) {
+            while (mPins[region] > 0) {
+                Utils.waitWithoutInterrupt(mDataMaps);
+            }
+            mDataMaps[region] = null;
+        }
+    }
 
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
@@ -474,13 +873,14 @@ public class BlobCache implements Closeable {
     // Returns false if the blob is not available (either the index file is
     // not sync with the data file, or one of them is corrupted). The length
     // of the blob is stored in the req.length variable.
-    private boolean getBlob(RandomAccessFile file, int offset,
+    //
+    // Only positional reads are used, so this can run concurrently with
+    // other readers and with the writer appending to the same file.
+    private boolean getBlob(FileChannel channel, int offset,
             LookupRequest req) throws IOException {
-        byte[] header = mBlobHeader;
-        long oldPosition = file.getFilePointer();
+        byte[] header = new byte[BLOB_HEADER_SIZE];
         try {
-            file.seek(offset);
-            if (file.read(header) != BLOB_HEADER_SIZE) {
+            if (!readFully(channel, offset, header, BLOB_HEADER_SIZE)) {
                 Log.w(TAG, "cannot read blob header");
                 return false;
             }
@@ -507,11 +907,13 @@ public class BlobCache implements Closeable {
             byte[] blob = req.buffer;
             req.length = length;
 
-            if (file.read(blob, 0, length) != length) {
+            if (!readFully(channel, offset + BLOB_HEADER_SIZE, blob, length)) {
                 Log.w(TAG, "cannot read blob data");
                 return false;
             }
-            if (checkSum(blob, 0, length) != sum) {
+            Adler32 adler32 = new Adler32();
+            adler32.update(blob, 0, length);
+            if ((int) adler32.getValue() != sum) {
                 Log.w(TAG, "blob checksum does not match: " + sum);
                 return false;
             }
@@ -519,8 +921,143 @@ public class BlobCache implements Closeable {
         } catch (Throwable t)  {
             Log.e(TAG, "getBlob failed.", t);
             return false;
+        }
+    }
+
+    // Reads length bytes at the given position of the channel into buf.
+    // Returns false if the file ends before that.
+    private static boolean readFully(FileChannel channel, long position,
+            byte[] buf, int length) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, length);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The read-only version of lookupInternal, used by readers holding only
+    // the read lock. Returns the offset of the blob in the data file, or 0
+    // if the key is not in the specified hash region. The lookup is counted
+    // in the access count of the slot.
+    private int probe(long key, int hashStart) {
+        int slot = probeSlot(key, hashStart);
+        if (slot < 0) return 0;
+        mAccessCounts[getRegion(hashStart)][slot]++;
+        return mIndexBuffer.getInt(hashStart + slot * 12 + 8);
+    }
+
+    // Returns the slot of the key in the specified hash region, or -1 if the
+    // key is not there. This only needs the read lock.
+    private int probeSlot(long key, int hashStart) {
+        int slot = (int) (key % mMaxEntries);
+        if (slot < 0) slot += mMaxEntries;
+        int slotBegin = slot;
+        do {
+            int offset = hashStart + slot * 12;
+            int candidateOffset = mIndexBuffer.getInt(offset + 8);
+            if (candidateOffset == 0) {
+                return -1;
+            } else if (mIndexBuffer.getLong(offset) == key) {
+                return slot;
+            }
+            if (++slot >= mMaxEntries) {
+                slot = 0;
+            }
+        } while (slot != slotBegin);
+        // The table is full, which means the index is corrupted. Let the
+        // writer clear a slot when it gets there.
+        return -1;
+    }
+
+    private int getRegion(int hashStart) {
+        return hashStart == INDEX_HEADER_SIZE ? 0 : 1;
+    }
+
+    // Returns the access count of the key in the specified hash region.
+    private int getAccessCount(long key, int hashStart) {
+        int slot = probeSlot(key, hashStart);
+        return slot < 0 ? 0 : mAccessCounts[getRegion(hashStart)][slot];
+    }
+
+    // Sets the access count of the active slot pointed by mSlotOffset. The
+    // caller must hold the write lock.
+    private void setAccessCount(int count) {
+        mAccessCounts[mActiveRegion][(mSlotOffset - mActiveHashStart) / 12] =
+                count;
+    }
+
+    // Returns true if compact() has work to do: the active region is 3/4
+    // full, and the inactive region has not been scanned since the last flip.
+    // It only takes the read lock, so a writer can check it after each insert
+    // and leave the compaction to a background thread.
+    public boolean needsCompaction() {
+        mLock.readLock().lock();
+        try {
+            return isCompactionDue()
+                    && (mCompactFlip != mFlipCount || mCompactSlot < mMaxEntries);
         } finally {
-            file.seek(oldPosition);
+            mLock.readLock().unlock();
+        }
+    }
+
+    private boolean isCompactionDue() {
+        return mActiveBytes * 4L >= mMaxBytes * 3L
+                || mActiveEntries * 8L >= mMaxEntries * 3L;
+    }
+
+    // Copies the hot blobs of the inactive region which are not in the active
+    // region yet into the active region, so they survive the next flip. The
+    // work is incremental: each call copies about maxBytes at most, and
+    // returns the number of bytes copied. Nothing is copied until the active
+    // region is 3/4 full. Call it from a background thread, e.g. when
+    // needsCompaction() returns true. Like insert(), it must not be called
+    // while holding a mapped lookup.
+    public int compact(int maxBytes) throws IOException {
+        mLock.writeLock().lock();
+        try {
+            if (!isCompactionDue()) return 0;
+            if (mCompactFlip != mFlipCount) {
+                mCompactFlip = mFlipCount;
+                mCompactSlot = 0;
+                mCompactBytes = 0;
+            }
+
+            int[] counts = mAccessCounts[1 - mActiveRegion];
+            int limit = mMaxBytes / COMPACT_LIMIT_DIVISOR;
+            LookupRequest req = new LookupRequest();
+            int copied = 0;
+            while (mCompactSlot < mMaxEntries && copied < maxBytes) {
+                int slot = mCompactSlot++;
+                if (counts[slot] < HOT_ACCESS_COUNT) continue;
+                int offset = mInactiveHashStart + slot * 12;
+                int blobOffset = mIndexBuffer.getInt(offset + 8);
+                if (blobOffset == 0) continue;
+                req.key = mIndexBuffer.getLong(offset);
+                // This also points mSlotOffset to the slot to insert into.
+                if (lookupInternal(req.key, mActiveHashStart)) continue;
+                if (!getBlob(mInactiveDataChannel, blobOffset, req)) continue;
+
+                int bytes = BLOB_HEADER_SIZE + req.length;
+                if (mCompactBytes + bytes > limit || !hasSpaceFor(req.length)) {
+                    // Done until the next flip.
+                    mCompactSlot = mMaxEntries;
+                    break;
+                }
+                insertInternal(req.key, req.buffer, req.length);
+                setAccessCount(counts[slot]);
+                mActiveEntries++;
+                copied += bytes;
+                mCompactBytes += bytes;
+            }
+            if (copied > 0) {
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+                updateIndexHeader();
+            }
+            return copied;
+        } finally {
+            mLock.writeLock().unlock();
         }
     }
 
@@ -529,10 +1066,9 @@ public class BlobCache implements Closeable {
     // The slot offset in the index file is saved in mSlotOffset. If the lookup
     // is successful, it's the slot found. Otherwise it's the slot suitable for
     // insertion.
-    // If the lookup is successful, the file offset is also saved in
-    // mFileOffset.
+    //
+    // The caller must hold the write lock.
     private int mSlotOffset;
-    private int mFileOffset;
     private boolean lookupInternal(long key, int hashStart) {
         int slot = (int) (key % mMaxEntries);
         if (slot < 0) slot += mMaxEntries;
@@ -546,7 +1082,6 @@ public class BlobCache implements Closeable {
                 return false;
             } else if (candidateKey == key) {
                 mSlotOffset = offset;
-                mFileOffset = candidateOffset;
                 return true;
             } else {
                 if (++slot >= mMaxEntries) {
@@ -614,6 +1149,29 @@ public class BlobCache implements Closeable {
         return (int) mAdler32.getValue();
     }
 
+    // Computes the Adler-32 checksum of the remaining bytes of the buffer
+    // without copying them out. The position of the buffer is not changed.
+    static int checkSum(ByteBuffer data) {
+        final int MOD_ADLER = 65521;
+        // The largest n such that 255n(n+1)/2 + (n+1)(MOD_ADLER-1) fits in
+        // a signed int, so the sums only need reducing every NMAX bytes.
+        final int NMAX = 3854;
+        int a = 1;
+        int b = 0;
+        int i = data.position();
+        int end = data.limit();
+        while (i < end) {
+            int chunkEnd = Math.min(end, i + NMAX);
+            for (; i < chunkEnd; i++) {
+                a += data.get(i) & 0xff;
+                b += a;
+            }
+            a %= MOD_ADLER;
+            b %= MOD_ADLER;
+        }
+        return (b << 16) | a;
+    }
+
     static void closeSilently(Closeable c) {
         if (c == null) return;
         try {
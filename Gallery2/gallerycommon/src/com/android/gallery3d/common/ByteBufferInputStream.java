@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.common;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream which reads the remaining bytes of a ByteBuffer. It works on
+ * a duplicate of the buffer, so the position of the given buffer is never
+ * changed. This lets BitmapFactory decode straight from a memory mapped file.
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer.duplicate();
+        mBuffer.mark();
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) return 0;
+        int remaining = mBuffer.remaining();
+        if (remaining == 0) return -1;
+        length = Math.min(length, remaining);
+        mBuffer.get(buffer, offset, length);
+        return length;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) return 0;
+        int count = (int) Math.min(n, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mBuffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mBuffer.reset();
+    }
+}
@@ -135,7 +135,21 @@ public class Utils {
         if (in == null || in.length() == 0) {
             return 0;
         }
-        return crc64Long(getBytes(in));
+        // The same as crc64Long(getBytes(in)), without the byte array.
+        long crc = INITIALCRC;
+        for (int k = 0, n = in.length(); k < n; ++k) {
+            char ch = in.charAt(k);
+            crc = crc64Long(crc, (byte) ch);
+            crc = crc64Long(crc, (byte) (ch >> 8));
+        }
+        return crc;
+    }
+
+    /**
+     * Continues a 64-bit crc with one more byte.
+     */
+    public static final long crc64Long(long crc, byte b) {
+        return sCrcTable[(((int) crc) ^ b) & 0xff] ^ (crc >> 8);
     }
 
     static {
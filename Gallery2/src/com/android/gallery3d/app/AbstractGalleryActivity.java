@@ -188,6 +188,7 @@ public class AbstractGalleryActivity extends Activity implements GalleryActivity
         } finally {
             mGLRootView.unlockRenderThread();
         }
+        MediaItem.getThumbnailCache().clear();
         MediaItem.getMicroThumbPool().clear();
         MediaItem.getThumbPool().clear();
         MediaItem.getBytesBufferPool().clear();
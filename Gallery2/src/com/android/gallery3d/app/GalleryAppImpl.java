@@ -62,10 +62,13 @@ public class GalleryAppImpl extends Application implements GalleryApp {
     }
 
     public ImageCacheService getImageCacheService() {
+        // Get the thread pool first, so its lock is not taken inside mLock.
+        ThreadPool threadPool = getThreadPool();
         // This method may block on file I/O so a dedicated lock is needed here.
         synchronized (mLock) {
             if (mImageCacheService == null) {
-                mImageCacheService = new ImageCacheService(getAndroidContext());
+                mImageCacheService = new ImageCacheService(
+                        getAndroidContext(), threadPool);
             }
             return mImageCacheService;
         }
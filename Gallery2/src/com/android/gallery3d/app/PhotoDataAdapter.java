@@ -26,6 +26,7 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BitmapPool;
 import com.android.gallery3d.data.ContentListener;
 import com.android.gallery3d.data.DataManager;
+import com.android.gallery3d.data.LocalImage;
 import com.android.gallery3d.data.LocalMediaItem;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.MediaObject;
@@ -561,7 +562,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
             if (fullImage != null) {
                 mTileProvider.setScreenNail(screenNail,
                         fullImage.getWidth(), fullImage.getHeight());
-                mTileProvider.setRegionDecoder(fullImage);
+                mTileProvider.setRegionDecoder(fullImage, entry.fullImageSource);
             } else {
                 int width = screenNail.getWidth();
                 int height = screenNail.getHeight();
@@ -743,6 +744,10 @@ public class PhotoDataAdapter implements PhotoPage.Model {
                 && (item.getSupportedOperations()
                 & MediaItem.SUPPORT_FULL_IMAGE) != 0) {
             entry.requestedFullImage = version;
+            // Opening more decoders on a local file is cheap, so the tiles
+            // of a local image can be decoded in parallel.
+            entry.fullImageSource = (item instanceof LocalImage)
+                    ? item.requestLargeImage() : null;
             entry.fullImageTask = mThreadPool.submit(
                     new FullImageJob(item),
                     new FullImageListener(item));
@@ -839,6 +844,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 
     private static class ImageEntry {
         public BitmapRegionDecoder fullImage;
+        public Job<BitmapRegionDecoder> fullImageSource;
         public ScreenNail screenNail;
         public Future<ScreenNail> screenNailTask;
         public Future<BitmapRegionDecoder> fullImageTask;
@@ -25,6 +25,7 @@ import android.os.Message;
 
 import com.android.gallery3d.common.BitmapUtils;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.LocalImage;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.Path;
 import com.android.gallery3d.ui.PhotoView;
@@ -114,7 +115,8 @@ public class SinglePhotoDataAdapter extends TileImageViewAdapter
         try {
             setScreenNail(bundle.backupImage,
                     bundle.decoder.getWidth(), bundle.decoder.getHeight());
-            setRegionDecoder(bundle.decoder);
+            setRegionDecoder(bundle.decoder, (mItem instanceof LocalImage)
+                    ? mItem.requestLargeImage() : null);
             mPhotoView.notifyImageChange(0);
         } catch (Throwable t) {
             Log.w(TAG, "fail to decode large", t);
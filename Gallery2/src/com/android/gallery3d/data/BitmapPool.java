@@ -25,73 +25,220 @@ import com.android.gallery3d.ui.Log;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.FileDescriptor;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 
+// A pool of reusable bitmaps. The bitmaps are kept in buckets keyed by
+// (width, height, config), so getting or putting a bitmap is O(1). The pool
+// keeps at most a given number of bytes; when it is over budget, the least
+// recently recycled bitmap is dropped, whatever bucket it is in.
+//
+// A pool may also be a view of another pool, which only takes bitmaps of one
+// size. Several views can share the storage, and so the budget, of one pool.
 public class BitmapPool {
     private static final String TAG = "BitmapPool";
 
-    private final ArrayList<Bitmap> mPool;
-    private final int mPoolLimit;
+    private static class Entry {
+        Bitmap bitmap;
+        long key;
+        int bytes;
+        // The least recently recycled bitmaps are at the tail of both lists.
+        Entry lruPrev, lruNext;
+        Entry bucketPrev, bucketNext;
+    }
+
+    // The pool which holds the bitmaps. It is this pool unless this is a view.
+    private final BitmapPool mStore;
 
     // mOneSize is true if the pool can only cache Bitmap with one size.
     private final boolean mOneSize;
     private final int mWidth, mHeight;  // only used if mOneSize is true
 
+    // The fields below are only used by mStore, guarded by mStore.
+    private final HashMap<Long, Entry> mBuckets = new HashMap<Long, Entry>();
+    private Entry mLruHead, mLruTail;
+    private final int mByteLimit;
+    private int mBytes;
+    private int mHitCount, mMissCount, mEvictionCount;
+
     // Construct a BitmapPool which caches bitmap with the specified size.
     public BitmapPool(int width, int height, int poolLimit) {
         mWidth = width;
         mHeight = height;
-        mPoolLimit = poolLimit;
-        mPool = new ArrayList<Bitmap>(poolLimit);
+        mByteLimit = width * height * 4 * poolLimit;
+        mOneSize = true;
+        mStore = this;
+    }
+
+    // Construct a BitmapPool which caches bitmap with the specified size
+    // in the storage of another pool.
+    public BitmapPool(int width, int height, BitmapPool store) {
+        Utils.assertTrue(store.mStore == store);
+        mWidth = width;
+        mHeight = height;
+        mByteLimit = 0;
         mOneSize = true;
+        mStore = store;
     }
 
-    // Construct a BitmapPool which caches bitmap with any size;
-    public BitmapPool(int poolLimit) {
+    // Construct a BitmapPool which caches bitmap with any size, using at
+    // most byteLimit bytes.
+    public BitmapPool(int byteLimit) {
         mWidth = -1;
         mHeight = -1;
-        mPoolLimit = poolLimit;
-        mPool = new ArrayList<Bitmap>(poolLimit);
+        mByteLimit = byteLimit;
         mOneSize = false;
+        mStore = this;
+    }
+
+    private static long makeKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 4) | config.ordinal();
     }
 
     // Get a Bitmap from the pool.
-    public synchronized Bitmap getBitmap() {
+    public Bitmap getBitmap() {
         Utils.assertTrue(mOneSize);
-        int size = mPool.size();
-        return size > 0 ? mPool.remove(size - 1) : null;
+        return mStore.take(makeKey(mWidth, mHeight, Bitmap.Config.ARGB_8888));
     }
 
     // Get a Bitmap from the pool with the specified size.
-    public synchronized Bitmap getBitmap(int width, int height) {
-        Utils.assertTrue(!mOneSize);
-        for (int i = mPool.size() - 1; i >= 0; i--) {
-            Bitmap b = mPool.get(i);
-            if (b.getWidth() == width && b.getHeight() == height) {
-                return mPool.remove(i);
-            }
-        }
-        return null;
+    public Bitmap getBitmap(int width, int height) {
+        return getBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    // Get a Bitmap from the pool with the specified size and config.
+    public Bitmap getBitmap(int width, int height, Bitmap.Config config) {
+        if (mOneSize && (width != mWidth || height != mHeight)) return null;
+        return mStore.take(makeKey(width, height, config));
     }
 
     // Put a Bitmap into the pool, if the Bitmap has a proper size. Otherwise
-    // the Bitmap will be recycled. If the pool is full, an old Bitmap will be
-    // recycled.
+    // the Bitmap will be recycled. If the pool is full, the least recently
+    // recycled Bitmaps will be dropped.
     public void recycle(Bitmap bitmap) {
         if (bitmap == null) return;
-        if (mOneSize && ((bitmap.getWidth() != mWidth) ||
-                (bitmap.getHeight() != mHeight))) {
+        Bitmap.Config config = bitmap.getConfig();
+        if (config == null || (mOneSize && ((bitmap.getWidth() != mWidth)
+                || (bitmap.getHeight() != mHeight)))) {
             bitmap.recycle();
             return;
         }
-        synchronized (this) {
-            if (mPool.size() >= mPoolLimit) mPool.remove(0);
-            mPool.add(bitmap);
+        int bytes = bitmap.getRowBytes() * bitmap.getHeight();
+        if (bytes > mStore.mByteLimit) {
+            bitmap.recycle();
+            return;
+        }
+        mStore.put(bitmap,
+                makeKey(bitmap.getWidth(), bitmap.getHeight(), config), bytes);
+    }
+
+    // Drop the bitmaps in the pool. For a view, only the bitmaps of its
+    // size are dropped.
+    public void clear() {
+        if (mOneSize && mStore != this) {
+            BitmapPool store = mStore;
+            long key = makeKey(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            synchronized (store) {
+                Entry entry;
+                while ((entry = store.mBuckets.get(key)) != null) {
+                    store.remove(entry);
+                }
+            }
+        } else {
+            synchronized (this) {
+                mBuckets.clear();
+                mLruHead = mLruTail = null;
+                mBytes = 0;
+            }
+        }
+    }
+
+    public int getHitCount() {
+        synchronized (mStore) {
+            return mStore.mHitCount;
+        }
+    }
+
+    public int getMissCount() {
+        synchronized (mStore) {
+            return mStore.mMissCount;
+        }
+    }
+
+    public int getEvictionCount() {
+        synchronized (mStore) {
+            return mStore.mEvictionCount;
+        }
+    }
+
+    public int getSize() {
+        synchronized (mStore) {
+            return mStore.mBytes;
+        }
+    }
+
+    private synchronized Bitmap take(long key) {
+        Entry entry = mBuckets.get(key);
+        if (entry == null) {
+            ++mMissCount;
+            return null;
+        }
+        ++mHitCount;
+        remove(entry);
+        return entry.bitmap;
+    }
+
+    private synchronized void put(Bitmap bitmap, long key, int bytes) {
+        Entry entry = new Entry();
+        entry.bitmap = bitmap;
+        entry.key = key;
+        entry.bytes = bytes;
+
+        entry.lruNext = mLruHead;
+        if (mLruHead != null) mLruHead.lruPrev = entry;
+        mLruHead = entry;
+        if (mLruTail == null) mLruTail = entry;
+
+        Entry head = mBuckets.put(key, entry);
+        entry.bucketNext = head;
+        if (head != null) head.bucketPrev = entry;
+
+        mBytes += bytes;
+        while (mBytes > mByteLimit) {
+            ++mEvictionCount;
+            remove(mLruTail);
         }
     }
 
-    public synchronized void clear() {
-        mPool.clear();
+    // Must be called with the lock of the store held.
+    private void remove(Entry entry) {
+        if (entry.lruPrev == null) {
+            mLruHead = entry.lruNext;
+        } else {
+            entry.lruPrev.lruNext = entry.lruNext;
+        }
+        if (entry.lruNext == null) {
+            mLruTail = entry.lruPrev;
+        } else {
+            entry.lruNext.lruPrev = entry.lruPrev;
+        }
+
+        if (entry.bucketPrev == null) {
+            if (entry.bucketNext == null) {
+                mBuckets.remove(entry.key);
+            } else {
+                mBuckets.put(entry.key, entry.bucketNext);
+            }
+        } else {
+            entry.bucketPrev.bucketNext = entry.bucketNext;
+        }
+        if (entry.bucketNext != null) {
+            entry.bucketNext.bucketPrev = entry.bucketPrev;
+        }
+
+        entry.lruPrev = entry.lruNext = null;
+        entry.bucketPrev = entry.bucketNext = null;
+        mBytes -= entry.bytes;
     }
 
     private Bitmap findCachedBitmap(JobContext jc,
@@ -101,6 +248,13 @@ public class BitmapPool {
         return getBitmap(options.outWidth, options.outHeight);
     }
 
+    private Bitmap findCachedBitmap(JobContext jc,
+            ByteBuffer buffer, Options options) {
+        if (mOneSize) return getBitmap();
+        DecodeUtils.decodeBounds(jc, buffer, options);
+        return getBitmap(options.outWidth, options.outHeight);
+    }
+
     private Bitmap findCachedBitmap(JobContext jc,
             FileDescriptor fileDescriptor, Options options) {
         if (mOneSize) return getBitmap();
@@ -132,6 +286,32 @@ public class BitmapPool {
         }
     }
 
+    // This is the same as the method above except the source data is the
+    // remaining bytes of a buffer, e.g. a view into a memory mapped file.
+    public Bitmap decode(JobContext jc,
+            ByteBuffer buffer, BitmapFactory.Options options) {
+        if (options == null) options = new BitmapFactory.Options();
+        if (options.inSampleSize < 1) options.inSampleSize = 1;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = (options.inSampleSize == 1)
+                ? findCachedBitmap(jc, buffer, options) : null;
+        try {
+            Bitmap bitmap = DecodeUtils.decode(jc, buffer, options);
+            if (options.inBitmap != null && options.inBitmap != bitmap) {
+                recycle(options.inBitmap);
+                options.inBitmap = null;
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) throw e;
+
+            Log.w(TAG, "decode fail with a given bitmap, try decode to a new bitmap");
+            recycle(options.inBitmap);
+            options.inBitmap = null;
+            return DecodeUtils.decode(jc, buffer, options);
+        }
+    }
+
     // This is the same as the method above except the source data comes
     // from a file descriptor instead of a byte array.
     public Bitmap decode(JobContext jc,
@@ -16,16 +16,23 @@
 
 package com.android.gallery3d.data;
 
+import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 
+// A pool of byte buffers. The buffers are pooled by size class: the smallest
+// class is the given buffer size rounded up to a power of 2, and each of the
+// next classes is twice as big as the previous one.
 public class BytesBufferPool {
 
-    private static final int READ_STEP = 4096;
+    private static final int READ_STEP = 64 * 1024;
+    private static final int SIZE_CLASS_COUNT = 5;
 
     public static class BytesBuffer {
         public byte[] data;
@@ -36,56 +43,146 @@ public class BytesBufferPool {
             this.data = new byte[capacity];
         }
 
-        // an helper function to read content from FileDescriptor
+        // an helper function to read content from FileDescriptor. If the
+        // size of the content is known, the data array is grown at most once,
+        // to the size rounded up to a power of 2, so it can be pooled again.
         public void readFrom(JobContext jc, FileDescriptor fd) throws IOException {
             FileInputStream fis = new FileInputStream(fd);
-            length = 0;
             try {
-                int capacity = data.length;
-                while (true) {
-                    int step = Math.min(READ_STEP, capacity - length);
-                    int rc = fis.read(data, length, step);
-                    if (rc < 0 || jc.isCancelled()) return;
-                    length += rc;
-
-                    if (length == capacity) {
-                        byte[] newData = new byte[data.length * 2];
-                        System.arraycopy(data, 0, newData, 0, data.length);
-                        data = newData;
-                        capacity = data.length;
-                    }
-                }
+                readFrom(jc, fis.getChannel());
             } finally {
                 fis.close();
             }
         }
+
+        private void readFrom(JobContext jc, FileChannel channel)
+                throws IOException {
+            length = 0;
+            long size = getRemainingSize(channel);
+            if (size > data.length && size <= (1 << 30)) {
+                data = new byte[Utils.nextPowerOf2((int) size)];
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (!jc.isCancelled()) {
+                int capacity = data.length;
+                if (length == capacity) {
+                    if (size > 0 && getRemainingSize(channel) < 0) return;
+                    // The content is larger than expected, e.g. the file
+                    // is still being written or its size is not known.
+                    byte[] newData = new byte[capacity * 2];
+                    System.arraycopy(data, 0, newData, 0, capacity);
+                    data = newData;
+                    buffer = ByteBuffer.wrap(data);
+                    capacity = data.length;
+                }
+                buffer.limit(Math.min(length + READ_STEP, capacity));
+                buffer.position(length);
+                int rc = channel.read(buffer);
+                if (rc < 0) return;
+                length += rc;
+            }
+        }
+    }
+
+    // Returns the number of bytes from the current position to the end of
+    // the file, or -1 if it is not known (e.g. for a pipe).
+    private static long getRemainingSize(FileChannel channel) {
+        try {
+            long size = channel.size() - channel.position();
+            return size > 0 ? size : -1;
+        } catch (IOException e) {
+            return -1;
+        }
     }
 
     private final int mPoolSize;
     private final int mBufferSize;
-    private final ArrayList<BytesBuffer> mList;
+    // mLists[i] are the free buffers of (mBufferSize << i) bytes.
+    private final ArrayList<ArrayList<BytesBuffer>> mLists;
 
     public BytesBufferPool(int poolSize, int bufferSize) {
-        mList = new ArrayList<BytesBuffer>(poolSize);
         mPoolSize = poolSize;
-        mBufferSize = bufferSize;
+        mBufferSize = Utils.nextPowerOf2(bufferSize);
+        mLists = new ArrayList<ArrayList<BytesBuffer>>(SIZE_CLASS_COUNT);
+        for (int i = 0; i < SIZE_CLASS_COUNT; ++i) {
+            mLists.add(new ArrayList<BytesBuffer>(getClassLimit(i)));
+        }
+    }
+
+    // The larger buffers are fewer, so each class can hold about the same
+    // number of bytes.
+    private int getClassLimit(int sizeClass) {
+        return Math.max(1, mPoolSize >> sizeClass);
+    }
+
+    // Returns the size class of a buffer which holds size bytes, or -1 if
+    // the size is larger than the largest class.
+    private int getSizeClass(int size) {
+        int sizeClass = 0;
+        for (int capacity = mBufferSize; capacity < size; capacity <<= 1) {
+            if (++sizeClass == SIZE_CLASS_COUNT) return -1;
+        }
+        return sizeClass;
     }
 
-    public synchronized BytesBuffer get() {
-        int n = mList.size();
-        return n > 0 ? mList.remove(n - 1) : new BytesBuffer(mBufferSize);
+    // Returns the size of the buffers in the largest size class.
+    public int getMaxBufferSize() {
+        return mBufferSize << (SIZE_CLASS_COUNT - 1);
+    }
+
+    public BytesBuffer get() {
+        return get(mBufferSize);
+    }
+
+    // Gets a buffer which can hold at least size bytes.
+    public BytesBuffer get(int size) {
+        int sizeClass = getSizeClass(size);
+        if (sizeClass < 0) return new BytesBuffer(size);
+        synchronized (this) {
+            ArrayList<BytesBuffer> list = mLists.get(sizeClass);
+            int n = list.size();
+            if (n > 0) return list.remove(n - 1);
+        }
+        return new BytesBuffer(mBufferSize << sizeClass);
+    }
+
+    // Reads the content of fd into a buffer of the pool. The buffer is picked
+    // by the size of the file, so the data is not copied while reading.
+    public BytesBuffer readFrom(JobContext jc, FileDescriptor fd)
+            throws IOException {
+        FileInputStream fis = new FileInputStream(fd);
+        try {
+            FileChannel channel = fis.getChannel();
+            long size = getRemainingSize(channel);
+            BytesBuffer buffer = get(size > 0 && size <= (1 << 30)
+                    ? (int) size : mBufferSize);
+            try {
+                buffer.readFrom(jc, channel);
+            } catch (IOException e) {
+                recycle(buffer);
+                throw e;
+            }
+            return buffer;
+        } finally {
+            fis.close();
+        }
     }
 
     public synchronized void recycle(BytesBuffer buffer) {
-        if (buffer.data.length != mBufferSize) return;
-        if (mList.size() < mPoolSize) {
+        int capacity = buffer.data.length;
+        int sizeClass = getSizeClass(capacity);
+        if (sizeClass < 0 || (mBufferSize << sizeClass) != capacity) return;
+        ArrayList<BytesBuffer> list = mLists.get(sizeClass);
+        if (list.size() < getClassLimit(sizeClass)) {
             buffer.offset = 0;
             buffer.length = 0;
-            mList.add(buffer);
+            list.add(buffer);
         }
     }
 
     public synchronized void clear() {
-        mList.clear();
+        for (ArrayList<BytesBuffer> list : mLists) {
+            list.clear();
+        }
     }
 }
@@ -31,6 +31,8 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     private int mKind;
     private ArrayList<ClusterAlbum> mAlbums = new ArrayList<ClusterAlbum>();
     private boolean mFirstReloadDone;
+    // The time clustering is kept so later reloads can update it.
+    private TimeClustering mTimeClustering;
 
     public ClusterAlbumSet(Path path, GalleryApp application,
             MediaSet baseSet, int kind) {
@@ -59,7 +61,9 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     @Override
     public long reload() {
         if (mBaseSet.reload() > mDataVersion) {
-            if (mFirstReloadDone) {
+            if (mTimeClustering != null) {
+                updateTimeClusters();
+            } else if (mFirstReloadDone) {
                 updateClustersContents();
             } else {
                 updateClusters();
@@ -80,19 +84,25 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
         Context context = mApplication.getAndroidContext();
         switch (mKind) {
             case ClusterSource.CLUSTER_ALBUMSET_TIME:
-                clustering = new TimeClustering(context);
+                mTimeClustering = new TimeClustering(
+                        context, mApplication.getThreadPool());
+                clustering = mTimeClustering;
                 break;
             case ClusterSource.CLUSTER_ALBUMSET_LOCATION:
-                clustering = new LocationClustering(context);
+                clustering = new LocationClustering(
+                        context, mApplication.getThreadPool());
                 break;
             case ClusterSource.CLUSTER_ALBUMSET_TAG:
-                clustering = new TagClustering(context);
+                clustering = new TagClustering(
+                        context, mApplication.getThreadPool());
                 break;
             case ClusterSource.CLUSTER_ALBUMSET_FACE:
-                clustering = new FaceClustering(context);
+                clustering = new FaceClustering(
+                        context, mApplication.getThreadPool());
                 break;
             default: /* CLUSTER_ALBUMSET_SIZE */
-                clustering = new SizeClustering(context);
+                clustering = new SizeClustering(
+                        context, mApplication.getThreadPool());
                 break;
         }
 
@@ -107,6 +117,8 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
             } else if (mKind == ClusterSource.CLUSTER_ALBUMSET_SIZE) {
                 long minSize = ((SizeClustering) clustering).getMinSize(i);
                 childPath = mPath.getChild(minSize);
+            } else if (mKind == ClusterSource.CLUSTER_ALBUMSET_TIME) {
+                childPath = mPath.getChild(mTimeClustering.getClusterId(i));
             } else {
                 childPath = mPath.getChild(i);
             }
@@ -122,13 +134,43 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
         }
     }
 
+    // Only the albums of the clusters changed by the update are filled again.
+    // The others keep their paths and contents, since a cluster id stays the
+    // same across updates.
+    private void updateTimeClusters() {
+        TimeClustering clustering = mTimeClustering;
+        clustering.update(mBaseSet);
+
+        HashSet<ClusterAlbum> previous = new HashSet<ClusterAlbum>(mAlbums);
+        int n = clustering.getNumberOfClusters();
+        ArrayList<ClusterAlbum> albums = new ArrayList<ClusterAlbum>(n);
+        DataManager dataManager = mApplication.getDataManager();
+        for (int i = 0; i < n; i++) {
+            Path childPath = mPath.getChild(clustering.getClusterId(i));
+            ClusterAlbum album = (ClusterAlbum) dataManager.peekMediaObject(
+                        childPath);
+            if (album == null) {
+                album = new ClusterAlbum(childPath, dataManager, this);
+            } else if (previous.contains(album)
+                    && !clustering.isClusterChanged(i)) {
+                albums.add(album);
+                continue;
+            }
+            album.setMediaItems(clustering.getCluster(i));
+            album.setName(clustering.getClusterName(i));
+            album.setCoverMediaItem(clustering.getClusterCover(i));
+            albums.add(album);
+        }
+        mAlbums = albums;
+    }
+
     private void updateClustersContents() {
         final HashSet<Path> existing = new HashSet<Path>();
         mBaseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
             public void consume(int index, MediaItem item) {
                 existing.add(item.getPath());
             }
-        });
+        }, mApplication.getThreadPool());
 
         int n = mAlbums.size();
 
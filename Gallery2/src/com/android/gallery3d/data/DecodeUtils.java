@@ -24,13 +24,16 @@ import android.graphics.BitmapRegionDecoder;
 import android.util.FloatMath;
 
 import com.android.gallery3d.common.BitmapUtils;
+import com.android.gallery3d.common.ByteBufferInputStream;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.ThreadPool.CancelListener;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class DecodeUtils {
     private static final String TAG = "DecodeService";
@@ -85,18 +88,52 @@ public class DecodeUtils {
         options.inJustDecodeBounds = false;
     }
 
+    // Decodes the remaining bytes of the buffer. The position of the buffer
+    // is not changed, so it can be a view into a memory mapped file.
+    public static Bitmap decode(JobContext jc, ByteBuffer buffer,
+            Options options) {
+        if (options == null) options = new Options();
+        jc.setCancelListener(new DecodeCanceller(options));
+        return ensureGLCompatibleBitmap(BitmapFactory.decodeStream(
+                new ByteBufferInputStream(buffer), null, options));
+    }
+
+    public static void decodeBounds(JobContext jc, ByteBuffer buffer,
+            Options options) {
+        Utils.assertTrue(options != null);
+        options.inJustDecodeBounds = true;
+        jc.setCancelListener(new DecodeCanceller(options));
+        BitmapFactory.decodeStream(
+                new ByteBufferInputStream(buffer), null, options);
+        options.inJustDecodeBounds = false;
+    }
+
+    // Reads the file into a buffer of the BytesBufferPool and decodes it
+    // from there. The read checks for cancellation every 64KB, and the two
+    // decoding passes do not go back to the file. Files larger than the
+    // largest buffer of the pool are decoded from the file descriptor, so
+    // they are never held in memory whole.
     public static Bitmap decodeThumbnail(
             JobContext jc, String filePath, Options options, int targetSize, int type) {
+        BytesBufferPool pool = MediaItem.getBytesBufferPool();
+        BytesBuffer buffer = null;
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(filePath);
             FileDescriptor fd = fis.getFD();
-            return decodeThumbnail(jc, fd, options, targetSize, type);
+            if (fis.getChannel().size() > pool.getMaxBufferSize()) {
+                return decodeThumbnail(jc, fd, options, targetSize, type);
+            }
+            buffer = pool.readFrom(jc, fd);
+            if (jc.isCancelled()) return null;
+            return decodeThumbnail(jc, buffer.data, buffer.offset,
+                    buffer.length, options, targetSize, type);
         } catch (Exception ex) {
             Log.w(TAG, ex);
             return null;
         } finally {
             Utils.closeSilently(fis);
+            if (buffer != null) pool.recycle(buffer);
         }
     }
 
@@ -109,6 +146,31 @@ public class DecodeUtils {
         BitmapFactory.decodeFileDescriptor(fd, null, options);
         if (jc.isCancelled()) return null;
 
+        setThumbnailSampleSize(options, targetSize, type);
+        options.inJustDecodeBounds = false;
+
+        Bitmap result = BitmapFactory.decodeFileDescriptor(fd, null, options);
+        return scaleThumbnail(result, targetSize, type);
+    }
+
+    public static Bitmap decodeThumbnail(JobContext jc, byte[] data, int offset,
+            int length, Options options, int targetSize, int type) {
+        if (options == null) options = new Options();
+        jc.setCancelListener(new DecodeCanceller(options));
+
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (jc.isCancelled()) return null;
+
+        setThumbnailSampleSize(options, targetSize, type);
+        options.inJustDecodeBounds = false;
+
+        Bitmap result = BitmapFactory.decodeByteArray(data, offset, length, options);
+        return scaleThumbnail(result, targetSize, type);
+    }
+
+    private static void setThumbnailSampleSize(
+            Options options, int targetSize, int type) {
         int w = options.outWidth;
         int h = options.outHeight;
 
@@ -130,10 +192,9 @@ public class DecodeUtils {
             float scale = (float) targetSize / Math.max(w, h);
             options.inSampleSize = BitmapUtils.computeSampleSizeLarger(scale);
         }
+    }
 
-        options.inJustDecodeBounds = false;
-
-        Bitmap result = BitmapFactory.decodeFileDescriptor(fd, null, options);
+    private static Bitmap scaleThumbnail(Bitmap result, int targetSize, int type) {
         if (result == null) return null;
 
         // We need to resize down if the decoder does not support inSampleSize
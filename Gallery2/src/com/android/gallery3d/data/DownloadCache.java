@@ -21,6 +21,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.LruCache;
@@ -35,8 +36,10 @@ import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 
 public class DownloadCache {
     private static final String TAG = "DownloadCache";
@@ -61,6 +64,9 @@ public class DownloadCache {
     private static final int FREESPACE_INDEX_CONTENT_SIZE = 3;
 
     private static final String ID_WHERE = Columns.ID + " = ?";
+    private static final String UPDATE_LAST_ACCESS = String.format(
+            "UPDATE %s SET %s = ? WHERE %s = ?",
+            TABLE_NAME, Columns.LAST_ACCESS, Columns.ID);
 
     private static final String SUM_PROJECTION[] =
             {String.format("sum(%s)", Columns.CONTENT_SIZE)};
@@ -78,6 +84,12 @@ public class DownloadCache {
     private long mTotalBytes = 0;
     private boolean mInitialized = false;
 
+    // The access times of the cache hits, by entry id, which are not in the
+    // database yet. They are written in one transaction by a background job.
+    private final HashMap<Long, Long> mPendingAccess = new HashMap<Long, Long>();
+    private boolean mFlushRequested = false;
+    private boolean mSweepRequested = false;
+
     public DownloadCache(GalleryApp application, File root, long capacity) {
         mRoot = Utils.checkNotNull(root);
         mApplication = Utils.checkNotNull(application);
@@ -120,7 +132,7 @@ public class DownloadCache {
         synchronized (mEntryMap) {
             Entry entry = mEntryMap.get(stringUrl);
             if (entry != null) {
-                updateLastAccess(entry.mId);
+                recordAccess(entry.mId);
                 return entry;
             }
         }
@@ -130,7 +142,7 @@ public class DownloadCache {
         synchronized (mTaskMap) {
             Entry entry = findEntryInDatabase(stringUrl);
             if (entry != null) {
-                updateLastAccess(entry.mId);
+                recordAccess(entry.mId);
                 return entry;
             }
 
@@ -148,34 +160,100 @@ public class DownloadCache {
         return proxy.get(jc);
     }
 
-    private void updateLastAccess(long id) {
-        ContentValues values = new ContentValues();
-        values.put(Columns.LAST_ACCESS, System.currentTimeMillis());
-        mDatabase.update(TABLE_NAME, values,
-                ID_WHERE, new String[] {String.valueOf(id)});
+    private void recordAccess(long id) {
+        synchronized (mPendingAccess) {
+            mPendingAccess.put(id, System.currentTimeMillis());
+            if (mFlushRequested) return;
+            mFlushRequested = true;
+        }
+        mApplication.getThreadPool().submit(new Job<Void>() {
+            public Void run(JobContext jc) {
+                flushAccess();
+                return null;
+            }
+        }, null, ThreadPool.PRIORITY_BACKGROUND);
+    }
+
+    private void flushAccess() {
+        HashMap<Long, Long> pending;
+        synchronized (mPendingAccess) {
+            mFlushRequested = false;
+            if (mPendingAccess.isEmpty()) return;
+            pending = new HashMap<Long, Long>(mPendingAccess);
+            mPendingAccess.clear();
+        }
+        SQLiteStatement update = mDatabase.compileStatement(UPDATE_LAST_ACCESS);
+        mDatabase.beginTransaction();
+        try {
+            for (Map.Entry<Long, Long> access : pending.entrySet()) {
+                update.bindLong(1, access.getValue());
+                update.bindLong(2, access.getKey());
+                update.execute();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+            update.close();
+        }
+    }
+
+    private synchronized void requestSweep() {
+        if (mSweepRequested || mTotalBytes <= mCapacity) return;
+        mSweepRequested = true;
+        mApplication.getThreadPool().submit(new Job<Void>() {
+            public Void run(JobContext jc) {
+                freeSomeSpaceIfNeed();
+                return null;
+            }
+        }, null, ThreadPool.PRIORITY_BACKGROUND);
     }
 
-    private synchronized void freeSomeSpaceIfNeed(int maxDeleteFileCount) {
-        if (mTotalBytes <= mCapacity) return;
+    // Deletes the least recently used entries, MAX_DELETE_COUNT rows in a
+    // transaction, until the cache is within its capacity. The files of the
+    // deleted rows are deleted outside the lock.
+    private void freeSomeSpaceIfNeed() {
+        flushAccess();
+        ArrayList<String> paths = new ArrayList<String>();
+        while (true) {
+            paths.clear();
+            synchronized (this) {
+                if (mTotalBytes <= mCapacity || !deleteEntries(paths)) {
+                    mSweepRequested = false;
+                    return;
+                }
+            }
+            for (int i = 0, n = paths.size(); i < n; i++) {
+                new File(paths.get(i)).delete();
+            }
+        }
+    }
+
+    // Deletes the rows and adds the paths of their files to paths. An entry
+    // which is being used is kept, with its row and its file. Returns false
+    // if there was nothing to delete.
+    private boolean deleteEntries(ArrayList<String> paths) {
+        long totalBytes = mTotalBytes;
+        ArrayList<Long> ids = new ArrayList<Long>();
+        ArrayList<String> urls = new ArrayList<String>();
+        ArrayList<String> candidates = new ArrayList<String>();
+        ArrayList<Long> sizes = new ArrayList<Long>();
         Cursor cursor = mDatabase.query(TABLE_NAME,
                 FREESPACE_PROJECTION, null, null, null, null, FREESPACE_ORDER_BY);
         try {
-            while (maxDeleteFileCount > 0
-                    && mTotalBytes > mCapacity && cursor.moveToNext()) {
-                long id = cursor.getLong(FREESPACE_IDNEX_ID);
+            while (ids.size() < MAX_DELETE_COUNT
+                    && totalBytes > mCapacity && cursor.moveToNext()) {
                 String url = cursor.getString(FREESPACE_INDEX_CONTENT_URL);
-                long size = cursor.getLong(FREESPACE_INDEX_CONTENT_SIZE);
-                String path = cursor.getString(FREESPACE_IDNEX_DATA);
                 boolean containsKey;
                 synchronized (mEntryMap) {
                     containsKey = mEntryMap.containsKey(url);
                 }
                 if (!containsKey) {
-                    --maxDeleteFileCount;
-                    mTotalBytes -= size;
-                    new File(path).delete();
-                    mDatabase.delete(TABLE_NAME,
-                            ID_WHERE, new String[]{String.valueOf(id)});
+                    long size = cursor.getLong(FREESPACE_INDEX_CONTENT_SIZE);
+                    ids.add(cursor.getLong(FREESPACE_IDNEX_ID));
+                    urls.add(url);
+                    candidates.add(cursor.getString(FREESPACE_IDNEX_DATA));
+                    sizes.add(size);
+                    totalBytes -= size;
                 } else {
                     // skip delete, since it is being used
                 }
@@ -183,6 +261,28 @@ public class DownloadCache {
         } finally {
             cursor.close();
         }
+        if (ids.isEmpty()) return false;
+
+        // Check again, since an entry may have been used since the query.
+        long freedBytes = 0;
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0, n = ids.size(); i < n; i++) {
+                synchronized (mEntryMap) {
+                    // skip delete, since it is being used
+                    if (mEntryMap.containsKey(urls.get(i))) continue;
+                }
+                mDatabase.delete(TABLE_NAME,
+                        ID_WHERE, new String[] {String.valueOf(ids.get(i))});
+                paths.add(candidates.get(i));
+                freedBytes += sizes.get(i);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        mTotalBytes -= freedBytes;
+        return !paths.isEmpty();
     }
 
     private synchronized long insertEntry(String url, File file) {
@@ -217,7 +317,7 @@ public class DownloadCache {
         } finally {
             cursor.close();
         }
-        if (mTotalBytes > mCapacity) freeSomeSpaceIfNeed(MAX_DELETE_COUNT);
+        requestSweep();
     }
 
     private final class DatabaseHelper extends SQLiteOpenHelper {
@@ -306,8 +406,8 @@ public class DownloadCache {
                     proxy.setResult(entry);
                 }
                 mTaskMap.remove(mUrl);
-                freeSomeSpaceIfNeed(MAX_DELETE_COUNT);
             }
+            requestSweep();
         }
 
         public File run(JobContext jc) {
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.MediaSet.ItemConsumer;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.util.ArrayList;
+
+// EnumeratePipeline does what MediaSet.enumerateTotalMediaItems() does, but
+// reads the media sets of the tree on two threads. The reading (the provider
+// queries and the item construction) is what takes the time; the consumers
+// only copy a few fields of each item.
+//
+// The calling thread walks the tree first. Then it and a helper on the pool
+// each take the next set nobody has taken, up to MAX_READ_AHEAD sets after
+// the one to be consumed next, and read it. The items of a set read ahead
+// are kept until the calling thread gets to the set. The consumer is only
+// called by the calling thread, in index order.
+//
+// The calling thread holds DataManager.LOCK. It does not return before the
+// helper has finished the set it is reading, so no one else reloads a set
+// while it is read. Each set is read by one thread, through its own
+// enumerateMediaItems(), and LocalAlbum and LocalMergeAlbum guard their state
+// for readers on other threads.
+//
+// The calling thread only waits for a set which the helper is reading, never
+// for a helper which is still queued in the pool. A helper is only submitted
+// when there is a set to read ahead, and it returns as soon as there is none
+// it may take, so it never holds a thread of the pool while it waits.
+class EnumeratePipeline implements Job<Void> {
+    @SuppressWarnings("unused")
+    private static final String TAG = "EnumeratePipeline";
+
+    // The number of sets which may be read after the one to be consumed
+    // next.
+    private static final int MAX_READ_AHEAD = 2;
+    // The thread pool runs two CPU jobs at a time, so one is left for the
+    // jobs the user is waiting for.
+    private static final int MAX_HELPER_COUNT = 1;
+
+    private final ItemConsumer mConsumer;
+    private final ThreadPool mThreadPool;
+
+    // The sets whose own items are enumerated, in the order of
+    // enumerateTotalMediaItems(), and the items read ahead for them (by
+    // index, as a set may enumerate its items in any order) with the count
+    // their enumerateMediaItems() returned.
+    private final ArrayList<MediaSet> mSets = new ArrayList<MediaSet>();
+    private ArrayList<MediaItem>[] mItems;
+    private int[] mCounts;
+    private boolean[] mIsRead;
+
+    // All the fields below are guarded by "this".
+    private int mCurrentSet;
+    private int mNextSet;
+    private int mHelperCount;
+    private int mReadingCount;
+    private boolean mStopped;
+    private Throwable mFailure;
+
+    EnumeratePipeline(ItemConsumer consumer, ThreadPool threadPool) {
+        mConsumer = consumer;
+        mThreadPool = threadPool;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void enumerate(MediaSet root) {
+        addSets(root);
+        int n = mSets.size();
+        mItems = new ArrayList[n];
+        mCounts = new int[n];
+        mIsRead = new boolean[n];
+
+        try {
+            int index = 0;
+            int i = 0;
+            while (i < n) {
+                int next = takeSet(i);
+                if (next == i) {
+                    // The set is next to be consumed, read it right into the
+                    // consumer.
+                    try {
+                        index += mSets.get(i).enumerateMediaItems(mConsumer, index);
+                    } finally {
+                        synchronized (this) {
+                            --mReadingCount;
+                        }
+                    }
+                    ++i;
+                } else if (next > i) {
+                    readSet(next);
+                } else {
+                    ArrayList<MediaItem> items;
+                    synchronized (this) {
+                        items = mItems[i];
+                        mItems[i] = null;
+                    }
+                    for (int j = 0, m = items.size(); j < m; j++) {
+                        MediaItem item = items.get(j);
+                        if (item != null) mConsumer.consume(index + j, item);
+                    }
+                    index += mCounts[i];
+                    ++i;
+                }
+            }
+        } finally {
+            // Wait for the set being read by the helper, if any.
+            synchronized (this) {
+                mStopped = true;
+                while (mReadingCount > 0) {
+                    Utils.waitWithoutInterrupt(this);
+                }
+            }
+        }
+    }
+
+    // Adds the sets in the order enumerateTotalMediaItems() enumerates them.
+    private void addSets(MediaSet set) {
+        mSets.add(set);
+        for (int i = 0, n = set.getSubMediaSetCount(); i < n; i++) {
+            addSets(set.getSubMediaSet(i));
+        }
+    }
+
+    // Returns the next set for the calling thread to read, or -1 if the set
+    // to be consumed next has been read. Waits while the helper is reading
+    // that set and there is nothing else to read.
+    private synchronized int takeSet(int current) {
+        mCurrentSet = current;
+        while (true) {
+            rethrowFailure();
+            if (mIsRead[current]) return -1;
+            if (canReadAhead()) {
+                ++mReadingCount;
+                int next = mNextSet++;
+                submitHelperIfNeeded();
+                return next;
+            }
+            Utils.waitWithoutInterrupt(this);
+        }
+    }
+
+    // Caller should hold synchronized on "this".
+    private void submitHelperIfNeeded() {
+        if (mHelperCount < MAX_HELPER_COUNT && canReadAhead()) {
+            ++mHelperCount;
+            mThreadPool.submit(this, null, ThreadPool.PRIORITY_BACKGROUND);
+        }
+    }
+
+    // Caller should hold synchronized on "this".
+    private boolean canReadAhead() {
+        return !mStopped && mNextSet < mSets.size()
+                && mNextSet <= mCurrentSet + MAX_READ_AHEAD;
+    }
+
+    // The helper job.
+    @Override
+    public Void run(JobContext jc) {
+        while (true) {
+            int next;
+            synchronized (this) {
+                if (!canReadAhead()) {
+                    --mHelperCount;
+                    return null;
+                }
+                ++mReadingCount;
+                next = mNextSet++;
+            }
+            readSet(next);
+        }
+    }
+
+    // Reads the items of a set ahead. A failure is rethrown by the calling
+    // thread.
+    private void readSet(int i) {
+        final ArrayList<MediaItem> items = new ArrayList<MediaItem>();
+        Throwable failure = null;
+        int count = 0;
+        try {
+            count = mSets.get(i).enumerateMediaItems(new ItemConsumer() {
+                @Override
+                public void consume(int index, MediaItem item) {
+                    while (items.size() <= index) items.add(null);
+                    items.set(index, item);
+                }
+            }, 0);
+        } catch (Throwable t) {
+            failure = t;
+        }
+
+        synchronized (this) {
+            --mReadingCount;
+            if (failure != null) {
+                if (mFailure == null) mFailure = failure;
+                mStopped = true;
+            } else {
+                mItems[i] = items;
+                mCounts[i] = count;
+                mIsRead[i] = true;
+            }
+            notifyAll();
+        }
+    }
+
+    // Caller should hold synchronized on "this". MediaSet.enumerateMediaItems()
+    // throws no checked exceptions, so the failure is unchecked.
+    private void rethrowFailure() {
+        if (mFailure == null) return;
+        if (mFailure instanceof Error) throw (Error) mFailure;
+        throw (RuntimeException) mFailure;
+    }
+}
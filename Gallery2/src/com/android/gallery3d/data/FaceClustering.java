@@ -21,6 +21,7 @@ import android.graphics.Rect;
 
 import com.ti.omap.android.camera.R;
 import com.android.gallery3d.picasasource.PicasaSource;
+import com.android.gallery3d.util.ThreadPool;
 
 import java.util.ArrayList;
 import java.util.TreeMap;
@@ -32,6 +33,7 @@ public class FaceClustering extends Clustering {
     private FaceCluster[] mClusters;
     private String mUntaggedString;
     private Context mContext;
+    private ThreadPool mThreadPool;
 
     private class FaceCluster {
         ArrayList<Path> mPaths = new ArrayList<Path>();
@@ -82,9 +84,10 @@ public class FaceClustering extends Clustering {
         }
     }
 
-    public FaceClustering(Context context) {
+    public FaceClustering(Context context, ThreadPool threadPool) {
         mUntaggedString = context.getResources().getString(R.string.untagged);
         mContext = context;
+        mThreadPool = threadPool;
     }
 
     @Override
@@ -110,7 +113,7 @@ public class FaceClustering extends Clustering {
                     cluster.add(item, j);
                 }
             }
-        });
+        }, mThreadPool);
 
         int m = map.size();
         mClusters = map.values().toArray(new FaceCluster[m + ((untagged.size() > 0) ? 1 : 0)]);
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+// Locates the cached images of a batch of items in one pass over the image
+// cache. The sliding windows submit one of these for the slots they have just
+// filled, ahead of the ImageCacheRequests of those slots.
+public class ImageCacheLocateRequest implements Job<Void> {
+    private final GalleryApp mApplication;
+    private final Path[] mPaths;
+    private final int mType;
+
+    public ImageCacheLocateRequest(GalleryApp application, Path[] paths, int type) {
+        mApplication = application;
+        mPaths = paths;
+        mType = type;
+    }
+
+    @Override
+    public Void run(JobContext jc) {
+        if (jc.isCancelled()) return null;
+        mApplication.getImageCacheService().locateImageData(mPaths, mType);
+        return null;
+    }
+}
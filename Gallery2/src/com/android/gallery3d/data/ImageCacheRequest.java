@@ -21,7 +21,7 @@ import android.graphics.BitmapFactory;
 
 import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.BitmapUtils;
-import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
+import com.android.gallery3d.common.BlobCache.MappedLookupRequest;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
@@ -30,13 +30,15 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
 
     protected GalleryApp mApplication;
     private Path mPath;
+    private long mVersion;
     private int mType;
     private int mTargetSize;
 
     public ImageCacheRequest(GalleryApp application,
-            Path path, int type, int targetSize) {
+            Path path, long version, int type, int targetSize) {
         mApplication = application;
         mPath = path;
+        mVersion = version;
         mType = type;
         mTargetSize = targetSize;
     }
@@ -46,22 +48,27 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
         String debugTag = mPath + "," +
                  ((mType == MediaItem.TYPE_THUMBNAIL) ? "THUMB" :
                  (mType == MediaItem.TYPE_MICROTHUMBNAIL) ? "MICROTHUMB" : "?");
+        // A thumbnail which was given back recently needs no decoding.
+        Bitmap cached = MediaItem.getThumbnailCache().get(
+                mPath, mType, mVersion);
+        if (cached != null) return cached;
+
         ImageCacheService cacheService = mApplication.getImageCacheService();
 
-        BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
+        // The cached data is decoded straight from the mapped cache file.
+        MappedLookupRequest request = cacheService.getImageData(mPath, mType);
         try {
-            boolean found = cacheService.getImageData(mPath, mType, buffer);
             if (jc.isCancelled()) return null;
-            if (found) {
+            if (request != null) {
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inPreferredConfig = Bitmap.Config.ARGB_8888;
                 Bitmap bitmap;
                 if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
                     bitmap = MediaItem.getMicroThumbPool().decode(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
+                            request.data, options);
                 } else {
                     bitmap = MediaItem.getThumbPool().decode(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
+                            request.data, options);
                 }
                 if (bitmap == null && !jc.isCancelled()) {
                     Log.w(TAG, "decode cached failed " + debugTag);
@@ -69,7 +76,7 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
                 return bitmap;
             }
         } finally {
-            MediaItem.getBytesBufferPool().recycle(buffer);
+            cacheService.releaseImageData(request);
         }
         Bitmap bitmap = onDecodeOriginal(jc, mType);
         if (jc.isCancelled()) return null;
@@ -20,13 +20,20 @@ import android.content.Context;
 
 import com.android.gallery3d.common.BlobCache;
 import com.android.gallery3d.common.BlobCache.LookupRequest;
+import com.android.gallery3d.common.BlobCache.MappedLookupRequest;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.CacheManager;
-import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ImageCacheService {
     @SuppressWarnings("unused")
@@ -35,14 +42,67 @@ public class ImageCacheService {
     private static final String IMAGE_CACHE_FILE = "imgcache";
     private static final int IMAGE_CACHE_MAX_ENTRIES = 5000;
     private static final int IMAGE_CACHE_MAX_BYTES = 200 * 1024 * 1024;
-    private static final int IMAGE_CACHE_VERSION = 4;
+    // Version 5 replaced the "path+type" string in front of each image with
+    // KEY_CHECK_SIZE bytes of hash. Older caches fail the version check in
+    // BlobCache and are reset.
+    private static final int IMAGE_CACHE_VERSION = 5;
+
+    // The key of an image is 128 bits wide. The first half, a crc64 of the
+    // path and type, is the key in BlobCache. The second half, an FNV-1a hash
+    // of the same, is stored in front of the image data to tell apart the
+    // images whose crc64 collide.
+    private static final int KEY_CHECK_SIZE = 8;
+
+    private static final long FNV64_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV64_PRIME = 0x100000001b3L;
+
+    // The max number of items remembered from locateImageData(). It only
+    // needs to cover a few sliding windows.
+    private static final int LOCATED_LIMIT = 512;
+
+    // The max bytes of hot images one BlobCache.compact() call copies, so the
+    // images keep being found after the next region flip. The compaction job
+    // releases the cache writer lock between the steps.
+    private static final int COMPACT_STEP_BYTES = 128 * 1024;
+
+    private static class LocatedImage {
+        final int type;
+        final long checkKey;
+        final MappedLookupRequest request;
+
+        LocatedImage(int type, long checkKey, MappedLookupRequest request) {
+            this.type = type;
+            this.checkKey = checkKey;
+            this.request = request;
+        }
+    }
 
     private BlobCache mCache;
+    private final ThreadPool mThreadPool;
+
+    // Set while a compaction job is submitted or running.
+    private final AtomicBoolean mCompacting = new AtomicBoolean();
 
-    public ImageCacheService(Context context) {
+    // The hits and misses of getImageData(Path, int).
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    // The items found by locateImageData() and not yet asked for by
+    // getImageData(), guarded by itself.
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<Path, LocatedImage> mLocated =
+            new LinkedHashMap<Path, LocatedImage>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, LocatedImage> eldest) {
+            return size() > LOCATED_LIMIT;
+        }
+    };
+
+    public ImageCacheService(Context context, ThreadPool threadPool) {
         mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
                 IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
                 IMAGE_CACHE_VERSION);
+        mThreadPool = threadPool;
     }
 
     /**
@@ -55,18 +115,18 @@ public class ImageCacheService {
      * @return true if the image data is found; false if not found.
      */
     public boolean getImageData(Path path, int type, BytesBuffer buffer) {
-        byte[] key = makeKey(path, type);
-        long cacheKey = Utils.crc64Long(key);
+        String name = path.toString();
         try {
             LookupRequest request = new LookupRequest();
-            request.key = cacheKey;
+            request.key = makeCacheKey(name, type);
             request.buffer = buffer.data;
-            synchronized (mCache) {
-                if (!mCache.lookup(request)) return false;
-            }
-            if (isSameKey(key, request.buffer)) {
+            // BlobCache supports concurrent lookups, so decoder threads
+            // do not need to serialize here.
+            if (!mCache.lookup(request)) return false;
+            if (request.length >= KEY_CHECK_SIZE && makeCheckKey(name, type)
+                    == ByteBuffer.wrap(request.buffer).getLong(0)) {
                 buffer.data = request.buffer;
-                buffer.offset = key.length;
+                buffer.offset = KEY_CHECK_SIZE;
                 buffer.length = request.length - buffer.offset;
                 return true;
             }
@@ -76,35 +136,184 @@ public class ImageCacheService {
         return false;
     }
 
+    /**
+     * Gets the cached image data for the given <code>path</code> and <code>type</code>
+     * without copying it out of the cache file.
+     *
+     * The <code>data</code> of the returned request is a read-only view of the
+     * image data inside the memory mapped cache file. The caller must pass the
+     * request to {@link #releaseImageData} once it is done with the data, and
+     * before it puts any image data into the cache.
+     *
+     * If the item was passed to {@link #locateImageData} earlier, the key and the
+     * location found there are used instead of probing the cache again.
+     *
+     * @return the request holding the image data, or null if not found.
+     */
+    public MappedLookupRequest getImageData(Path path, int type) {
+        LocatedImage located;
+        synchronized (mLocated) {
+            located = mLocated.remove(path);
+        }
+
+        long checkKey;
+        MappedLookupRequest request;
+        if (located != null && located.type == type) {
+            checkKey = located.checkKey;
+            request = located.request;
+        } else {
+            String name = path.toString();
+            checkKey = makeCheckKey(name, type);
+            request = new MappedLookupRequest();
+            request.key = makeCacheKey(name, type);
+        }
+
+        try {
+            if (mCache.lookup(request)) {
+                ByteBuffer data = request.data;
+                if (data.remaining() >= KEY_CHECK_SIZE
+                        && checkKey == data.getLong(data.position())) {
+                    data.position(data.position() + KEY_CHECK_SIZE);
+                    mHitCount.incrementAndGet();
+                    return request;
+                }
+                mCache.release(request);
+            }
+        } catch (IOException ex) {
+            // ignore.
+        }
+        mMissCount.incrementAndGet();
+        return null;
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    public void releaseImageData(MappedLookupRequest request) {
+        if (request != null) mCache.release(request);
+    }
+
+    /**
+     * Finds the cached image data of a batch of items, e.g. all the slots of a
+     * sliding window, with one pass over the cache index. Nothing is read
+     * yet: a following {@link #getImageData(Path, int)} of one of the items
+     * reuses the key and the location found here.
+     *
+     * @return the number of items found in the cache.
+     */
+    public int locateImageData(Path[] paths, int type) {
+        int n = paths.length;
+        long[] checkKeys = new long[n];
+        MappedLookupRequest[] requests = new MappedLookupRequest[n];
+        for (int i = 0; i < n; ++i) {
+            String name = paths[i].toString();
+            checkKeys[i] = makeCheckKey(name, type);
+            requests[i] = new MappedLookupRequest();
+            requests[i].key = makeCacheKey(name, type);
+        }
+
+        int found = mCache.locate(requests, n);
+
+        synchronized (mLocated) {
+            for (int i = 0; i < n; ++i) {
+                mLocated.put(paths[i],
+                        new LocatedImage(type, checkKeys[i], requests[i]));
+            }
+        }
+        return found;
+    }
+
     public void putImageData(Path path, int type, byte[] value) {
-        byte[] key = makeKey(path, type);
-        long cacheKey = Utils.crc64Long(key);
-        ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
-        buffer.put(key);
-        buffer.put(value);
-        synchronized (mCache) {
+        String name = path.toString();
+        try {
+            mCache.insert(makeCacheKey(name, type),
+                    makeBlob(makeCheckKey(name, type), value));
+        } catch (IOException ex) {
+            // ignore.
+        }
+        startCompactionIfNeeded();
+    }
+
+    /**
+     * Puts the image data of a batch of items into the cache, with one
+     * acquisition of the cache writer lock and one index sync for the batch.
+     */
+    public void putImageData(Path[] paths, int type, byte[][] values) {
+        int n = paths.length;
+        long[] cacheKeys = new long[n];
+        byte[][] blobs = new byte[n][];
+        for (int i = 0; i < n; ++i) {
+            String name = paths[i].toString();
+            cacheKeys[i] = makeCacheKey(name, type);
+            blobs[i] = makeBlob(makeCheckKey(name, type), values[i]);
+        }
+        try {
+            mCache.insert(cacheKeys, blobs, n);
+        } catch (IOException ex) {
+            // ignore.
+        }
+        startCompactionIfNeeded();
+    }
+
+    // Compaction copies blobs, so it is left to a background job rather than
+    // done on the decode thread which just put an image.
+    private void startCompactionIfNeeded() {
+        if (!mCache.needsCompaction() || !mCompacting.compareAndSet(false, true)) {
+            return;
+        }
+        mThreadPool.submit(new CompactJob(), null, ThreadPool.PRIORITY_BACKGROUND);
+    }
+
+    private class CompactJob implements Job<Void> {
+        @Override
+        public Void run(JobContext jc) {
             try {
-                mCache.insert(cacheKey, buffer.array());
+                while (!jc.isCancelled() && mCache.needsCompaction()) {
+                    mCache.compact(COMPACT_STEP_BYTES);
+                }
             } catch (IOException ex) {
                 // ignore.
+            } finally {
+                mCompacting.set(false);
             }
+            return null;
         }
     }
 
-    private static byte[] makeKey(Path path, int type) {
-        return GalleryUtils.getBytes(path.toString() + "+" + type);
+    private static byte[] makeBlob(long checkKey, byte[] value) {
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_CHECK_SIZE + value.length);
+        buffer.putLong(checkKey);
+        buffer.put(value);
+        return buffer.array();
     }
 
-    private static boolean isSameKey(byte[] key, byte[] buffer) {
-        int n = key.length;
-        if (buffer.length < n) {
-            return false;
+    // The BlobCache key of an image: a crc64 of the chars of the path,
+    // followed by the type.
+    static long makeCacheKey(String path, int type) {
+        long crc = Utils.crc64Long(path);
+        for (int i = 0; i < 4; ++i) {
+            crc = Utils.crc64Long(crc, (byte) (type >> (8 * i)));
         }
-        for (int i = 0; i < n; ++i) {
-            if (key[i] != buffer[i]) {
-                return false;
-            }
+        return crc;
+    }
+
+    // The check key stored with an image: an FNV-1a hash of the chars of
+    // the path, followed by the type.
+    static long makeCheckKey(String path, int type) {
+        long hash = FNV64_OFFSET_BASIS;
+        for (int i = 0, n = path.length(); i < n; ++i) {
+            char ch = path.charAt(i);
+            hash = (hash ^ (ch & 0xff)) * FNV64_PRIME;
+            hash = (hash ^ (ch >> 8)) * FNV64_PRIME;
+        }
+        for (int i = 0; i < 4; ++i) {
+            hash = (hash ^ ((type >> (8 * i)) & 0xff)) * FNV64_PRIME;
         }
-        return true;
+        return hash;
     }
 }
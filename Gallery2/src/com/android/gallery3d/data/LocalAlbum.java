@@ -41,8 +41,30 @@ public class LocalAlbum extends MediaSet {
     private static final String[] COUNT_PROJECTION = { "count(*)" };
 
     private static final int INVALID_COUNT = -1;
+
+    // The sort key (date taken, id) of every KEY_INTERVAL-th item is kept
+    // once it has been read, so a page can be queried from the nearest key
+    // before it rather than from an OFFSET counted from the first item.
+    private static final int KEY_INTERVAL = 64;
+    private static final int INVALID_KEY_ID = 0;
+    private static final long NULL_DATE_TAKEN = Long.MIN_VALUE;
+
+    // The keys read at one data version. reload() replaces the table, so a
+    // reader which started before it cannot put its keys into the new one.
+    private static class KeyTable {
+        final long version;
+        long[] dates = new long[0];
+        int[] ids = new int[0];
+
+        KeyTable(long version) {
+            this.version = version;
+        }
+    }
+
     private final String mWhereClause;
     private final String mOrderClause;
+    private final String mKeyWhereClause;
+    private final String mNullKeyWhereClause;
     private final Uri mBaseUri;
     private final String[] mProjection;
 
@@ -55,6 +77,11 @@ public class LocalAlbum extends MediaSet {
     private final Path mItemPath;
     private int mCachedCount = INVALID_COUNT;
 
+    // getMediaItem() is also called without DataManager.LOCK (e.g. by
+    // SelectionManager), so the key table has its own lock.
+    private final Object mKeyLock = new Object();
+    private KeyTable mKeys;  // guarded by mKeyLock
+
     public LocalAlbum(Path path, GalleryApp application, int bucketId,
             boolean isImage, String name) {
         super(path, nextVersionNumber());
@@ -68,6 +95,13 @@ public class LocalAlbum extends MediaSet {
             mWhereClause = ImageColumns.BUCKET_ID + " = ?";
             mOrderClause = ImageColumns.DATE_TAKEN + " DESC, "
                     + ImageColumns._ID + " DESC";
+            mKeyWhereClause = mWhereClause + " AND (" + ImageColumns.DATE_TAKEN
+                    + " < ? OR " + ImageColumns.DATE_TAKEN + " IS NULL OR ("
+                    + ImageColumns.DATE_TAKEN + " = ? AND "
+                    + ImageColumns._ID + " <= ?))";
+            mNullKeyWhereClause = mWhereClause + " AND "
+                    + ImageColumns.DATE_TAKEN + " IS NULL AND "
+                    + ImageColumns._ID + " <= ?";
             mBaseUri = Images.Media.EXTERNAL_CONTENT_URI;
             mProjection = LocalImage.PROJECTION;
             mItemPath = LocalImage.ITEM_PATH;
@@ -75,12 +109,20 @@ public class LocalAlbum extends MediaSet {
             mWhereClause = VideoColumns.BUCKET_ID + " = ?";
             mOrderClause = VideoColumns.DATE_TAKEN + " DESC, "
                     + VideoColumns._ID + " DESC";
+            mKeyWhereClause = mWhereClause + " AND (" + VideoColumns.DATE_TAKEN
+                    + " < ? OR " + VideoColumns.DATE_TAKEN + " IS NULL OR ("
+                    + VideoColumns.DATE_TAKEN + " = ? AND "
+                    + VideoColumns._ID + " <= ?))";
+            mNullKeyWhereClause = mWhereClause + " AND "
+                    + VideoColumns.DATE_TAKEN + " IS NULL AND "
+                    + VideoColumns._ID + " <= ?";
             mBaseUri = Video.Media.EXTERNAL_CONTENT_URI;
             mProjection = LocalVideo.PROJECTION;
             mItemPath = LocalVideo.ITEM_PATH;
         }
 
         mNotifier = new ChangeNotifier(this, mBaseUri, application);
+        mKeys = new KeyTable(mDataVersion);
     }
 
     public LocalAlbum(Path path, GalleryApp application, int bucketId,
@@ -105,47 +147,148 @@ public class LocalAlbum extends MediaSet {
 
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
-        DataManager dataManager = mApplication.getDataManager();
-        Uri uri = mBaseUri.buildUpon()
-                .appendQueryParameter("limit", start + "," + count).build();
         ArrayList<MediaItem> list = new ArrayList<MediaItem>();
         GalleryUtils.assertNotInRenderThread();
+
+        // Start from the nearest known key at or before start. The items
+        // sort in descending (date taken, id), and NULL dates come last.
+        KeyTable keys;
+        int mark;
+        long keyDate = 0;
+        int keyId = INVALID_KEY_ID;
+        synchronized (mKeyLock) {
+            keys = mKeys;
+            mark = Math.min(start / KEY_INTERVAL, keys.ids.length - 1);
+            while (mark > 0 && keys.ids[mark] == INVALID_KEY_ID) --mark;
+            if (mark > 0) {
+                keyDate = keys.dates[mark];
+                keyId = keys.ids[mark];
+            }
+        }
+        String where = mWhereClause;
+        String[] whereArgs;
+        String bucketId = String.valueOf(mBucketId);
+        if (mark <= 0) {
+            mark = 0;
+            whereArgs = new String[] {bucketId};
+        } else if (keyDate == NULL_DATE_TAKEN) {
+            where = mNullKeyWhereClause;
+            whereArgs = new String[] {bucketId, String.valueOf(keyId)};
+        } else {
+            where = mKeyWhereClause;
+            String date = String.valueOf(keyDate);
+            whereArgs = new String[] {bucketId, date, date,
+                    String.valueOf(keyId)};
+        }
+        int base = mark * KEY_INTERVAL;
+
+        Uri uri = mBaseUri.buildUpon().appendQueryParameter(
+                "limit", (start - base) + "," + count).build();
         Cursor cursor = mResolver.query(
-                uri, mProjection, mWhereClause,
-                new String[]{String.valueOf(mBucketId)},
-                mOrderClause);
+                uri, mProjection, where, whereArgs, mOrderClause);
         if (cursor == null) {
             Log.w(TAG, "query fail: " + uri);
             return list;
         }
 
+        DataManager dataManager = mApplication.getDataManager();
         try {
-            while (cursor.moveToNext()) {
-                int id = cursor.getInt(0);  // _id must be in the first column
-                Path childPath = mItemPath.getChild(id);
-                MediaItem item = loadOrUpdateItem(childPath, cursor,
-                        dataManager, mApplication, mIsImage);
-                list.add(item);
+            for (int i = start; cursor.moveToNext(); ++i) {
+                list.add(readItem(cursor, i, keys, dataManager));
             }
         } finally {
             cursor.close();
         }
+        if (list.size() < count && (list.size() > 0 || start == 0)) {
+            mCachedCount = start + list.size();
+        }
         return list;
     }
 
+    // Reads the item at the current row of the cursor, which is at the given
+    // position in the album, and remembers its key if it is at KEY_INTERVAL.
+    // keys is the table which was current when the query was made.
+    private MediaItem readItem(Cursor cursor, int position, KeyTable keys,
+            DataManager dataManager) {
+        int id = cursor.getInt(0);  // _id must be in the first column
+        if (position % KEY_INTERVAL == 0) {
+            int dateIndex = mIsImage
+                    ? LocalImage.INDEX_DATE_TAKEN : LocalVideo.INDEX_DATE_TAKEN;
+            putKey(keys, position / KEY_INTERVAL, cursor.isNull(dateIndex)
+                    ? NULL_DATE_TAKEN : cursor.getLong(dateIndex), id);
+        }
+        Path childPath = mItemPath.getChild(id);
+        return loadOrUpdateItem(childPath, cursor,
+                dataManager, mApplication, mIsImage);
+    }
+
+    private void putKey(KeyTable keys, int mark, long dateTaken, int id) {
+        synchronized (mKeyLock) {
+            // The key was read before a reload, so it may be stale.
+            if (keys.version != mKeys.version) return;
+            if (mark >= keys.ids.length) {
+                int size = Math.max(mark + 1, keys.ids.length * 2);
+                long[] dates = new long[size];
+                int[] ids = new int[size];
+                System.arraycopy(keys.dates, 0, dates, 0, keys.dates.length);
+                System.arraycopy(keys.ids, 0, ids, 0, keys.ids.length);
+                keys.dates = dates;
+                keys.ids = ids;
+            }
+            keys.dates[mark] = dateTaken;
+            keys.ids[mark] = id;
+        }
+    }
+
+    // Streams all the items from one cursor, instead of querying a page at a
+    // time. The cursor window is filled as the items are read.
+    @Override
+    protected int enumerateMediaItems(ItemConsumer consumer, int startIndex) {
+        GalleryUtils.assertNotInRenderThread();
+        KeyTable keys;
+        synchronized (mKeyLock) {
+            keys = mKeys;
+        }
+        Cursor cursor = mResolver.query(mBaseUri, mProjection, mWhereClause,
+                new String[]{String.valueOf(mBucketId)}, mOrderClause);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + mBaseUri);
+            return 0;
+        }
+
+        DataManager dataManager = mApplication.getDataManager();
+        int position = 0;
+        try {
+            while (cursor.moveToNext()) {
+                consumer.consume(startIndex + position,
+                        readItem(cursor, position, keys, dataManager));
+                ++position;
+            }
+        } finally {
+            cursor.close();
+        }
+        mCachedCount = position;
+        return position;
+    }
+
+    // Two sets with the same item may be read on different threads (see
+    // EnumeratePipeline), so the item is looked up and created under the lock
+    // of its path.
     private static MediaItem loadOrUpdateItem(Path path, Cursor cursor,
             DataManager dataManager, GalleryApp app, boolean isImage) {
-        LocalMediaItem item = (LocalMediaItem) dataManager.peekMediaObject(path);
-        if (item == null) {
-            if (isImage) {
-                item = new LocalImage(path, app, cursor);
+        synchronized (path) {
+            LocalMediaItem item = (LocalMediaItem) dataManager.peekMediaObject(path);
+            if (item == null) {
+                if (isImage) {
+                    item = new LocalImage(path, app, cursor);
+                } else {
+                    item = new LocalVideo(path, app, cursor);
+                }
             } else {
-                item = new LocalVideo(path, app, cursor);
+                item.updateContent(cursor);
             }
-        } else {
-            item.updateContent(cursor);
+            return item;
         }
-        return item;
     }
 
     // The pids array are sorted by the (path) id.
@@ -246,10 +389,18 @@ public class LocalAlbum extends MediaSet {
         if (mNotifier.isDirty()) {
             mDataVersion = nextVersionNumber();
             mCachedCount = INVALID_COUNT;
+            synchronized (mKeyLock) {
+                mKeys = new KeyTable(mDataVersion);
+            }
         }
         return mDataVersion;
     }
 
+    // For testing only. Fake there is a ContentObserver.onChange() event.
+    void fakeChange() {
+        mNotifier.fakeChange();
+    }
+
     @Override
     public int getSupportedOperations() {
         return SUPPORT_DELETE | SUPPORT_SHARE | SUPPORT_INFO;
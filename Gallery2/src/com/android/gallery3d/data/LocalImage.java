@@ -51,7 +51,7 @@ public class LocalImage extends LocalMediaItem {
     private static final int INDEX_MIME_TYPE = 2;
     private static final int INDEX_LATITUDE = 3;
     private static final int INDEX_LONGITUDE = 4;
-    private static final int INDEX_DATE_TAKEN = 5;
+    static final int INDEX_DATE_TAKEN = 5;
     private static final int INDEX_DATE_ADDED = 6;
     private static final int INDEX_DATE_MODIFIED = 7;
     private static final int INDEX_DATA = 8;
@@ -148,15 +148,17 @@ public class LocalImage extends LocalMediaItem {
 
     @Override
     public Job<Bitmap> requestImage(int type) {
-        return new LocalImageRequest(mApplication, mPath, type, filePath);
+        return new LocalImageRequest(mApplication, mPath, getDataVersion(),
+                type, filePath);
     }
 
     public static class LocalImageRequest extends ImageCacheRequest {
         private String mLocalFilePath;
 
-        LocalImageRequest(GalleryApp application, Path path, int type,
-                String localFilePath) {
-            super(application, path, type, MediaItem.getTargetSize(type));
+        LocalImageRequest(GalleryApp application, Path path, long version,
+                int type, String localFilePath) {
+            super(application, path, version, type,
+                    MediaItem.getTargetSize(type));
             mLocalFilePath = localFilePath;
         }
 
@@ -19,38 +19,69 @@ package com.android.gallery3d.data;
 import android.net.Uri;
 import android.provider.MediaStore;
 
-import java.lang.ref.SoftReference;
+import com.android.gallery3d.util.Future;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // MergeAlbum merges items from two or more MediaSets. It uses a Comparator to
 // determine the order of items. The items are assumed to be sorted in the input
 // media sets (with the same order that the Comparator uses).
 //
 // This only handles MediaItems, not SubMediaSets.
+//
+// The merge position of every INDEX_INTERVAL items is kept in a dense index,
+// so getMediaItem() can start merging from the nearest mark before the
+// requested position. The index is extended in order from the start, by
+// getMediaItem() as needed and by a background job after each reload.
+//
+// getMediaItem() may be called without DataManager.LOCK, so the index, the
+// mergers and the fetchers are guarded by mLock. The background job takes
+// mLock for INDEX_BUILD_STEP items at a time, and reads the sources only
+// through their getMediaItem().
 public class LocalMergeAlbum extends MediaSet implements ContentListener {
     @SuppressWarnings("unused")
     private static final String TAG = "LocalMergeAlbum";
     private static final int PAGE_SIZE = 64;
+    private static final int CACHED_PAGE_COUNT = 8;
+    private static final int INDEX_INTERVAL = 16;
+    private static final int INDEX_BUILD_STEP = PAGE_SIZE;
 
     private final Comparator<MediaItem> mComparator;
     private final MediaSet[] mSources;
+    private final ThreadPool mThreadPool;
+    private final Object mLock = new Object();
 
     private String mName;
     private FetchCache[] mFetcher;
     private int mSupportedOperation;
     private int mBucketId;
 
-    // mIndex maps global position to the position of each underlying media sets.
-    private TreeMap<Integer, int[]> mIndex = new TreeMap<Integer, int[]>();
-
-    public LocalMergeAlbum(
-            Path path, Comparator<MediaItem> comparator, MediaSet[] sources, int bucketId) {
+    // mIndex holds the position in each underlying media set for every
+    // INDEX_INTERVAL items of the merged list: the positions for global
+    // position i * INDEX_INTERVAL are at [i * mSources.length,
+    // (i + 1) * mSources.length).
+    private int[] mIndex = new int[0];
+    private int mIndexMarkCount;
+
+    // The merger at the end of the index, and the single page fetchers it
+    // reads the sources with. It is null if the index covers all the items.
+    private Merger mIndexMerger;
+    private FetchCache[] mIndexFetcher;
+    private int mIndexGeneration;
+    private Future<Void> mIndexBuilder;
+
+    public LocalMergeAlbum(Path path, Comparator<MediaItem> comparator,
+            MediaSet[] sources, int bucketId, ThreadPool threadPool) {
         super(path, INVALID_DATA_VERSION);
         mComparator = comparator;
         mSources = sources;
+        mThreadPool = threadPool;
         mName = sources.length == 0 ? "" : sources[0].getName();
         mBucketId = bucketId;
         for (MediaSet set : mSources) {
@@ -58,26 +89,66 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         }
     }
 
+    // Caller should hold mLock.
     private void updateData() {
-        ArrayList<MediaSet> matches = new ArrayList<MediaSet>();
         int supported = mSources.length == 0 ? 0 : MediaItem.SUPPORT_ALL;
         mFetcher = new FetchCache[mSources.length];
+        mIndexFetcher = new FetchCache[mSources.length];
         for (int i = 0, n = mSources.length; i < n; ++i) {
-            mFetcher[i] = new FetchCache(mSources[i]);
+            mFetcher[i] = new FetchCache(mSources[i], CACHED_PAGE_COUNT);
+            mIndexFetcher[i] = new FetchCache(mSources[i], 1);
             supported &= mSources[i].getSupportedOperations();
         }
         mSupportedOperation = supported;
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
         mName = mSources.length == 0 ? "" : mSources[0].getName();
     }
 
+    // Caller should hold mLock.
     private void invalidateCache() {
         for (int i = 0, n = mSources.length; i < n; i++) {
             mFetcher[i].invalidate();
+            mIndexFetcher[i].invalidate();
+        }
+        mIndexMarkCount = 0;
+        mIndexMerger = new Merger(mIndexFetcher, 0, new int[mSources.length]);
+        addIndexMark(mIndexMerger);
+        ++mIndexGeneration;
+
+        if (mIndexBuilder != null) mIndexBuilder.cancel();
+        mIndexBuilder = mThreadPool == null ? null : mThreadPool.submit(
+                new IndexBuilder(mIndexGeneration), null,
+                ThreadPool.PRIORITY_BACKGROUND);
+    }
+
+    // Caller should hold mLock.
+    private void addIndexMark(Merger merger) {
+        int size = mSources.length;
+        int offset = mIndexMarkCount * size;
+        if (offset + size > mIndex.length) {
+            int[] index = new int[Math.max(size * 16, mIndex.length * 2)];
+            System.arraycopy(mIndex, 0, index, 0, offset);
+            mIndex = index;
+        }
+        System.arraycopy(merger.mSubPos, 0, mIndex, offset, size);
+        ++mIndexMarkCount;
+    }
+
+    // Extends the index until it has a mark at or after the given position,
+    // or covers all the items. Caller should hold mLock.
+    private void extendIndex(int position) {
+        Merger merger = mIndexMerger;
+        if (merger == null) return;
+        while (merger.mPosition < position) {
+            if (merger.next() == null) {
+                // All the sources are exhausted, the index is complete.
+                mIndexMerger = null;
+                for (FetchCache fetcher : mIndexFetcher) {
+                    fetcher.invalidate();
+                }
+                return;
+            }
+            if (merger.mPosition % INDEX_INTERVAL == 0) addIndexMark(merger);
         }
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
     }
 
     @Override
@@ -98,49 +169,26 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
 
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
-
-        // First find the nearest mark position <= start.
-        SortedMap<Integer, int[]> head = mIndex.headMap(start + 1);
-        int markPos = head.lastKey();
-        int[] subPos = head.get(markPos).clone();
-        MediaItem[] slot = new MediaItem[mSources.length];
-
-        int size = mSources.length;
-
-        // fill all slots
-        for (int i = 0; i < size; i++) {
-            slot[i] = mFetcher[i].getItem(subPos[i]);
-        }
-
-        ArrayList<MediaItem> result = new ArrayList<MediaItem>();
-
-        for (int i = markPos; i < start + count; i++) {
-            int k = -1;  // k points to the best slot up to now.
-            for (int j = 0; j < size; j++) {
-                if (slot[j] != null) {
-                    if (k == -1 || mComparator.compare(slot[j], slot[k]) < 0) {
-                        k = j;
-                    }
-                }
-            }
-
-            // If we don't have anything, all streams are exhausted.
-            if (k == -1) break;
-
-            // Pick the best slot and refill it.
-            subPos[k]++;
-            if (i >= start) {
-                result.add(slot[k]);
-            }
-            slot[k] = mFetcher[k].getItem(subPos[k]);
-
-            // Periodically leave a mark in the index, so we can come back later.
-            if ((i + 1) % PAGE_SIZE == 0) {
-                mIndex.put(i + 1, subPos.clone());
+        synchronized (mLock) {
+            extendIndex(start);
+
+            // Start from the nearest mark position <= start.
+            int mark = Math.min(start / INDEX_INTERVAL, mIndexMarkCount - 1);
+            int size = mSources.length;
+            int[] subPos = new int[size];
+            System.arraycopy(mIndex, mark * size, subPos, 0, size);
+            Merger merger = new Merger(mFetcher, mark * INDEX_INTERVAL, subPos);
+
+            ArrayList<MediaItem> result = new ArrayList<MediaItem>();
+            for (int i = merger.mPosition; i < start + count; i++) {
+                MediaItem item = merger.next();
+
+                // If we don't have anything, all streams are exhausted.
+                if (item == null) break;
+                if (i >= start) result.add(item);
             }
+            return result;
         }
-
-        return result;
     }
 
     @Override
@@ -160,8 +208,10 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         }
         if (changed) {
             mDataVersion = nextVersionNumber();
-            updateData();
-            invalidateCache();
+            synchronized (mLock) {
+                updateData();
+                invalidateCache();
+            }
         }
         return mDataVersion;
     }
@@ -190,43 +240,135 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         }
     }
 
-    private static class FetchCache {
-        private MediaSet mBaseSet;
-        private SoftReference<ArrayList<MediaItem>> mCacheRef;
-        private int mStartPos;
+    // For testing only.
+    boolean isIndexComplete() {
+        synchronized (mLock) {
+            return mIndexMerger == null;
+        }
+    }
 
-        public FetchCache(MediaSet baseSet) {
-            mBaseSet = baseSet;
+    // Merges the sources from a given position. The sources which are not
+    // exhausted are kept in a min-heap ordered by their next item, and by
+    // the source index for equal items.
+    private class Merger {
+        private final FetchCache[] mFetchers;
+        private final MediaItem[] mNextItem;
+        private final int[] mHeap;
+        private int mHeapSize;
+
+        // The position in the merged list and in each source.
+        int mPosition;
+        final int[] mSubPos;
+
+        public Merger(FetchCache[] fetchers, int position, int[] subPos) {
+            int size = subPos.length;
+            mFetchers = fetchers;
+            mPosition = position;
+            mSubPos = subPos;
+            mNextItem = new MediaItem[size];
+            mHeap = new int[size];
+            for (int i = 0; i < size; i++) {
+                mNextItem[i] = fetchers[i].getItem(subPos[i]);
+                if (mNextItem[i] != null) mHeap[mHeapSize++] = i;
+            }
+            for (int i = mHeapSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
         }
 
-        public void invalidate() {
-            mCacheRef = null;
+        // Returns the next item of the merged list, or null if all the
+        // sources are exhausted.
+        public MediaItem next() {
+            if (mHeapSize == 0) return null;
+            int k = mHeap[0];
+            MediaItem item = mNextItem[k];
+            mNextItem[k] = mFetchers[k].getItem(++mSubPos[k]);
+            if (mNextItem[k] == null) mHeap[0] = mHeap[--mHeapSize];
+            siftDown(0);
+            ++mPosition;
+            return item;
         }
 
-        public MediaItem getItem(int index) {
-            boolean needLoading = false;
-            ArrayList<MediaItem> cache = null;
-            if (mCacheRef == null
-                    || index < mStartPos || index >= mStartPos + PAGE_SIZE) {
-                needLoading = true;
-            } else {
-                cache = mCacheRef.get();
-                if (cache == null) {
-                    needLoading = true;
-                }
+        private boolean less(int a, int b) {
+            int result = mComparator.compare(mNextItem[a], mNextItem[b]);
+            return result < 0 || (result == 0 && a < b);
+        }
+
+        private void siftDown(int i) {
+            int[] heap = mHeap;
+            int n = mHeapSize;
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < n && less(heap[left], heap[smallest])) smallest = left;
+                if (right < n && less(heap[right], heap[smallest])) smallest = right;
+                if (smallest == i) return;
+                int tmp = heap[i];
+                heap[i] = heap[smallest];
+                heap[smallest] = tmp;
+                i = smallest;
             }
+        }
+    }
+
+    // Builds the index in the background. mLock is released after every
+    // INDEX_BUILD_STEP items, so getMediaItem() waits for one step at most.
+    private class IndexBuilder implements Job<Void> {
+        private final int mGeneration;
+
+        public IndexBuilder(int generation) {
+            mGeneration = generation;
+        }
 
-            if (needLoading) {
-                cache = mBaseSet.getMediaItem(index, PAGE_SIZE);
-                mCacheRef = new SoftReference<ArrayList<MediaItem>>(cache);
-                mStartPos = index;
+        @Override
+        public Void run(JobContext jc) {
+            while (!jc.isCancelled()) {
+                synchronized (mLock) {
+                    if (mGeneration != mIndexGeneration
+                            || mIndexMerger == null) {
+                        return null;
+                    }
+                    extendIndex(mIndexMerger.mPosition + INDEX_BUILD_STEP);
+                }
             }
+            return null;
+        }
+    }
+
+    // FetchCache keeps the most recently used pages of a source. The pages
+    // are aligned to PAGE_SIZE, so nearby requests hit the same pages.
+    private static class FetchCache {
+        private final MediaSet mBaseSet;
+        private final LinkedHashMap<Integer, ArrayList<MediaItem>> mPages;
+
+        @SuppressWarnings("serial")
+        public FetchCache(MediaSet baseSet, final int pageCount) {
+            mBaseSet = baseSet;
+            mPages = new LinkedHashMap<Integer, ArrayList<MediaItem>>(
+                    16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Integer, ArrayList<MediaItem>> eldest) {
+                    return size() > pageCount;
+                }
+            };
+        }
 
-            if (index < mStartPos || index >= mStartPos + cache.size()) {
-                return null;
+        public void invalidate() {
+            mPages.clear();
+        }
+
+        public MediaItem getItem(int index) {
+            int page = index / PAGE_SIZE;
+            ArrayList<MediaItem> cache = mPages.get(page);
+            if (cache == null) {
+                cache = mBaseSet.getMediaItem(page * PAGE_SIZE, PAGE_SIZE);
+                mPages.put(page, cache);
             }
 
-            return cache.get(index - mStartPos);
+            int offset = index - page * PAGE_SIZE;
+            return offset < cache.size() ? cache.get(offset) : null;
         }
     }
 
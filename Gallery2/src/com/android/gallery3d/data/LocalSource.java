@@ -99,8 +99,9 @@ class LocalSource extends MediaSource {
                 MediaSet videoSet = (MediaSet) dataManager.getMediaObject(
                         LocalAlbumSet.PATH_VIDEO.getChild(bucketId));
                 Comparator<MediaItem> comp = DataManager.sDateTakenComparator;
-                return new LocalMergeAlbum(
-                        path, comp, new MediaSet[] {imageSet, videoSet}, bucketId);
+                return new LocalMergeAlbum(path, comp,
+                        new MediaSet[] {imageSet, videoSet}, bucketId,
+                        app.getThreadPool());
             }
             case LOCAL_IMAGE_ITEM:
                 return new LocalImage(path, mApplication, mMatcher.getIntVar(0));
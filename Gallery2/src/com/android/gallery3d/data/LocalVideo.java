@@ -43,7 +43,7 @@ public class LocalVideo extends LocalMediaItem {
     private static final int INDEX_MIME_TYPE = 2;
     private static final int INDEX_LATITUDE = 3;
     private static final int INDEX_LONGITUDE = 4;
-    private static final int INDEX_DATE_TAKEN = 5;
+    static final int INDEX_DATE_TAKEN = 5;
     private static final int INDEX_DATE_ADDED = 6;
     private static final int INDEX_DATE_MODIFIED = 7;
     private static final int INDEX_DATA = 8;
@@ -150,15 +150,17 @@ public class LocalVideo extends LocalMediaItem {
 
     @Override
     public Job<Bitmap> requestImage(int type) {
-        return new LocalVideoRequest(mApplication, getPath(), type, filePath);
+        return new LocalVideoRequest(mApplication, getPath(), getDataVersion(),
+                type, filePath);
     }
 
     public static class LocalVideoRequest extends ImageCacheRequest {
         private String mLocalFilePath;
 
-        LocalVideoRequest(GalleryApp application, Path path, int type,
-                String localFilePath) {
-            super(application, path, type, MediaItem.getTargetSize(type));
+        LocalVideoRequest(GalleryApp application, Path path, long version,
+                int type, String localFilePath) {
+            super(application, path, version, type,
+                    MediaItem.getTargetSize(type));
             mLocalFilePath = localFilePath;
         }
 
@@ -19,14 +19,18 @@ package com.android.gallery3d.data;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.FloatMath;
 import android.widget.Toast;
 
 import com.ti.omap.android.camera.R;
+import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.ReverseGeocoder;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 class LocationClustering extends Clustering {
     private static final String TAG = "LocationClustering";
@@ -37,28 +41,33 @@ class LocationClustering extends Clustering {
 
     // If the total distance change is less than this ratio, stop iterating.
     private static final float STOP_CHANGE_RATIO = 0.01f;
+
+    // The points are snapped to a grid of cells about 64 meters wide, and
+    // k-means runs on the cells weighted by their number of points.
+    private static final double GRID_CELL_RAD = 1e-5;
+    private static final int GRID_INDEX_BITS = 20;
+    private static final int POINT_INDEX_BITS = 23;
+
+    // The number of pool threads which try k values along with the caller.
+    // The thread pool runs two CPU jobs at a time, so one is left for the
+    // jobs the user is waiting for.
+    private static final int MAX_HELPER_COUNT = 1;
+
     private Context mContext;
+    private ThreadPool mThreadPool;
     private ArrayList<ArrayList<SmallItem>> mClusters;
     private ArrayList<String> mNames;
     private String mNoLocationString;
     private Handler mHandler;
 
-    private static class Point {
-        public Point(double lat, double lng) {
-            latRad = Math.toRadians(lat);
-            lngRad = Math.toRadians(lng);
-        }
-        public Point() {}
-        public double latRad, lngRad;
-    }
-
     private static class SmallItem {
         Path path;
         double lat, lng;
     }
 
-    public LocationClustering(Context context) {
+    public LocationClustering(Context context, ThreadPool threadPool) {
         mContext = context;
+        mThreadPool = threadPool;
         mNoLocationString = mContext.getResources().getString(R.string.no_location);
         mHandler = new Handler(Looper.getMainLooper());
     }
@@ -79,17 +88,15 @@ class LocationClustering extends Clustering {
                 s.lng = latLong[1];
                 buf[index] = s;
             }
-        });
+        }, mThreadPool);
 
         final ArrayList<SmallItem> withLatLong = new ArrayList<SmallItem>();
         final ArrayList<SmallItem> withoutLatLong = new ArrayList<SmallItem>();
-        final ArrayList<Point> points = new ArrayList<Point>();
         for (int i = 0; i < total; i++) {
             SmallItem s = buf[i];
             if (s == null) continue;
             if (GalleryUtils.isValidLocation(s.lat, s.lng)) {
                 withLatLong.add(s);
-                points.add(new Point(s.lat, s.lng));
             } else {
                 withoutLatLong.add(s);
             }
@@ -100,10 +107,15 @@ class LocationClustering extends Clustering {
         int m = withLatLong.size();
         if (m > 0) {
             // cluster the items with lat-long
-            Point[] pointsArray = new Point[m];
-            pointsArray = points.toArray(pointsArray);
+            double[] latRad = new double[m];
+            double[] lngRad = new double[m];
+            for (int i = 0; i < m; i++) {
+                SmallItem s = withLatLong.get(i);
+                latRad[i] = Math.toRadians(s.lat);
+                lngRad[i] = Math.toRadians(s.lng);
+            }
             int[] bestK = new int[1];
-            int[] index = kMeans(pointsArray, bestK);
+            int[] index = kMeans(latRad, lngRad, bestK, mThreadPool);
 
             for (int i = 0; i < bestK[0]; i++) {
                 clusters.add(new ArrayList<SmallItem>());
@@ -199,115 +211,292 @@ class LocationClustering extends Clustering {
     // Input: n points
     // Output: the best k is stored in bestK[0], and the return value is the
     // an array which specifies the group that each point belongs (0 to k - 1).
-    private static int[] kMeans(Point points[], int[] bestK) {
-        int n = points.length;
-
-        // min and max number of groups wanted
-        int minK = Math.min(n, MIN_GROUPS);
-        int maxK = Math.min(n, MAX_GROUPS);
+    // If threadPool is not null, some k values are tried in it.
+    static int[] kMeans(double[] latRad, double[] lngRad, int[] bestK,
+            ThreadPool threadPool) {
+        int n = latRad.length;
+        Utils.assertTrue(n < (1 << POINT_INDEX_BITS));
+
+        // Sort the points by grid cell, keeping their index in the low bits.
+        long[] keys = new long[n];
+        int offset = 1 << (GRID_INDEX_BITS - 1);
+        for (int i = 0; i < n; i++) {
+            long row = (long) Math.floor(latRad[i] / GRID_CELL_RAD) + offset;
+            long column = (long) Math.floor(lngRad[i] / GRID_CELL_RAD) + offset;
+            long cell = (row << GRID_INDEX_BITS) | column;
+            keys[i] = (cell << POINT_INDEX_BITS) | i;
+        }
+        Arrays.sort(keys);
+
+        // Each cell is placed at the centroid of its points, so the sums
+        // used for the group centers are the same as for the points.
+        int indexMask = (1 << POINT_INDEX_BITS) - 1;
+        int[] cellOfPoint = new int[n];
+        double[] cellLat = new double[n];
+        double[] cellLng = new double[n];
+        int[] cellWeight = new int[n];
+        int cellCount = 0;
+        for (int i = 0; i < n; i++) {
+            int point = (int) (keys[i] & indexMask);
+            if (i == 0 || (keys[i] >>> POINT_INDEX_BITS)
+                    != (keys[i - 1] >>> POINT_INDEX_BITS)) {
+                ++cellCount;
+            }
+            int cell = cellCount - 1;
+            cellOfPoint[point] = cell;
+            cellLat[cell] += latRad[point];
+            cellLng[cell] += lngRad[point];
+            cellWeight[cell]++;
+        }
+        for (int i = 0; i < cellCount; i++) {
+            cellLat[i] /= cellWeight[i];
+            cellLng[i] /= cellWeight[i];
+        }
 
-        Point[] center = new Point[maxK];  // center of each group.
-        Point[] groupSum = new Point[maxK];  // sum of points in each group.
-        int[] groupCount = new int[maxK];  // number of points in each group.
-        int[] grouping = new int[n]; // The group assignment for each point.
+        KMeansScan scan = new KMeansScan(cellLat, cellLng, cellWeight,
+                cellCount, cellOfPoint, Math.min(n, MIN_GROUPS),
+                Math.min(n, MAX_GROUPS), threadPool);
+        scan.tryKs();
+        scan.waitDone();
 
-        for (int i = 0; i < maxK; i++) {
-            center[i] = new Point();
-            groupSum[i] = new Point();
+        bestK[0] = scan.mBestK;
+        int[] bestGrouping = new int[n];
+        for (int i = 0; i < n; i++) {
+            bestGrouping[i] = scan.mBestGrouping[cellOfPoint[i]];
         }
+        return bestGrouping;
+    }
+
+    // Tries each k value once, on whichever thread takes it first. The
+    // caller takes k values itself and then waits only for the k values
+    // taken by others, so a helper which is still queued when the scan ends
+    // finds no work. A helper is submitted when the caller takes a k value
+    // and there are more left.
+    private static class KMeansScan implements Job<Void> {
+        private final double[] mLat;
+        private final double[] mLng;
+        private final int[] mWeight;
+        private final int mCount;
+        private final int[] mCellOfPoint;
+        private final int mMaxK;
+        private final ThreadPool mThreadPool;
+        private int mNextK;
+        private int mRunningCount;
+        private int mHelperCount;
 
         // The score we want to minimize is:
         //   (sum of distance from each point to its group center) * sqrt(k).
-        float bestScore = Float.MAX_VALUE;
-        // The best group assignment up to now.
-        int[] bestGrouping = new int[n];
-        // The best K up to now.
-        bestK[0] = 1;
+        // A tie goes to the smaller k.
+        double mBestScore = Double.MAX_VALUE;
+        int mBestScoreK = Integer.MAX_VALUE;
+        int mBestK = 1;
+        int[] mBestGrouping;
+
+        KMeansScan(double[] lat, double[] lng, int[] weight, int count,
+                int[] cellOfPoint, int minK, int maxK, ThreadPool threadPool) {
+            mLat = lat;
+            mLng = lng;
+            mWeight = weight;
+            mCount = count;
+            mCellOfPoint = cellOfPoint;
+            mNextK = minK;
+            mMaxK = maxK;
+            mThreadPool = threadPool;
+            mBestGrouping = new int[count];
+        }
 
-        float lastDistance = 0;
-        float totalDistance = 0;
+        // Returns the next k value to try, or 0 if there is none left. Once
+        // a k scores zero no larger k can beat it.
+        private synchronized int takeK() {
+            if (mNextK > mMaxK || mBestScore == 0) return 0;
+            ++mRunningCount;
+            int k = mNextK++;
+            if (mThreadPool != null && mNextK <= mMaxK
+                    && mHelperCount < MAX_HELPER_COUNT) {
+                ++mHelperCount;
+                mThreadPool.submit(this, null, ThreadPool.PRIORITY_BACKGROUND);
+            }
+            return k;
+        }
 
-        for (int k = minK; k <= maxK; k++) {
-            // step 1: (arbitrarily) pick k points as the initial centers.
-            int delta = n / k;
-            for (int i = 0; i < k; i++) {
-                Point p = points[i * delta];
-                center[i].latRad = p.latRad;
-                center[i].lngRad = p.lngRad;
+        // Returns the grouping array to use for the next k value.
+        private synchronized int[] finishK(int k, KMeans result) {
+            --mRunningCount;
+            notifyAll();
+            if (result.mScore < mBestScore
+                    || (result.mScore == mBestScore && k < mBestScoreK)) {
+                mBestScore = result.mScore;
+                mBestScoreK = k;
+                mBestK = result.mRealK;
+                int[] grouping = mBestGrouping;
+                mBestGrouping = result.mGrouping;
+                return grouping;
+            }
+            return result.mGrouping;
+        }
+
+        public synchronized void waitDone() {
+            while (mRunningCount > 0) {
+                Utils.waitWithoutInterrupt(this);
+            }
+        }
+
+        // The helper job.
+        @Override
+        public Void run(JobContext jc) {
+            tryKs();
+            synchronized (this) {
+                --mHelperCount;
+            }
+            return null;
+        }
+
+        // Tries the k values left, until there is none.
+        void tryKs() {
+            KMeans kMeans = null;
+            int k;
+            while ((k = takeK()) != 0) {
+                if (kMeans == null) {
+                    kMeans = new KMeans(mLat, mLng, mWeight, mCount, mMaxK);
+                }
+                int n = mCellOfPoint.length;
+
+                // (arbitrarily) pick k points as the initial centers.
+                int delta = n / k;
+                for (int i = 0; i < k; i++) {
+                    int cell = mCellOfPoint[i * delta];
+                    kMeans.mCenterLat[i] = mLat[cell];
+                    kMeans.mCenterLng[i] = mLng[cell];
+                }
+                kMeans.run(k);
+                kMeans.mGrouping = finishK(k, kMeans);
             }
+        }
+    }
+
+    // The buffers to run k-means on weighted points for one k value.
+    private static class KMeans {
+        private final double[] mLat;
+        private final double[] mLng;
+        private final int[] mWeight;
+        private final int mCount;
+        final double[] mCenterLat;
+        final double[] mCenterLng;
+        private final double[] mSumLat;
+        private final double[] mSumLng;
+        private final int[] mGroupCount;
+        // The distance between each two centers, to skip the centers which
+        // can't be nearer to a point than the one it is in.
+        private final double[] mCenterDistance;
+        int[] mGrouping;
+        double mScore;
+        int mRealK;
+
+        KMeans(double[] lat, double[] lng, int[] weight, int count, int maxK) {
+            mLat = lat;
+            mLng = lng;
+            mWeight = weight;
+            mCount = count;
+            mCenterLat = new double[maxK];
+            mCenterLng = new double[maxK];
+            mSumLat = new double[maxK];
+            mSumLng = new double[maxK];
+            mGroupCount = new int[maxK];
+            mCenterDistance = new double[maxK * maxK];
+            mGrouping = new int[count];
+        }
+
+        private double distance(int point, int center) {
+            double distance = GalleryUtils.fastDistanceMeters(
+                    mLat[point], mLng[point],
+                    mCenterLat[center], mCenterLng[center]);
+            // We may have small non-zero distance introduced by floating
+            // point calculation, so zero out small distances less than 1
+            // meter.
+            return distance < 1 ? 0 : distance;
+        }
+
+        // Runs k-means from the centers set by the caller, then stores the
+        // groups numbered 0 to mRealK - 1 in mGrouping, and the score.
+        void run(int k) {
+            int[] grouping = mGrouping;
+            double lastDistance = 0;
+            double totalDistance = 0;
+            Arrays.fill(grouping, 0, mCount, 0);
 
             for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
-                // step 2: assign each point to the nearest center.
                 for (int i = 0; i < k; i++) {
-                    groupSum[i].latRad = 0;
-                    groupSum[i].lngRad = 0;
-                    groupCount[i] = 0;
+                    mSumLat[i] = 0;
+                    mSumLng[i] = 0;
+                    mGroupCount[i] = 0;
+                    for (int j = 0; j < i; j++) {
+                        double distance = GalleryUtils.fastDistanceMeters(
+                                mCenterLat[i], mCenterLng[i],
+                                mCenterLat[j], mCenterLng[j]);
+                        mCenterDistance[i * k + j] = distance;
+                        mCenterDistance[j * k + i] = distance;
+                    }
                 }
                 totalDistance = 0;
+                boolean changed = false;
 
-                for (int i = 0; i < n; i++) {
-                    Point p = points[i];
-                    float bestDistance = Float.MAX_VALUE;
-                    int bestIndex = 0;
+                // Assign each point to the nearest center, starting from the
+                // center it was nearest to in the last iteration.
+                for (int i = 0; i < mCount; i++) {
+                    int bestIndex = grouping[i];
+                    double bestDistance = distance(i, bestIndex);
                     for (int j = 0; j < k; j++) {
-                        float distance = (float) GalleryUtils.fastDistanceMeters(
-                                p.latRad, p.lngRad, center[j].latRad, center[j].lngRad);
-                        // We may have small non-zero distance introduced by
-                        // floating point calculation, so zero out small
-                        // distances less than 1 meter.
-                        if (distance < 1) {
-                            distance = 0;
+                        if (j == bestIndex || mCenterDistance[
+                                bestIndex * k + j] >= 2 * bestDistance) {
+                            continue;
                         }
+                        double distance = distance(i, j);
                         if (distance < bestDistance) {
                             bestDistance = distance;
                             bestIndex = j;
                         }
                     }
-                    grouping[i] = bestIndex;
-                    groupCount[bestIndex]++;
-                    groupSum[bestIndex].latRad += p.latRad;
-                    groupSum[bestIndex].lngRad += p.lngRad;
-                    totalDistance += bestDistance;
+                    if (grouping[i] != bestIndex) {
+                        grouping[i] = bestIndex;
+                        changed = true;
+                    }
+                    int weight = mWeight[i];
+                    mGroupCount[bestIndex] += weight;
+                    mSumLat[bestIndex] += mLat[i] * weight;
+                    mSumLng[bestIndex] += mLng[i] * weight;
+                    totalDistance += bestDistance * weight;
                 }
 
-                // step 3: calculate new centers
+                // calculate new centers
                 for (int i = 0; i < k; i++) {
-                    if (groupCount[i] > 0) {
-                        center[i].latRad = groupSum[i].latRad / groupCount[i];
-                        center[i].lngRad = groupSum[i].lngRad / groupCount[i];
+                    if (mGroupCount[i] > 0) {
+                        mCenterLat[i] = mSumLat[i] / mGroupCount[i];
+                        mCenterLng[i] = mSumLng[i] / mGroupCount[i];
                     }
                 }
 
-                if (totalDistance == 0 || (Math.abs(lastDistance - totalDistance)
+                if ((iter > 0 && !changed) || totalDistance == 0
+                        || (Math.abs(lastDistance - totalDistance)
                         / totalDistance) < STOP_CHANGE_RATIO) {
                     break;
                 }
                 lastDistance = totalDistance;
             }
 
-            // step 4: remove empty groups and reassign group number
-            int reassign[] = new int[k];
+            // remove empty groups and reassign group number
+            int[] reassign = new int[k];
             int realK = 0;
             for (int i = 0; i < k; i++) {
-                if (groupCount[i] > 0) {
+                if (mGroupCount[i] > 0) {
                     reassign[i] = realK++;
                 }
             }
-
-            // step 5: calculate the final score
-            float score = totalDistance * FloatMath.sqrt(realK);
-
-            if (score < bestScore) {
-                bestScore = score;
-                bestK[0] = realK;
-                for (int i = 0; i < n; i++) {
-                    bestGrouping[i] = reassign[grouping[i]];
-                }
-                if (score == 0) {
-                    break;
-                }
+            for (int i = 0; i < mCount; i++) {
+                grouping[i] = reassign[grouping[i]];
             }
+
+            mRealK = realK;
+            mScore = totalDistance * Math.sqrt(realK);
         }
-        return bestGrouping;
     }
 }
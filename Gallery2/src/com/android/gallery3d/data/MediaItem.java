@@ -42,9 +42,20 @@ public abstract class MediaItem extends MediaObject {
     private static final int BYTESBUFFE_POOL_SIZE = 4;
     private static final int BYTESBUFFER_SIZE = 200 * 1024;
 
+    private static final int BITMAP_POOL_LIMIT = (int) Math.min(
+            Runtime.getRuntime().maxMemory() / 8, 24 * 1024 * 1024);
+
+    // The thumbnails and the tiles of TileImageView are recycled into one
+    // pool, so they share its budget.
+    private static final BitmapPool sBitmapPool =
+            new BitmapPool(BITMAP_POOL_LIMIT);
     private static final BitmapPool sMicroThumbPool = new BitmapPool(
-            MICROTHUMBNAIL_TARGET_SIZE, MICROTHUMBNAIL_TARGET_SIZE, 16);
-    private static final BitmapPool sThumbPool = new BitmapPool(4);
+            MICROTHUMBNAIL_TARGET_SIZE, MICROTHUMBNAIL_TARGET_SIZE, sBitmapPool);
+
+    private static final int THUMBNAIL_CACHE_LIMIT = (int) Math.min(
+            Runtime.getRuntime().maxMemory() / 16, 16 * 1024 * 1024);
+    private static final ThumbnailCache sThumbnailCache =
+            new ThumbnailCache(sBitmapPool, THUMBNAIL_CACHE_LIMIT);
     private static final BytesBufferPool sMicroThumbBufferPool =
             new BytesBufferPool(BYTESBUFFE_POOL_SIZE, BYTESBUFFER_SIZE);
 
@@ -123,7 +134,15 @@ public abstract class MediaItem extends MediaObject {
     }
 
     public static BitmapPool getThumbPool() {
-        return sThumbPool;
+        return sBitmapPool;
+    }
+
+    public static BitmapPool getBitmapPool() {
+        return sBitmapPool;
+    }
+
+    public static ThumbnailCache getThumbnailCache() {
+        return sThumbnailCache;
     }
 
     public static BytesBufferPool getBytesBufferPool() {
@@ -18,6 +18,7 @@ package com.android.gallery3d.data;
 
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.Future;
+import com.android.gallery3d.util.ThreadPool;
 
 import java.util.ArrayList;
 import java.util.WeakHashMap;
@@ -191,6 +192,19 @@ public abstract class MediaSet extends MediaObject {
         enumerateTotalMediaItems(consumer, 0);
     }
 
+    // Same as enumerateTotalMediaItems(consumer), but the sub media sets
+    // after the one being read are read ahead on a thread of the pool. The
+    // consumer is still called on this thread, in index order. If
+    // threadPool is null, everything runs on this thread.
+    public void enumerateTotalMediaItems(ItemConsumer consumer,
+            ThreadPool threadPool) {
+        if (threadPool == null) {
+            enumerateTotalMediaItems(consumer, 0);
+        } else {
+            new EnumeratePipeline(consumer, threadPool).enumerate(this);
+        }
+    }
+
     public static interface ItemConsumer {
         void consume(int index, MediaItem item);
     }
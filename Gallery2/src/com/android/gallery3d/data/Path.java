@@ -22,14 +22,19 @@ import com.android.gallery3d.util.IdentityCache;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
+// Paths are interned: there is only one Path object for a path string, as
+// long as the Path is in use. Looking up a Path takes no lock unless a new
+// node has to be added to the tree, and then only the lock of its parent.
 public class Path {
     private static final String TAG = "Path";
-    private static Path sRoot = new Path(null, "ROOT");
+    private static volatile Path sRoot = new Path(null, "ROOT");
 
     private final Path mParent;
     private final String mSegment;
-    private WeakReference<MediaObject> mObject;
-    private IdentityCache<String, Path> mChildren;
+    private volatile WeakReference<MediaObject> mObject;
+    private volatile IdentityCache<String, Path> mChildren;
+    // The cached result of toString().
+    private volatile String mString;
 
     private Path(Path parent, String segment) {
         mParent = parent;
@@ -37,24 +42,24 @@ public class Path {
     }
 
     public Path getChild(String segment) {
-        synchronized (Path.class) {
-            if (mChildren == null) {
-                mChildren = new IdentityCache<String, Path>();
-            } else {
-                Path p = mChildren.get(segment);
-                if (p != null) return p;
+        IdentityCache<String, Path> children = mChildren;
+        if (children == null) {
+            synchronized (this) {
+                children = mChildren;
+                if (children == null) {
+                    children = new IdentityCache<String, Path>();
+                    mChildren = children;
+                }
             }
-
-            Path p = new Path(this, segment);
-            mChildren.put(segment, p);
-            return p;
+        } else {
+            Path p = children.get(segment);
+            if (p != null) return p;
         }
+        return children.putIfAbsent(segment, new Path(this, segment));
     }
 
     public Path getParent() {
-        synchronized (Path.class) {
-            return mParent;
-        }
+        return mParent;
     }
 
     public Path getChild(int segment) {
@@ -66,55 +71,56 @@ public class Path {
     }
 
     public void setObject(MediaObject object) {
-        synchronized (Path.class) {
-            Utils.assertTrue(mObject == null || mObject.get() == null);
+        synchronized (this) {
+            WeakReference<MediaObject> ref = mObject;
+            Utils.assertTrue(ref == null || ref.get() == null);
             mObject = new WeakReference<MediaObject>(object);
         }
     }
 
     public MediaObject getObject() {
-        synchronized (Path.class) {
-            return (mObject == null) ? null : mObject.get();
-        }
+        WeakReference<MediaObject> ref = mObject;
+        return (ref == null) ? null : ref.get();
     }
 
     @Override
     public String toString() {
-        synchronized (Path.class) {
+        String result = mString;
+        if (result == null) {
+            // Racing threads compute equal strings, so no lock is needed.
             StringBuilder sb = new StringBuilder();
             String[] segments = split();
             for (int i = 0; i < segments.length; i++) {
                 sb.append("/");
                 sb.append(segments[i]);
             }
-            return sb.toString();
+            result = sb.toString();
+            mString = result;
         }
+        return result;
     }
 
     public static Path fromString(String s) {
-        synchronized (Path.class) {
-            String[] segments = split(s);
-            Path current = sRoot;
-            for (int i = 0; i < segments.length; i++) {
-                current = current.getChild(segments[i]);
-            }
-            return current;
+        String[] segments = split(s);
+        Path current = sRoot;
+        for (int i = 0; i < segments.length; i++) {
+            current = current.getChild(segments[i]);
         }
+        return current;
     }
 
     public String[] split() {
-        synchronized (Path.class) {
-            int n = 0;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                n++;
-            }
-            String[] segments = new String[n];
-            int i = n - 1;
-            for (Path p = this; p != sRoot; p = p.mParent) {
-                segments[i--] = p.mSegment;
-            }
-            return segments;
+        // mParent is final, so the chain of parents needs no lock.
+        int n = 0;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            n++;
+        }
+        String[] segments = new String[n];
+        int i = n - 1;
+        for (Path p = this; p.mParent != null; p = p.mParent) {
+            segments[i--] = p.mSegment;
         }
+        return segments;
     }
 
     public static String[] split(String s) {
@@ -175,21 +181,19 @@ public class Path {
     }
 
     public String getPrefix() {
-        if (this == sRoot) return "";
+        if (mParent == null) return "";
         return getPrefixPath().mSegment;
     }
 
     public Path getPrefixPath() {
-        synchronized (Path.class) {
-            Path current = this;
-            if (current == sRoot) {
-                throw new IllegalStateException();
-            }
-            while (current.mParent != sRoot) {
-                current = current.mParent;
-            }
-            return current;
+        Path current = this;
+        if (current.mParent == null) {
+            throw new IllegalStateException();
         }
+        while (current.mParent.mParent != null) {
+            current = current.mParent;
+        }
+        return current;
     }
 
     public String getSuffix() {
@@ -199,9 +203,7 @@ public class Path {
 
     // Below are for testing/debugging only
     static void clearAll() {
-        synchronized (Path.class) {
-            sRoot = new Path(null, "");
-        }
+        sRoot = new Path(null, "");
     }
 
     static void dumpAll() {
@@ -209,25 +211,24 @@ public class Path {
     }
 
     static void dumpAll(Path p, String prefix1, String prefix2) {
-        synchronized (Path.class) {
-            MediaObject obj = p.getObject();
-            Log.d(TAG, prefix1 + p.mSegment + ":"
-                    + (obj == null ? "null" : obj.getClass().getSimpleName()));
-            if (p.mChildren != null) {
-                ArrayList<String> childrenKeys = p.mChildren.keys();
-                int i = 0, n = childrenKeys.size();
-                for (String key : childrenKeys) {
-                    Path child = p.mChildren.get(key);
-                    if (child == null) {
-                        ++i;
-                        continue;
-                    }
-                    Log.d(TAG, prefix2 + "|");
-                    if (++i < n) {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
-                    } else {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
-                    }
+        MediaObject obj = p.getObject();
+        Log.d(TAG, prefix1 + p.mSegment + ":"
+                + (obj == null ? "null" : obj.getClass().getSimpleName()));
+        IdentityCache<String, Path> children = p.mChildren;
+        if (children != null) {
+            ArrayList<String> childrenKeys = children.keys();
+            int i = 0, n = childrenKeys.size();
+            for (String key : childrenKeys) {
+                Path child = children.get(key);
+                if (child == null) {
+                    ++i;
+                    continue;
+                }
+                Log.d(TAG, prefix2 + "|");
+                if (++i < n) {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
+                } else {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
                 }
             }
         }
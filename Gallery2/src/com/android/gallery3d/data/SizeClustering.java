@@ -21,12 +21,15 @@ import android.content.res.Resources;
 
 import com.ti.omap.android.camera.R;
 
+import com.android.gallery3d.util.ThreadPool;
+
 import java.util.ArrayList;
 
 public class SizeClustering extends Clustering {
     private static final String TAG = "SizeClustering";
 
     private Context mContext;
+    private ThreadPool mThreadPool;
     private ArrayList<Path>[] mClusters;
     private String[] mNames;
     private long mMinSizes[];
@@ -44,8 +47,9 @@ public class SizeClustering extends Clustering {
         4 * GIGA_BYTES,
     };
 
-    public SizeClustering(Context context) {
+    public SizeClustering(Context context, ThreadPool threadPool) {
         mContext = context;
+        mThreadPool = threadPool;
     }
 
     @Override
@@ -70,7 +74,7 @@ public class SizeClustering extends Clustering {
                 }
                 list.add(item.getPath());
             }
-        });
+        }, mThreadPool);
 
         int count = 0;
         for (int i = 0; i < group.length; i++) {
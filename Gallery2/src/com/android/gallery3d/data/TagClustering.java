@@ -19,6 +19,7 @@ package com.android.gallery3d.data;
 import android.content.Context;
 
 import com.ti.omap.android.camera.R;
+import com.android.gallery3d.util.ThreadPool;
 
 import java.util.ArrayList;
 import java.util.Map;
@@ -31,8 +32,10 @@ public class TagClustering extends Clustering {
     private ArrayList<ArrayList<Path>> mClusters;
     private String[] mNames;
     private String mUntaggedString;
+    private ThreadPool mThreadPool;
 
-    public TagClustering(Context context) {
+    public TagClustering(Context context, ThreadPool threadPool) {
+        mThreadPool = threadPool;
         mUntaggedString = context.getResources().getString(R.string.untagged);
     }
 
@@ -61,7 +64,7 @@ public class TagClustering extends Clustering {
                     list.add(path);
                 }
             }
-        });
+        }, mThreadPool);
 
         int m = map.size();
         mClusters = new ArrayList<ArrayList<Path>>();
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The memory tier in front of ImageCacheService: decoded thumbnails which are
+// no longer shown, keyed by (path, type, data version).
+//
+// A thumbnail belongs to either its user or this cache, never both. The user
+// puts a thumbnail here instead of recycling it into a BitmapPool, and
+// ImageCacheRequest takes it out again when the same thumbnail is requested,
+// so scrolling back or returning to a page does not decode it again. When the
+// cache is over its budget, the least recently put thumbnails are recycled
+// into the BitmapPool.
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    private static class Key {
+        private final Path mPath;
+        private final int mType;
+        private final long mVersion;
+
+        public Key(Path path, int type, long version) {
+            mPath = path;
+            mType = type;
+            mVersion = version;
+        }
+
+        @Override
+        public int hashCode() {
+            return mPath.hashCode() * 31 + mType * 17 + (int) mVersion;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) return false;
+            Key key = (Key) object;
+            // Paths are interned, so they can be compared by identity.
+            return mPath == key.mPath && mType == key.mType
+                    && mVersion == key.mVersion;
+        }
+    }
+
+    private final LinkedHashMap<Key, Bitmap> mMap =
+            new LinkedHashMap<Key, Bitmap>();
+    private final BitmapPool mPool;
+    private final int mByteLimit;
+    private int mBytes;
+    private int mHitCount, mMissCount;
+
+    public ThumbnailCache(BitmapPool pool, int byteLimit) {
+        mPool = pool;
+        mByteLimit = byteLimit;
+    }
+
+    // Takes the thumbnail out of the cache, or returns null if it is not
+    // cached.
+    public Bitmap get(Path path, int type, long version) {
+        synchronized (this) {
+            Bitmap bitmap = mMap.remove(new Key(path, type, version));
+            if (bitmap == null) {
+                ++mMissCount;
+                return null;
+            }
+            ++mHitCount;
+            mBytes -= getByteCount(bitmap);
+            return bitmap;
+        }
+    }
+
+    // Gives a thumbnail of the item to the cache. The caller must not use
+    // the bitmap after this.
+    public void put(MediaItem item, int type, Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        int bytes = getByteCount(bitmap);
+        if (item == null || bytes > mByteLimit) {
+            mPool.recycle(bitmap);
+            return;
+        }
+        Key key = new Key(item.getPath(), type, item.getDataVersion());
+        Bitmap old;
+        synchronized (this) {
+            old = mMap.put(key, bitmap);
+            mBytes += bytes;
+            if (old != null) mBytes -= getByteCount(old);
+        }
+        if (old != null) mPool.recycle(old);
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        while (true) {
+            Bitmap bitmap;
+            synchronized (this) {
+                if (mBytes <= mByteLimit) return;
+                Iterator<Map.Entry<Key, Bitmap>> iter =
+                        mMap.entrySet().iterator();
+                bitmap = iter.next().getValue();
+                iter.remove();
+                mBytes -= getByteCount(bitmap);
+            }
+            mPool.recycle(bitmap);
+        }
+    }
+
+    // Recycles all thumbnails into the BitmapPool.
+    public void clear() {
+        Bitmap[] bitmaps;
+        synchronized (this) {
+            bitmaps = mMap.values().toArray(new Bitmap[mMap.size()]);
+            mMap.clear();
+            mBytes = 0;
+        }
+        for (Bitmap bitmap : bitmaps) {
+            mPool.recycle(bitmap);
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getSize() {
+        return mBytes;
+    }
+
+    private static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
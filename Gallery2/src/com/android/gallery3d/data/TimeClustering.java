@@ -22,10 +22,13 @@ import android.text.format.DateUtils;
 
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.ThreadPool;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 
 public class TimeClustering extends Clustering {
     private static final String TAG = "TimeClustering";
@@ -66,11 +69,23 @@ public class TimeClustering extends Clustering {
     // cluster.
     private static final int PARTITION_CLUSTER_SPLIT_TIME_FACTOR = 2;
 
+    // update() recomputes everything if more than 1 / 4 of the items changed,
+    // or if the number of items has halved or doubled since the last run(),
+    // because the split time and cluster sizes were tuned for that number.
+    private static final int MAX_UPDATE_CHANGE_DIVISOR = 4;
+    private static final int MAX_UPDATE_SIZE_FACTOR = 2;
+
     private Context mContext;
+    private ThreadPool mThreadPool;
     private ArrayList<Cluster> mClusters;
-    private String[] mNames;
     private Cluster mCurrCluster;
 
+    // The items of the last run() or update() by path. The clusters hold
+    // them in timeline order.
+    private HashMap<Path, SmallItem> mItems = new HashMap<Path, SmallItem>();
+    private int mRunItemCount;
+    private int mNextClusterId;
+
     private long mClusterSplitTime =
             (MIN_CLUSTER_SPLIT_TIME_IN_MS + MAX_CLUSTER_SPLIT_TIME_IN_MS) / 2;
     private long mLargeClusterSplitTime =
@@ -88,14 +103,187 @@ public class TimeClustering extends Clustering {
         }
     }
 
-    public TimeClustering(Context context) {
+    public TimeClustering(Context context, ThreadPool threadPool) {
         mContext = context;
+        mThreadPool = threadPool;
         mClusters = new ArrayList<Cluster>();
         mCurrCluster = new Cluster();
     }
 
     @Override
     public void run(MediaSet baseSet) {
+        ArrayList<SmallItem> items = enumerateItems(baseSet);
+        Collections.sort(items, sDateComparator);
+        runAll(items);
+    }
+
+    /**
+     * Updates the clusters of the last run() with the changes made to
+     * baseSet since. Only the clusters next to the added or removed items
+     * are computed again; the others keep their items, id and name.
+     */
+    public void update(MediaSet baseSet) {
+        ArrayList<SmallItem> current = enumerateItems(baseSet);
+        int total = current.size();
+        if (mRunItemCount == 0
+                || total > mRunItemCount * MAX_UPDATE_SIZE_FACTOR
+                || total < mRunItemCount / MAX_UPDATE_SIZE_FACTOR) {
+            Collections.sort(current, sDateComparator);
+            runAll(current);
+            return;
+        }
+
+        // Find the added items, and the clusters that lost an item.
+        HashSet<Cluster> dirty = new HashSet<Cluster>();
+        HashSet<SmallItem> kept = new HashSet<SmallItem>();
+        ArrayList<SmallItem> added = new ArrayList<SmallItem>();
+        for (int i = 0; i < total; i++) {
+            SmallItem s = current.get(i);
+            SmallItem old = mItems.get(s.path);
+            if (old != null && old.dateInMs == s.dateInMs
+                    && old.lat == s.lat && old.lng == s.lng) {
+                kept.add(old);
+            } else {
+                added.add(s);
+            }
+        }
+        int removedCount = mItems.size() - kept.size();
+        if ((added.size() + removedCount) * MAX_UPDATE_CHANGE_DIVISOR > total) {
+            Collections.sort(current, sDateComparator);
+            runAll(current);
+            return;
+        }
+        for (Cluster c : mClusters) {
+            c.mChanged = false;
+        }
+        if (added.isEmpty() && removedCount == 0) return;
+
+        // Merge the added items into the timeline of the kept ones.
+        Collections.sort(added, sDateComparator);
+        ArrayList<SmallItem> timeline = new ArrayList<SmallItem>(total);
+        int nextAdded = 0;
+        for (Cluster c : mClusters) {
+            ArrayList<SmallItem> items = c.getItems();
+            for (int i = 0, n = items.size(); i < n; i++) {
+                SmallItem s = items.get(i);
+                if (!kept.contains(s)) {
+                    dirty.add(c);
+                    continue;
+                }
+                while (nextAdded < added.size() && sDateComparator.compare(
+                        added.get(nextAdded), s) < 0) {
+                    timeline.add(added.get(nextAdded++));
+                }
+                timeline.add(s);
+            }
+        }
+        while (nextAdded < added.size()) {
+            timeline.add(added.get(nextAdded++));
+        }
+
+        // An added item dirties the clusters on both sides of it.
+        for (int i = 0, n = timeline.size(); i < n; i++) {
+            if (timeline.get(i).cluster != null) continue;
+            for (int j = i - 1; j >= 0; j--) {
+                Cluster c = timeline.get(j).cluster;
+                if (c != null) {
+                    dirty.add(c);
+                    break;
+                }
+            }
+            for (int j = i + 1; j < n; j++) {
+                Cluster c = timeline.get(j).cluster;
+                if (c != null) {
+                    dirty.add(c);
+                    break;
+                }
+            }
+        }
+
+        // A cluster may merge into the one before it or split off the one
+        // after it, so the neighbours of a dirty cluster are computed again
+        // as well.
+        ArrayList<Cluster> oldClusters = mClusters;
+        boolean[] recompute = new boolean[oldClusters.size()];
+        for (int i = 0, n = oldClusters.size(); i < n; i++) {
+            if (dirty.contains(oldClusters.get(i))) {
+                recompute[i] = true;
+                if (i > 0) recompute[i - 1] = true;
+                if (i + 1 < n) recompute[i + 1] = true;
+            }
+        }
+        for (int i = 0, n = oldClusters.size(); i < n; i++) {
+            if (recompute[i]) dirty.add(oldClusters.get(i));
+        }
+
+        // The clean clusters are copied over as they are, and each run of
+        // dirty clusters and added items is clustered on its own.
+        ArrayList<Cluster> clusters = new ArrayList<Cluster>();
+        HashSet<Cluster> claimed = new HashSet<Cluster>();
+        ArrayList<SmallItem> segment = new ArrayList<SmallItem>();
+        for (int i = 0, n = timeline.size(); i < n;) {
+            Cluster c = timeline.get(i).cluster;
+            if (c != null && !dirty.contains(c)) {
+                clusters.add(c);
+                i += c.size();
+                continue;
+            }
+            segment.clear();
+            while (i < n && (timeline.get(i).cluster == null
+                    || dirty.contains(timeline.get(i).cluster))) {
+                segment.add(timeline.get(i++));
+            }
+            for (Cluster result : cluster(segment)) {
+                clusters.add(reuseCluster(result, claimed));
+            }
+        }
+
+        for (Cluster c : clusters) {
+            if (!c.mChanged) continue;
+            ArrayList<SmallItem> items = c.getItems();
+            for (int i = 0, n = items.size(); i < n; i++) {
+                items.get(i).cluster = c;
+            }
+            c.mName = c.generateCaption(mContext);
+        }
+        for (int i = 0, n = added.size(); i < n; i++) {
+            SmallItem s = added.get(i);
+            mItems.put(s.path, s);
+        }
+        if (removedCount > 0) {
+            mItems.clear();
+            for (int i = 0, n = timeline.size(); i < n; i++) {
+                SmallItem s = timeline.get(i);
+                mItems.put(s.path, s);
+            }
+        }
+        mClusters = clusters;
+    }
+
+    // Returns the old cluster of the first item of the given new cluster if
+    // it has exactly the same items, or else gives the new cluster the id of
+    // that old cluster so it keeps its path.
+    private Cluster reuseCluster(Cluster result, HashSet<Cluster> claimed) {
+        ArrayList<SmallItem> items = result.getItems();
+        Cluster old = null;
+        for (int i = 0, n = items.size(); i < n; i++) {
+            Cluster c = items.get(i).cluster;
+            if (c != null && !claimed.contains(c)) {
+                old = c;
+                break;
+            }
+        }
+        if (old == null) {
+            result.mId = mNextClusterId++;
+            return result;
+        }
+        claimed.add(old);
+        if (old.getItems().equals(items)) return old;
+        result.mId = old.mId;
+        return result;
+    }
+
+    private ArrayList<SmallItem> enumerateItems(MediaSet baseSet) {
         final int total = baseSet.getTotalMediaItemCount();
         final SmallItem[] buf = new SmallItem[total];
         final double[] latLng = new double[2];
@@ -111,7 +299,7 @@ public class TimeClustering extends Clustering {
                 s.lng = latLng[1];
                 buf[index] = s;
             }
-        });
+        }, mThreadPool);
 
         ArrayList<SmallItem> items = new ArrayList<SmallItem>(total);
         for (int i = 0; i < total; i++) {
@@ -119,9 +307,11 @@ public class TimeClustering extends Clustering {
                 items.add(buf[i]);
             }
         }
+        return items;
+    }
 
-        Collections.sort(items, sDateComparator);
-
+    // Clusters the given sorted items from scratch.
+    private void runAll(ArrayList<SmallItem> items) {
         int n = items.size();
         long minTime = 0;
         long maxTime = 0;
@@ -138,17 +328,32 @@ public class TimeClustering extends Clustering {
 
         setTimeRange(maxTime - minTime, n);
 
-        for (int i = 0; i < n; i++) {
-            compute(items.get(i));
+        mClusters = cluster(items);
+        mNextClusterId = 0;
+        mItems.clear();
+        mRunItemCount = n;
+        for (Cluster c : mClusters) {
+            c.mId = mNextClusterId++;
+            c.mName = c.generateCaption(mContext);
+            ArrayList<SmallItem> clusterItems = c.getItems();
+            for (int i = 0, m = clusterItems.size(); i < m; i++) {
+                SmallItem s = clusterItems.get(i);
+                s.cluster = c;
+                mItems.put(s.path, s);
+            }
         }
+    }
 
-        compute(null);
-
-        int m = mClusters.size();
-        mNames = new String[m];
-        for (int i = 0; i < m; i++) {
-            mNames[i] = mClusters.get(i).generateCaption(mContext);
+    // Returns the clusters of the given sorted items. The new clusters are
+    // marked changed and have no id yet.
+    private ArrayList<Cluster> cluster(ArrayList<SmallItem> items) {
+        mClusters = new ArrayList<Cluster>();
+        mCurrCluster = new Cluster();
+        for (int i = 0, n = items.size(); i < n; i++) {
+            compute(items.get(i));
         }
+        compute(null);
+        return mClusters;
     }
 
     @Override
@@ -168,7 +373,18 @@ public class TimeClustering extends Clustering {
 
     @Override
     public String getClusterName(int index) {
-        return mNames[index];
+        return mClusters.get(index).mName;
+    }
+
+    // Returns an id of the cluster which stays the same across update()s.
+    public int getClusterId(int index) {
+        return mClusters.get(index).mId;
+    }
+
+    // Returns true if the items of the cluster were changed by the last
+    // run() or update().
+    public boolean isClusterChanged(int index) {
+        return mClusters.get(index).mChanged;
     }
 
     private void setTimeRange(long timeRange, int numItems) {
@@ -340,6 +556,8 @@ class SmallItem {
     Path path;
     long dateInMs;
     double lat, lng;
+    // The cluster the item was put in by TimeClustering.
+    Cluster cluster;
 }
 
 class Cluster {
@@ -347,8 +565,11 @@ class Cluster {
     private static final String TAG = "Cluster";
     private static final String MMDDYY_FORMAT = "MMddyy";
 
-    // This is for TimeClustering only.
+    // These are for TimeClustering only.
     public boolean mGeographicallySeparatedFromPrevCluster = false;
+    public int mId;
+    public String mName;
+    public boolean mChanged = true;
 
     private ArrayList<SmallItem> mItems = new ArrayList<SmallItem>();
 
@@ -22,8 +22,10 @@ import android.os.Message;
 import com.ti.omap.android.camera.R;
 import com.android.gallery3d.app.AlbumSetDataLoader;
 import com.android.gallery3d.app.GalleryActivity;
+import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.DataSourceType;
+import com.android.gallery3d.data.ImageCacheLocateRequest;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.MediaSet;
@@ -33,6 +35,8 @@ import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.ThreadPool;
 
+import java.util.ArrayList;
+
 public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
     private static final String TAG = "AlbumSetSlidingWindow";
     private static final int MSG_UPDATE_ALBUM_ENTRY = 1;
@@ -56,6 +60,7 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
     private final AlbumSetEntry mData[];
     private final SynchronizedHandler mHandler;
     private final ThreadPool mThreadPool;
+    private final GalleryApp mApplication;
     private final AlbumLabelMaker mLabelMaker;
     private final String mLoadingText;
     private final TextureUploader mTextureUploader;
@@ -66,6 +71,10 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
 
     private int mSlotWidth;
 
+    // Paths of the covers whose loaders were created since the last image
+    // requests. They are located in the image cache in one batch.
+    private final ArrayList<Path> mPendingLocate = new ArrayList<Path>();
+
     public static class AlbumSetEntry {
         public MediaSet album;
         public MediaItem coverItem;
@@ -95,6 +104,7 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         mData = new AlbumSetEntry[cacheSize];
         mSize = source.size();
         mThreadPool = activity.getThreadPool();
+        mApplication = (GalleryApp) activity.getAndroidContext().getApplicationContext();
 
         mLabelMaker = new AlbumLabelMaker(activity.getAndroidContext(), labelSpec);
         mLoadingText = activity.getAndroidContext().getString(R.string.loading);
@@ -194,6 +204,17 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         }
     }
 
+    // The priority of the requests for a slot: the active slots first, then
+    // the slots within one screen of them, then the rest of the cached range.
+    private int getSlotPriority(int slotIndex) {
+        if (isActiveSlot(slotIndex)) return ThreadPool.PRIORITY_VISIBLE;
+        int distance = slotIndex < mActiveStart
+                ? mActiveStart - slotIndex : slotIndex - mActiveEnd + 1;
+        return distance <= mActiveEnd - mActiveStart
+                ? ThreadPool.PRIORITY_NEAR_VISIBLE
+                : ThreadPool.PRIORITY_PREFETCH;
+    }
+
     private void cancelNonactiveImages() {
         int range = Math.max(
                 mContentEnd - mActiveEnd, mActiveStart - mContentStart);
@@ -281,6 +302,7 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
             }
             if (cover != null) {
                 entry.coverLoader = new AlbumCoverLoader(slotIndex, cover);
+                mPendingLocate.add(cover.getPath());
             }
         }
     }
@@ -323,16 +345,33 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
             }
         }
 
-        // add background textures
+        // add background textures, only those within one screen of the
+        // active range if the uploader can't keep up
         int range = Math.max(
                 (mContentEnd - mActiveEnd), (mActiveStart - mContentStart));
+        if (mTextureUploader.isBacklogged()) {
+            range = Math.min(range, mActiveEnd - mActiveStart);
+        }
         for (int i = 0; i < range; ++i) {
             uploadBackgroundTextureInSlot(mActiveEnd + i);
             uploadBackgroundTextureInSlot(mActiveStart - i - 1);
         }
     }
 
+    // Submits one batch lookup for the covers added since the last call. It
+    // runs at PRIORITY_IMMEDIATE, so it is taken ahead of the per-slot
+    // requests, which are submitted after it and would otherwise run first.
+    private void locatePendingImages() {
+        if (mPendingLocate.isEmpty()) return;
+        Path[] paths = mPendingLocate.toArray(new Path[mPendingLocate.size()]);
+        mPendingLocate.clear();
+        mThreadPool.submit(new ImageCacheLocateRequest(
+                mApplication, paths, MediaItem.TYPE_MICROTHUMBNAIL), null,
+                ThreadPool.PRIORITY_IMMEDIATE);
+    }
+
     private void updateAllImageRequests() {
+        locatePendingImages();
         mActiveRequestCount = 0;
         for (int i = mActiveStart, n = mActiveEnd; i < n; ++i) {
             AlbumSetEntry entry = mData[i % mData.length];
@@ -393,6 +432,7 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
 
     public void pause() {
         mIsActive = false;
+        mPendingLocate.clear();
         mTextureUploader.clear();
         for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
             freeSlotContent(i);
@@ -423,13 +463,15 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
 
         @Override
         protected void recycleBitmap(Bitmap bitmap) {
-            MediaItem.getMicroThumbPool().recycle(bitmap);
+            MediaItem.getThumbnailCache().put(
+                    mMediaItem, MediaItem.TYPE_MICROTHUMBNAIL, bitmap);
         }
 
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(mMediaItem.requestImage(
-                    MediaItem.TYPE_MICROTHUMBNAIL), l);
+                    MediaItem.TYPE_MICROTHUMBNAIL), l,
+                    getSlotPriority(mSlotIndex));
         }
 
         @Override
@@ -493,7 +535,8 @@ public class AlbumSetSlidingWindow implements AlbumSetDataLoader.DataListener {
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(mLabelMaker.requestLabel(
-                    mTitle, String.valueOf(mTotalCount), mSourceType), l);
+                    mTitle, String.valueOf(mTotalCount), mSourceType), l,
+                    getSlotPriority(mSlotIndex));
         }
 
         @Override
@@ -21,13 +21,18 @@ import android.os.Message;
 
 import com.android.gallery3d.app.AlbumDataLoader;
 import com.android.gallery3d.app.GalleryActivity;
+import com.android.gallery3d.app.GalleryApp;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.ImageCacheLocateRequest;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.Path;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.JobLimiter;
+import com.android.gallery3d.util.ThreadPool;
+
+import java.util.ArrayList;
 
 public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     @SuppressWarnings("unused")
@@ -57,8 +62,14 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     private final AlbumEntry mData[];
     private final SynchronizedHandler mHandler;
     private final JobLimiter mThreadPool;
+    private final ThreadPool mLocatePool;
+    private final GalleryApp mApplication;
     private final TextureUploader mTextureUploader;
 
+    // Paths of the slots prepared since the last image requests. Their
+    // thumbnails are located in the image cache in one batch.
+    private final ArrayList<Path> mPendingLocate = new ArrayList<Path>();
+
     private int mSize;
 
     private int mContentStart = 0;
@@ -88,6 +99,8 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         };
 
         mThreadPool = new JobLimiter(activity.getThreadPool(), JOB_LIMIT);
+        mLocatePool = activity.getThreadPool();
+        mApplication = (GalleryApp) activity.getAndroidContext().getApplicationContext();
         mTextureUploader = new TextureUploader(activity.getGLRoot());
     }
 
@@ -183,9 +196,13 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
             }
         }
 
-        // add background textures
+        // add background textures, only those within one screen of the
+        // active range if the uploader can't keep up
         int range = Math.max(
                 (mContentEnd - mActiveEnd), (mActiveStart - mContentStart));
+        if (mTextureUploader.isBacklogged()) {
+            range = Math.min(range, mActiveEnd - mActiveStart);
+        }
         for (int i = 0; i < range; ++i) {
             uploadBgTextureInSlot(mActiveEnd + i);
             uploadBgTextureInSlot(mActiveStart - i - 1);
@@ -216,6 +233,17 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         return entry.contentLoader.isRequestInProgress();
     }
 
+    // The priority of the requests for a slot: the active slots first, then
+    // the slots within one screen of them, then the rest of the cached range.
+    private int getSlotPriority(int slotIndex) {
+        if (isActiveSlot(slotIndex)) return ThreadPool.PRIORITY_VISIBLE;
+        int distance = slotIndex < mActiveStart
+                ? mActiveStart - slotIndex : slotIndex - mActiveEnd + 1;
+        return distance <= mActiveEnd - mActiveStart
+                ? ThreadPool.PRIORITY_NEAR_VISIBLE
+                : ThreadPool.PRIORITY_PREFETCH;
+    }
+
     private void cancelNonactiveImages() {
         int range = Math.max(
                 (mContentEnd - mActiveEnd), (mActiveStart - mContentStart));
@@ -252,9 +280,24 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         entry.rotation = (item == null) ? 0 : item.getRotation();
         entry.contentLoader = new ThumbnailLoader(slotIndex, entry.item);
         mData[slotIndex % mData.length] = entry;
+        if (entry.path != null) mPendingLocate.add(entry.path);
+    }
+
+    // Submits one batch lookup for the thumbnails of the slots prepared since
+    // the last call. It runs at PRIORITY_IMMEDIATE, so it is taken ahead of
+    // the per-slot requests, which are submitted after it and would otherwise
+    // run first.
+    private void locatePendingImages() {
+        if (mPendingLocate.isEmpty()) return;
+        Path[] paths = mPendingLocate.toArray(new Path[mPendingLocate.size()]);
+        mPendingLocate.clear();
+        mLocatePool.submit(new ImageCacheLocateRequest(
+                mApplication, paths, MediaItem.TYPE_MICROTHUMBNAIL), null,
+                ThreadPool.PRIORITY_IMMEDIATE);
     }
 
     private void updateAllImageRequests() {
+        locatePendingImages();
         mActiveRequestCount = 0;
         for (int i = mActiveStart, n = mActiveEnd; i < n; ++i) {
             if (requestSlotImage(i)) ++mActiveRequestCount;
@@ -277,13 +320,15 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
 
         @Override
         protected void recycleBitmap(Bitmap bitmap) {
-            MediaItem.getMicroThumbPool().recycle(bitmap);
+            MediaItem.getThumbnailCache().put(
+                    mItem, MediaItem.TYPE_MICROTHUMBNAIL, bitmap);
         }
 
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
             return mThreadPool.submit(
-                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this);
+                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this,
+                    getSlotPriority(mSlotIndex));
         }
 
         @Override
@@ -342,6 +387,7 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
 
     public void pause() {
         mIsActive = false;
+        mPendingLocate.clear();
         mTextureUploader.clear();
         for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
             freeSlotContent(i);
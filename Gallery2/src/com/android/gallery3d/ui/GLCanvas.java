@@ -102,6 +102,11 @@ public interface GLCanvas {
     // GL is needed.
     public GL11 getGLInstance();
 
+    // Passes the drawing calls the canvas has held back to GL. The canvas
+    // does this by itself before it or the caller of getGLInstance() uses
+    // GL, so this is only needed by GLRoot at the end of a frame.
+    public void flush();
+
     // Unloads the specified texture from the canvas. The resource allocated
     // to draw the texture will be released. The specified texture will return
     // to the unloaded state. This function should be called only from
@@ -47,6 +47,19 @@ public class GLCanvasImpl implements GLCanvas {
             0, 0, 1, 1,              // used for drawing a line
             0, 0, 0, 1, 1, 1, 1, 0}; // used for drawing the outline of a rectangle
 
+    // In batching mode, consecutive fillRect, drawTexture and drawMixed calls
+    // which share the texture (or the fill color) and the blend state are
+    // collected and drawn by one glDrawArrays when the state changes. Each
+    // quad is two triangles, and each vertex is (x, y) in window coordinates
+    // followed by (u, v).
+    private static final int BATCH_FILL = 0;
+    private static final int BATCH_TEXTURE = 1;
+    private static final int BATCH_MIXED = 2;
+    private static final int MAX_BATCH_QUADS = 64;
+    private static final int VERTICES_PER_QUAD = 6;
+    private static final int FLOATS_PER_VERTEX = 4;
+    private static final int VERTEX_STRIDE = FLOATS_PER_VERTEX * Float.SIZE / Byte.SIZE;
+
     private final GL11 mGL;
 
     private final float mMatrixValues[] = new float[16];
@@ -79,21 +92,53 @@ public class GLCanvasImpl implements GLCanvas {
 
     private RawTexture mTargetTexture;
 
+    private boolean mBatchEnabled;
+    private final float[] mBatchVertices =
+            new float[MAX_BATCH_QUADS * VERTICES_PER_QUAD * FLOATS_PER_VERTEX];
+    private final FloatBuffer mBatchBuffer;
+    private final FloatBuffer mBatchUVBuffer;
+    private int mBatchQuadCount;
+    private int mBatchMode;
+    private int mBatchTextureId;
+    private int mBatchTextureTarget;
+    private int mBatchColor;
+    private float mBatchAlpha;
+    private float mBatchRatio;
+    private boolean mBatchBlend;
+    // Set if the batch has one quad which glDrawTexiOES can draw, in the
+    // window rectangle mBatchDrawTexRect (x, y, width, height).
+    private boolean mBatchDrawTex;
+    private final int[] mBatchDrawTexRect = new int[4];
+
     // Drawing statistics
     int mCountDrawLine;
     int mCountFillRect;
     int mCountDrawMesh;
     int mCountTextureRect;
     int mCountTextureOES;
+    int mCountBatch;
+    int mCountBatchQuad;
 
     GLCanvasImpl(GL11 gl) {
         mGL = gl;
         mGLState = new GLState(gl);
+        mBatchBuffer = allocateDirectNativeOrderBuffer(
+                mBatchVertices.length * Float.SIZE / Byte.SIZE).asFloatBuffer();
+        mBatchUVBuffer = mBatchBuffer.duplicate();
+        mBatchUVBuffer.position(2);
         initialize();
     }
 
+    // Turns the batching mode on or off. It is off by default, so every
+    // drawing call is passed to GL right away.
+    public void setBatchEnabled(boolean enabled) {
+        if (!enabled) flush();
+        mBatchEnabled = enabled;
+    }
+
     public void setSize(int width, int height) {
         Utils.assertTrue(width >= 0 && height >= 0);
+        flush();
 
         if (mTargetTexture == null) {
             mScreenWidth = width;
@@ -167,6 +212,7 @@ public class GLCanvasImpl implements GLCanvas {
     }
 
     public void drawRect(float x, float y, float width, float height, GLPaint paint) {
+        flush();
         GL11 gl = mGL;
 
         mGLState.setColorMode(paint.getColor(), mAlpha);
@@ -184,6 +230,7 @@ public class GLCanvasImpl implements GLCanvas {
     }
 
     public void drawLine(float x1, float y1, float x2, float y2, GLPaint paint) {
+        flush();
         GL11 gl = mGL;
 
         mGLState.setColorMode(paint.getColor(), mAlpha);
@@ -201,6 +248,13 @@ public class GLCanvasImpl implements GLCanvas {
     }
 
     public void fillRect(float x, float y, float width, float height, int color) {
+        if (canBatch()) {
+            beginBatch(BATCH_FILL, 0, 0, color, mAlpha, 0, false);
+            addQuad(x, y, width, height, 0, 0, 0, 0);
+            mCountFillRect++;
+            return;
+        }
+        flush();
         mGLState.setColorMode(color, mAlpha);
         GL11 gl = mGL;
 
@@ -264,6 +318,7 @@ public class GLCanvasImpl implements GLCanvas {
 
     public void drawMesh(BasicTexture tex, int x, int y, int xyBuffer,
             int uvBuffer, int indexBuffer, int indexCount) {
+        flush();
         float alpha = mAlpha;
         if (!bindTexture(tex)) return;
 
@@ -352,6 +407,36 @@ public class GLCanvasImpl implements GLCanvas {
         }
     }
 
+    // Adds the texture to the batch, in the way drawBoundTexture() draws it.
+    private void batchBoundTexture(int mode, BasicTexture texture, int color,
+            float ratio, float alpha, boolean blend,
+            int x, int y, int width, int height) {
+        beginBatch(mode, texture.getId(), texture.getTarget(),
+                color, alpha, ratio, blend);
+        if (mBatchQuadCount == 0 && !isMatrixRotatedOrFlipped(mMatrixValues)) {
+            float points[] = mapPoints(
+                    mMatrixValues, x, y + height, x + width, y);
+            int[] rect = mBatchDrawTexRect;
+            rect[0] = (int) (points[0] + 0.5f);
+            rect[1] = (int) (points[1] + 0.5f);
+            rect[2] = (int) (points[2] + 0.5f) - rect[0];
+            rect[3] = (int) (points[3] + 0.5f) - rect[1];
+            if (rect[2] <= 0 || rect[3] <= 0) return;
+            mBatchDrawTex = true;
+        }
+        if (texture.hasBorder()) {
+            addQuad(x, y, width, height,
+                    1.0f / texture.getTextureWidth(),
+                    1.0f / texture.getTextureHeight(),
+                    (texture.getWidth() - 1.0f) / texture.getTextureWidth(),
+                    (texture.getHeight() - 1.0f) / texture.getTextureHeight());
+        } else {
+            addQuad(x, y, width, height, 0, 0,
+                    (float) texture.getWidth() / texture.getTextureWidth(),
+                    (float) texture.getHeight() / texture.getTextureHeight());
+        }
+    }
+
     public void drawTexture(
             BasicTexture texture, int x, int y, int width, int height) {
         drawTexture(texture, x, y, width, height, mAlpha);
@@ -361,8 +446,16 @@ public class GLCanvasImpl implements GLCanvas {
             int x, int y, int width, int height, float alpha) {
         if (width <= 0 || height <= 0) return;
 
-        mGLState.setBlendEnabled(mBlendEnabled
-                && (!texture.isOpaque() || alpha < OPAQUE_ALPHA));
+        boolean blend = mBlendEnabled
+                && (!texture.isOpaque() || alpha < OPAQUE_ALPHA);
+        if (canBatch()) {
+            if (!texture.onBind(this)) return;
+            batchBoundTexture(BATCH_TEXTURE, texture, 0, 0, alpha, blend,
+                    x, y, width, height);
+            return;
+        }
+        flush();
+        mGLState.setBlendEnabled(blend);
         if (!bindTexture(texture)) return;
         mGLState.setTextureAlpha(alpha);
         drawBoundTexture(texture, x, y, width, height);
@@ -377,8 +470,20 @@ public class GLCanvasImpl implements GLCanvas {
         source = mDrawTextureSourceRect;
         target = mDrawTextureTargetRect;
 
-        mGLState.setBlendEnabled(mBlendEnabled
-                && (!texture.isOpaque() || mAlpha < OPAQUE_ALPHA));
+        boolean blend = mBlendEnabled
+                && (!texture.isOpaque() || mAlpha < OPAQUE_ALPHA);
+        if (canBatch()) {
+            if (!texture.onBind(this)) return;
+            convertCoordinate(source, target, texture);
+            beginBatch(BATCH_TEXTURE, texture.getId(), texture.getTarget(),
+                    0, mAlpha, 0, blend);
+            addQuad(target.left, target.top, target.width(), target.height(),
+                    source.left, source.top, source.right, source.bottom);
+            mCountTextureRect++;
+            return;
+        }
+        flush();
+        mGLState.setBlendEnabled(blend);
         if (!bindTexture(texture)) return;
         convertCoordinate(source, target, texture);
         setTextureCoords(source);
@@ -388,6 +493,7 @@ public class GLCanvasImpl implements GLCanvas {
 
     public void drawTexture(BasicTexture texture, float[] mTextureTransform,
             int x, int y, int w, int h) {
+        flush();
         mGLState.setBlendEnabled(mBlendEnabled
                 && (!texture.isOpaque() || mAlpha < OPAQUE_ALPHA));
         if (!bindTexture(texture)) return;
@@ -459,11 +565,26 @@ public class GLCanvasImpl implements GLCanvas {
             return;
         }
 
-        mGLState.setBlendEnabled(mBlendEnabled && (!from.isOpaque()
-                || !Utils.isOpaque(toColor) || alpha < OPAQUE_ALPHA));
+        boolean blend = mBlendEnabled && (!from.isOpaque()
+                || !Utils.isOpaque(toColor) || alpha < OPAQUE_ALPHA);
+        if (canBatch()) {
+            if (!from.onBind(this)) return;
+            batchBoundTexture(BATCH_MIXED, from, toColor, ratio, alpha, blend,
+                    x, y, width, height);
+            return;
+        }
+        flush();
+        mGLState.setBlendEnabled(blend);
+        if (!bindTexture(from)) return;
+        setMixedColor(toColor, ratio, alpha);
+        drawBoundTexture(from, x, y, width, height);
+        mGLState.setTexEnvMode(GL11.GL_REPLACE);
+    }
 
+    // Sets the texture environment to draw the bound texture mixed with
+    // toColor, see drawMixed().
+    private void setMixedColor(int toColor, float ratio, float alpha) {
         final GL11 gl = mGL;
-        if (!bindTexture(from)) return;
 
         //
         // The formula we want:
@@ -504,9 +625,120 @@ public class GLCanvasImpl implements GLCanvas {
         // Wire up the interpolation factor for alpha.
         gl.glTexEnvf(GL11.GL_TEXTURE_ENV, GL11.GL_SRC2_ALPHA, GL11.GL_CONSTANT);
         gl.glTexEnvf(GL11.GL_TEXTURE_ENV, GL11.GL_OPERAND2_ALPHA, GL11.GL_SRC_ALPHA);
+    }
 
-        drawBoundTexture(from, x, y, width, height);
-        mGLState.setTexEnvMode(GL11.GL_REPLACE);
+    // Returns true if a quad drawn now can be added to the batch. It needs
+    // the current matrix to map the canvas to the window by a 2D affine
+    // transform, so the vertices can be transformed before they are batched.
+    private boolean canBatch() {
+        if (!mBatchEnabled) return false;
+        float[] m = mMatrixValues;
+        return m[2] == 0 && m[3] == 0 && m[6] == 0 && m[7] == 0
+                && m[14] == 0 && m[15] == 1;
+    }
+
+    // Flushes the batch unless it is drawn with the given state and has room
+    // for one more quad, then makes the state the batch state.
+    private void beginBatch(int mode, int textureId, int textureTarget,
+            int color, float alpha, float ratio, boolean blend) {
+        if (mBatchQuadCount > 0) {
+            if (mBatchMode == mode && mBatchTextureId == textureId
+                    && mBatchTextureTarget == textureTarget
+                    && mBatchColor == color && mBatchAlpha == alpha
+                    && mBatchRatio == ratio && mBatchBlend == blend
+                    && mBatchQuadCount < MAX_BATCH_QUADS) {
+                return;
+            }
+            flush();
+        }
+        mBatchMode = mode;
+        mBatchTextureId = textureId;
+        mBatchTextureTarget = textureTarget;
+        mBatchColor = color;
+        mBatchAlpha = alpha;
+        mBatchRatio = ratio;
+        mBatchBlend = blend;
+        mBatchDrawTex = false;
+    }
+
+    private static int putVertex(float[] v, int i,
+            float x, float y, float s, float t) {
+        v[i] = x;
+        v[i + 1] = y;
+        v[i + 2] = s;
+        v[i + 3] = t;
+        return i + FLOATS_PER_VERTEX;
+    }
+
+    // Adds the rectangle (x, y, width, height) with the texture coordinates
+    // (u0, v0) - (u1, v1) to the batch, mapped to the window by the current
+    // matrix.
+    private void addQuad(float x, float y, float width, float height,
+            float u0, float v0, float u1, float v1) {
+        float[] m = mMatrixValues;
+        float x0 = m[0] * x + m[4] * y + m[12];
+        float y0 = m[1] * x + m[5] * y + m[13];
+        float dxWidth = m[0] * width;
+        float dyWidth = m[1] * width;
+        float dxHeight = m[4] * height;
+        float dyHeight = m[5] * height;
+
+        float[] v = mBatchVertices;
+        int i = mBatchQuadCount * VERTICES_PER_QUAD * FLOATS_PER_VERTEX;
+        i = putVertex(v, i, x0, y0, u0, v0);
+        i = putVertex(v, i, x0 + dxWidth, y0 + dyWidth, u1, v0);
+        i = putVertex(v, i, x0 + dxHeight, y0 + dyHeight, u0, v1);
+        i = putVertex(v, i, x0 + dxWidth, y0 + dyWidth, u1, v0);
+        i = putVertex(v, i, x0 + dxHeight, y0 + dyHeight, u0, v1);
+        putVertex(v, i, x0 + dxWidth + dxHeight, y0 + dyWidth + dyHeight, u1, v1);
+        mBatchQuadCount++;
+        mCountBatchQuad++;
+    }
+
+    public void flush() {
+        int count = mBatchQuadCount;
+        if (count == 0) return;
+        mBatchQuadCount = 0;
+
+        GL11 gl = mGL;
+        if (mBatchMode == BATCH_FILL) {
+            mGLState.setColorMode(mBatchColor, mBatchAlpha);
+        } else {
+            mGLState.setBlendEnabled(mBatchBlend);
+            mGLState.setTextureTarget(mBatchTextureTarget);
+            gl.glBindTexture(mBatchTextureTarget, mBatchTextureId);
+            if (mBatchMode == BATCH_MIXED) {
+                setMixedColor(mBatchColor, mBatchRatio, mBatchAlpha);
+            } else {
+                mGLState.setTextureAlpha(mBatchAlpha);
+            }
+        }
+
+        if (count == 1 && mBatchDrawTex) {
+            int[] rect = mBatchDrawTexRect;
+            ((GL11Ext) gl).glDrawTexiOES(rect[0], rect[1], 0, rect[2], rect[3]);
+            mCountTextureOES++;
+        } else {
+            // The vertices are in window coordinates already.
+            gl.glMatrixMode(GL11.GL_TEXTURE);
+            gl.glLoadIdentity();
+            gl.glMatrixMode(GL11.GL_MODELVIEW);
+            gl.glLoadIdentity();
+
+            mBatchBuffer.put(mBatchVertices, 0,
+                    count * VERTICES_PER_QUAD * FLOATS_PER_VERTEX).position(0);
+            gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, 0);
+            gl.glVertexPointer(2, GL11.GL_FLOAT, VERTEX_STRIDE, mBatchBuffer);
+            gl.glTexCoordPointer(2, GL11.GL_FLOAT, VERTEX_STRIDE, mBatchUVBuffer);
+            gl.glDrawArrays(GL11.GL_TRIANGLES, 0, count * VERTICES_PER_QUAD);
+
+            gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, mBoxCoords);
+            gl.glVertexPointer(2, GL11.GL_FLOAT, 0, 0);
+            gl.glTexCoordPointer(2, GL11.GL_FLOAT, 0, 0);
+            mCountBatch++;
+        }
+
+        if (mBatchMode == BATCH_MIXED) mGLState.setTexEnvMode(GL11.GL_REPLACE);
     }
 
     // TODO: the code only work for 2D should get fixed for 3D or removed
@@ -626,11 +858,14 @@ public class GLCanvasImpl implements GLCanvas {
         }
     }
 
+    // The caller may change the GL state, so the batch is drawn first.
     public GL11 getGLInstance() {
+        flush();
         return mGL;
     }
 
     public void clearBuffer() {
+        flush();
         mGL.glClear(GL10.GL_COLOR_BUFFER_BIT);
     }
 
@@ -674,6 +909,7 @@ public class GLCanvasImpl implements GLCanvas {
     }
 
     public void deleteRecycledResources() {
+        flush();
         synchronized (mUnboundTextures) {
             IntArray ids = mUnboundTextures;
             if (ids.size() > 0) {
@@ -748,14 +984,17 @@ public class GLCanvasImpl implements GLCanvas {
 
     public void dumpStatisticsAndClear() {
         String line = String.format(
-                "MESH:%d, TEX_OES:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d",
+                "MESH:%d, TEX_OES:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d, "
+                + "BATCH:%d (%d quads)",
                 mCountDrawMesh, mCountTextureRect, mCountTextureOES,
-                mCountFillRect, mCountDrawLine);
+                mCountFillRect, mCountDrawLine, mCountBatch, mCountBatchQuad);
         mCountDrawMesh = 0;
         mCountTextureRect = 0;
         mCountTextureOES = 0;
         mCountFillRect = 0;
         mCountDrawLine = 0;
+        mCountBatch = 0;
+        mCountBatchQuad = 0;
         Log.d(TAG, line);
     }
 
@@ -768,6 +1007,7 @@ public class GLCanvasImpl implements GLCanvas {
     }
 
     private void setRenderTarget(RawTexture texture) {
+        flush();
         GL11ExtensionPack gl11ep = (GL11ExtensionPack) mGL;
 
         if (mTargetTexture == null && texture != null) {
@@ -258,7 +258,9 @@ public class GLRootView extends GLSurfaceView
         mRenderLock.lock();
         try {
             mGL = gl;
-            mCanvas = new GLCanvasImpl(gl);
+            GLCanvasImpl canvas = new GLCanvasImpl(gl);
+            canvas.setBatchEnabled(true);
+            mCanvas = canvas;
             BasicTexture.invalidateAllTextures();
         } finally {
             mRenderLock.unlock();
@@ -396,6 +398,8 @@ public class GLRootView extends GLSurfaceView
             mInvalidateColor = ~mInvalidateColor;
         }
 
+        mCanvas.flush();
+
         if (DEBUG_DRAWING_STAT) {
             mCanvas.dumpStatisticsAndClear();
         }
@@ -460,7 +464,9 @@ public class GLRootView extends GLSurfaceView
             }
             mRenderLock.lock();
             try {
-                if (!listener.onGLIdle(mCanvas, mRenderRequested)) return;
+                boolean more = listener.onGLIdle(mCanvas, mRenderRequested);
+                mCanvas.flush();
+                if (!more) return;
             } finally {
                 mRenderLock.unlock();
             }
@@ -22,7 +22,20 @@ import java.util.ArrayDeque;
 
 public class TextureUploader implements OnGLIdleListener {
     private static final int INIT_CAPACITY = 64;
-    private static final int QUOTA_PER_FRAME = 1;
+
+    // The upload budget of one idle call, in time and in texture bytes. The
+    // time budget is smaller if a frame is waiting to be drawn. At least one
+    // texture is uploaded in each call, however large it is.
+    private static final long IDLE_BUDGET_NANOS = 8000000L;
+    private static final long RENDER_BUDGET_NANOS = 4000000L;
+    private static final int BUDGET_BYTES = 2 * 1024 * 1024;
+
+    // The uploader is backlogged once this many calls in a row ran out of
+    // budget with textures left.
+    private static final int BACKLOG_CALL_COUNT = 4;
+
+    // The weight of the newest sample in the running average.
+    private static final float AVERAGE_WEIGHT = 0.25f;
 
     private final ArrayDeque<UploadedTexture> mFgTextures =
             new ArrayDeque<UploadedTexture>(INIT_CAPACITY);
@@ -31,6 +44,18 @@ public class TextureUploader implements OnGLIdleListener {
     private final GLRoot mGLRoot;
     private transient boolean mIsQueued = false;
 
+    // The state of the current idle call. Only used on the GL thread.
+    private long mCallStart;
+    private long mCallBudget;
+    private int mCallBytes;
+    private int mCallCount;
+
+    // The upload time of one byte, to tell if a texture fits the budget
+    // before uploading it. Only used on the GL thread.
+    private float mNanosPerByte;
+
+    private volatile int mOutOfBudgetCount;
+
     public TextureUploader(GLRoot root) {
         mGLRoot = root;
     }
@@ -65,15 +90,42 @@ public class TextureUploader implements OnGLIdleListener {
         queueSelfIfNeed();
     }
 
-    private int upload(GLCanvas canvas, ArrayDeque<UploadedTexture> deque,
-            int uploadQuota, boolean isBackground) {
-        while (uploadQuota > 0) {
+    /**
+     * Returns true if the recent idle calls ran out of budget before all the
+     * textures were uploaded. The sliding windows queue fewer background
+     * textures then, so the visible ones are not kept waiting.
+     */
+    public boolean isBacklogged() {
+        return mOutOfBudgetCount >= BACKLOG_CALL_COUNT;
+    }
+
+    private static float average(float average, float sample) {
+        return average + (sample - average) * AVERAGE_WEIGHT;
+    }
+
+    // Returns false if the budget ran out before the deque was drained.
+    private boolean upload(GLCanvas canvas, ArrayDeque<UploadedTexture> deque,
+            boolean isBackground) {
+        while (true) {
             UploadedTexture t;
+            int bytes;
+            long start = System.nanoTime();
             synchronized (this) {
-                if (deque.isEmpty()) break;
-                t = deque.removeFirst();
+                if (deque.isEmpty()) return true;
+                t = deque.peekFirst();
+                if (t.isContentValid()) {
+                    deque.removeFirst();
+                    t.setIsUploading(false);
+                    continue;
+                }
+                bytes = Math.max(1, t.getWidth() * t.getHeight() * 4);
+                if (mCallCount > 0 && (mCallBytes + bytes > BUDGET_BYTES
+                        || start - mCallStart + (long) (bytes * mNanosPerByte)
+                        > mCallBudget)) {
+                    return false;
+                }
+                deque.removeFirst();
                 t.setIsUploading(false);
-                if (t.isContentValid()) continue;
 
                 // this has to be protected by the synchronized block
                 // to prevent the inner bitmap get recycled
@@ -85,17 +137,27 @@ public class TextureUploader implements OnGLIdleListener {
             // Thus, when scrolling, if a new column appears on screen,
             // it may cause a UI jank even these textures are uploaded.
             if (isBackground) t.draw(canvas, 0, 0);
-            --uploadQuota;
+
+            long nanos = System.nanoTime() - start;
+            mNanosPerByte = mCallCount == 0 && mNanosPerByte == 0
+                    ? (float) nanos / bytes
+                    : average(mNanosPerByte, (float) nanos / bytes);
+            mCallBytes += bytes;
+            ++mCallCount;
         }
-        return uploadQuota;
     }
 
     @Override
     public boolean onGLIdle(GLCanvas canvas, boolean renderRequested) {
-        int uploadQuota = QUOTA_PER_FRAME;
-        uploadQuota = upload(canvas, mFgTextures, uploadQuota, false);
-        if (uploadQuota < QUOTA_PER_FRAME) mGLRoot.requestRender();
-        upload(canvas, mBgTextures, uploadQuota, true);
+        mCallStart = System.nanoTime();
+        mCallBudget = renderRequested ? RENDER_BUDGET_NANOS : IDLE_BUDGET_NANOS;
+        mCallBytes = 0;
+        mCallCount = 0;
+        boolean drained = upload(canvas, mFgTextures, false);
+        if (mCallCount > 0) mGLRoot.requestRender();
+        if (drained) drained = upload(canvas, mBgTextures, true);
+
+        mOutOfBudgetCount = drained ? 0 : mOutOfBudgetCount + 1;
         synchronized (this) {
             mIsQueued = !mFgTextures.isEmpty() || !mBgTextures.isEmpty();
             return mIsQueued;
@@ -27,11 +27,12 @@ import com.android.gallery3d.app.GalleryContext;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BitmapPool;
 import com.android.gallery3d.data.DecodeUtils;
+import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.ThreadPool;
-import com.android.gallery3d.util.ThreadPool.CancelListener;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TileImageView extends GLView {
@@ -47,8 +48,13 @@ public class TileImageView extends GLView {
     private static final int BITMAP_SIZE = TILE_SIZE + TILE_BORDER * 2;
     private static final int UPLOAD_LIMIT = 1;
 
-    private static final BitmapPool sTilePool =
-            new BitmapPool(BITMAP_SIZE, BITMAP_SIZE, 128);
+    // The number of tiles decoded at the same time. We leave at least one
+    // thread of the pool for the other jobs.
+    static final int TILE_DECODER_COUNT = Utils.clamp(
+            Runtime.getRuntime().availableProcessors(), 1, 3);
+
+    private static final BitmapPool sTilePool = new BitmapPool(
+            BITMAP_SIZE, BITMAP_SIZE, MediaItem.getBitmapPool());
 
     /*
      *  This is the tile state in the CPU side.
@@ -57,6 +63,7 @@ public class TileImageView extends GLView {
      *              --> IN_QUEUE - by queueForDecode()
      *              --> RECYCLED - by recycleTile()
      *      IN_QUEUE --> DECODING - by decodeTile()
+     *               --> ACTIVATED - by activateTile()
      *               --> RECYCLED - by recycleTile)
      *      DECODING --> RECYCLING - by recycleTile()
      *               --> DECODED  - by decodeTile()
@@ -66,6 +73,9 @@ public class TileImageView extends GLView {
      *      DECODED --> RECYCLED - by recycleTile()
      *      DECODE_FAIL -> RECYCLED - by recycleTile()
      *      RECYCLED --> ACTIVATED - by obtainTile()
+     *
+     *  All the transitions are made while holding TileImageView.this, so a
+     *  tile in the decode queue is claimed by exactly one decoder.
      */
     private static final int STATE_ACTIVATED = 0x01;
     private static final int STATE_IN_QUEUE = 0x02;
@@ -100,10 +110,21 @@ public class TileImageView extends GLView {
 
     private final LongSparseArray<Tile> mActiveTiles = new LongSparseArray<Tile>();
 
-    // The following three queue is guarded by TileImageView.this
+    // The following three queue and the decoders are guarded by
+    // TileImageView.this
     private final TileQueue mRecycledQueue = new TileQueue();
     private final TileQueue mUploadQueue = new TileQueue();
     private final TileQueue mDecodeQueue = new TileQueue();
+    private final ArrayList<TileDecoder> mTileDecoders =
+            new ArrayList<TileDecoder>(TILE_DECODER_COUNT);
+    private boolean mDecoderEnabled = true;
+
+    // The center of the view and the level on display when the tiles were
+    // last laid out. Queued tiles are decoded from this center outwards.
+    // Guarded by TileImageView.this
+    private int mDecodeCenterX;
+    private int mDecodeCenterY;
+    private int mDecodeLevel;
 
     // The width and height of the full-sized bitmap
     protected int mImageWidth = SIZE_UNKNOWN;
@@ -120,7 +141,6 @@ public class TileImageView extends GLView {
 
     private final TileUploader mTileUploader = new TileUploader();
     private boolean mIsTextureFreed;
-    private Future<Void> mTileDecoder;
     private final ThreadPool mThreadPool;
     private boolean mBackgroundTileUploaded;
 
@@ -141,14 +161,14 @@ public class TileImageView extends GLView {
         // the original image (down-scaled by a factor of 2^level), but (x, y)
         // still refers to the coordinate on the original image.
         //
-        // The method would be called in another thread.
+        // The method would be called in other threads, and may be called
+        // from several of them at the same time.
         public Bitmap getTile(int level, int x, int y, int tileSize,
                 int borderSize, BitmapPool pool);
     }
 
     public TileImageView(GalleryContext context) {
         mThreadPool = context.getThreadPool();
-        mTileDecoder = mThreadPool.submit(new TileDecoder());
     }
 
     public void setModel(Model model) {
@@ -235,6 +255,9 @@ public class TileImageView extends GLView {
             mDecodeQueue.clean();
             mUploadQueue.clean();
             mBackgroundTileUploaded = false;
+            mDecodeCenterX = centerX;
+            mDecodeCenterY = centerY;
+            mDecodeLevel = mLevel;
 
             // Recycle unused tiles: if the level of the active tile is outside the
             // range [fromLevel, endLevel) or not in the visible range.
@@ -354,10 +377,16 @@ public class TileImageView extends GLView {
     public void freeTextures() {
         mIsTextureFreed = true;
 
-        if (mTileDecoder != null) {
-            mTileDecoder.cancel();
-            mTileDecoder.get();
-            mTileDecoder = null;
+        TileDecoder decoders[];
+        synchronized (this) {
+            mDecoderEnabled = false;
+            decoders = mTileDecoders.toArray(new TileDecoder[mTileDecoders.size()]);
+        }
+        for (TileDecoder decoder : decoders) {
+            decoder.mFuture.cancel();
+        }
+        for (TileDecoder decoder : decoders) {
+            decoder.mFuture.get();
         }
 
         int n = mActiveTiles.size();
@@ -382,8 +411,9 @@ public class TileImageView extends GLView {
     }
 
     public void prepareTextures() {
-        if (mTileDecoder == null) {
-            mTileDecoder = mThreadPool.submit(new TileDecoder());
+        synchronized (this) {
+            mDecoderEnabled = true;
+            if (mDecodeQueue.mHead != null) startTileDecoder();
         }
         if (mIsTextureFreed) {
             layoutTiles(mCenterX, mCenterY, mScale, mRotation);
@@ -473,10 +503,46 @@ public class TileImageView extends GLView {
     synchronized void queueForDecode(Tile tile) {
         if (tile.mTileState == STATE_ACTIVATED) {
             tile.mTileState = STATE_IN_QUEUE;
-            if (mDecodeQueue.push(tile)) notifyAll();
+            mDecodeQueue.push(tile);
+            startTileDecoder();
         }
     }
 
+    // The decoders are started on demand and exit when the decode queue is
+    // drained, so they don't hold threads of the pool while the image is idle.
+    private void startTileDecoder() {
+        if (!mDecoderEnabled || mTileDecoders.size() >= TILE_DECODER_COUNT) {
+            return;
+        }
+        TileDecoder decoder = new TileDecoder();
+        mTileDecoders.add(decoder);
+        decoder.mFuture = mThreadPool.submit(decoder);
+    }
+
+    // Returns the queued tile which should be decoded next, or null if there
+    // is none. Tiles of the level on display go first, and then the ones
+    // nearest to the center of the view.
+    private Tile nextTileToDecode() {
+        Tile best = null;
+        Tile bestPrevious = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (Tile prev = null, tile = mDecodeQueue.mHead;
+                tile != null; prev = tile, tile = tile.mNext) {
+            int half = (TILE_SIZE << tile.mTileLevel) / 2;
+            long dx = tile.mX + half - mDecodeCenterX;
+            long dy = tile.mY + half - mDecodeCenterY;
+            long distance = dx * dx + dy * dy;
+            if (tile.mTileLevel != mDecodeLevel) distance += Long.MAX_VALUE / 2;
+            if (distance < bestDistance) {
+                best = tile;
+                bestPrevious = prev;
+                bestDistance = distance;
+            }
+        }
+        if (best != null) mDecodeQueue.remove(bestPrevious, best);
+        return best;
+    }
+
     boolean decodeTile(Tile tile) {
         synchronized (this) {
             if (tile.mTileState != STATE_IN_QUEUE) return false;
@@ -525,8 +591,10 @@ public class TileImageView extends GLView {
         long key = makeTileKey(x, y, level);
         Tile tile = mActiveTiles.get(key);
         if (tile != null) {
-            if (tile.mTileState == STATE_IN_QUEUE) {
-                tile.mTileState = STATE_ACTIVATED;
+            synchronized (this) {
+                if (tile.mTileState == STATE_IN_QUEUE) {
+                    tile.mTileState = STATE_ACTIVATED;
+                }
             }
             return;
         }
@@ -721,7 +789,7 @@ public class TileImageView extends GLView {
     }
 
     private static class TileQueue {
-        private Tile mHead;
+        Tile mHead;
 
         public Tile pop() {
             Tile tile = mHead;
@@ -736,38 +804,40 @@ public class TileImageView extends GLView {
             return wasEmpty;
         }
 
+        // Removes the tile which follows the given previous one (or the
+        // head if previous is null).
+        public void remove(Tile previous, Tile tile) {
+            if (previous == null) {
+                mHead = tile.mNext;
+            } else {
+                previous.mNext = tile.mNext;
+            }
+            tile.mNext = null;
+        }
+
         public void clean() {
             mHead = null;
         }
     }
 
     private class TileDecoder implements ThreadPool.Job<Void> {
-
-        private CancelListener mNotifier = new CancelListener() {
-            @Override
-            public void onCancel() {
-                synchronized (TileImageView.this) {
-                    TileImageView.this.notifyAll();
-                }
-            }
-        };
+        // Set by startTileDecoder() right after the decoder is submitted.
+        Future<Void> mFuture;
 
         @Override
         public Void run(JobContext jc) {
             jc.setMode(ThreadPool.MODE_NONE);
-            jc.setCancelListener(mNotifier);
-            while (!jc.isCancelled()) {
+            while (true) {
                 Tile tile = null;
-                synchronized(TileImageView.this) {
-                    tile = mDecodeQueue.pop();
-                    if (tile == null && !jc.isCancelled()) {
-                        Utils.waitWithoutInterrupt(TileImageView.this);
+                synchronized (TileImageView.this) {
+                    if (!jc.isCancelled()) tile = nextTileToDecode();
+                    if (tile == null) {
+                        mTileDecoders.remove(this);
+                        return null;
                     }
                 }
-                if (tile == null) continue;
                 if (decodeTile(tile)) queueForUpload(tile);
             }
-            return null;
         }
     }
 }
@@ -24,9 +24,19 @@ import android.graphics.Rect;
 
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BitmapPool;
+import com.android.gallery3d.util.ThreadPool;
+import com.android.gallery3d.util.ThreadPool.Job;
+
+import java.util.ArrayList;
 
 public class TileImageViewAdapter implements TileImageView.Model {
     private static final String TAG = "TileImageViewAdapter";
+
+    // The number of decoders we may open in addition to mRegionDecoder, so
+    // each tile decoder of TileImageView can have one of its own.
+    private static final int MAX_EXTRA_DECODER_COUNT =
+            TileImageView.TILE_DECODER_COUNT - 1;
+
     protected ScreenNail mScreenNail;
     protected boolean mOwnScreenNail;
     protected BitmapRegionDecoder mRegionDecoder;
@@ -34,6 +44,16 @@ public class TileImageViewAdapter implements TileImageView.Model {
     protected int mImageHeight;
     protected int mLevelCount;
 
+    // The job to open more decoders on the image of mRegionDecoder, or null
+    // if all the tiles must be decoded by mRegionDecoder. The extra decoders
+    // are owned by this adapter and recycled when the image changes.
+    private Job<BitmapRegionDecoder> mDecoderSource;
+    private final ArrayList<BitmapRegionDecoder> mFreeDecoders =
+            new ArrayList<BitmapRegionDecoder>();
+    private int mExtraDecoderCount;
+    private int mDecoderGeneration;
+    private int mRegionDecoderUsers;
+
     public TileImageViewAdapter() {
     }
 
@@ -53,6 +73,7 @@ public class TileImageViewAdapter implements TileImageView.Model {
         mImageHeight = 0;
         mLevelCount = 0;
         mRegionDecoder = null;
+        releaseExtraDecoders();
     }
 
     public synchronized void setScreenNail(Bitmap bitmap, int width, int height) {
@@ -62,6 +83,7 @@ public class TileImageViewAdapter implements TileImageView.Model {
         mImageHeight = height;
         mRegionDecoder = null;
         mLevelCount = 0;
+        releaseExtraDecoders();
     }
 
     public synchronized void setScreenNail(
@@ -72,6 +94,7 @@ public class TileImageViewAdapter implements TileImageView.Model {
         mImageHeight = height;
         mRegionDecoder = null;
         mLevelCount = 0;
+        releaseExtraDecoders();
     }
 
     private void updateScreenNail(ScreenNail screenNail, boolean own) {
@@ -83,12 +106,82 @@ public class TileImageViewAdapter implements TileImageView.Model {
     }
 
     public synchronized void setRegionDecoder(BitmapRegionDecoder decoder) {
+        setRegionDecoder(decoder, null);
+    }
+
+    // The source is a job which opens another decoder on the same image, so
+    // the tiles can be decoded in parallel. It is only worth passing if that
+    // is cheap, e.g. for a local file.
+    public synchronized void setRegionDecoder(BitmapRegionDecoder decoder,
+            Job<BitmapRegionDecoder> source) {
+        releaseExtraDecoders();
         mRegionDecoder = Utils.checkNotNull(decoder);
+        mDecoderSource = source;
         mImageWidth = decoder.getWidth();
         mImageHeight = decoder.getHeight();
         mLevelCount = calculateLevelCount();
     }
 
+    private void releaseExtraDecoders() {
+        for (BitmapRegionDecoder decoder : mFreeDecoders) {
+            decoder.recycle();
+        }
+        mFreeDecoders.clear();
+        mDecoderSource = null;
+        mExtraDecoderCount = 0;
+        mRegionDecoderUsers = 0;
+        ++mDecoderGeneration;
+    }
+
+    // Returns a decoder for the image of the given generation which no other
+    // tile is using, if we have or can open one. Otherwise returns
+    // mRegionDecoder, which is then shared and used under its lock. Returns
+    // null if the image has changed.
+    private BitmapRegionDecoder acquireDecoder(int generation) {
+        Job<BitmapRegionDecoder> source;
+        synchronized (this) {
+            if (generation != mDecoderGeneration) return null;
+            if (mRegionDecoderUsers == 0 || (mFreeDecoders.isEmpty()
+                    && (mDecoderSource == null
+                    || mExtraDecoderCount >= MAX_EXTRA_DECODER_COUNT))) {
+                ++mRegionDecoderUsers;
+                return mRegionDecoder;
+            }
+            int n = mFreeDecoders.size();
+            if (n > 0) return mFreeDecoders.remove(n - 1);
+            ++mExtraDecoderCount;
+            source = mDecoderSource;
+        }
+
+        // Opening a decoder reads the image header, so do it outside the lock.
+        BitmapRegionDecoder decoder = source.run(ThreadPool.JOB_CONTEXT_STUB);
+
+        synchronized (this) {
+            if (generation != mDecoderGeneration) {
+                if (decoder != null) decoder.recycle();
+                return null;
+            }
+            if (decoder != null) return decoder;
+            // Don't try again for this image.
+            mDecoderSource = null;
+            ++mRegionDecoderUsers;
+            return mRegionDecoder;
+        }
+    }
+
+    private synchronized void releaseDecoder(BitmapRegionDecoder decoder,
+            boolean isRegionDecoder, int generation) {
+        if (generation != mDecoderGeneration) {
+            // The image has changed. The region decoder is not ours to
+            // recycle, but the extra ones are.
+            if (!isRegionDecoder) decoder.recycle();
+        } else if (isRegionDecoder) {
+            --mRegionDecoderUsers;
+        } else {
+            mFreeDecoders.add(decoder);
+        }
+    }
+
     private int calculateLevelCount() {
         return Math.max(0, Utils.ceilLog2(
                 (float) mImageWidth / mScreenNail.getWidth()));
@@ -114,11 +207,13 @@ public class TileImageViewAdapter implements TileImageView.Model {
         Rect wantRegion = new Rect(x - b, y - b, x + t + b, y + t + b);
 
         boolean needClear;
-        BitmapRegionDecoder regionDecoder = null;
+        BitmapRegionDecoder imageDecoder;
+        int generation;
 
         synchronized (this) {
-            regionDecoder = mRegionDecoder;
-            if (regionDecoder == null) return null;
+            imageDecoder = mRegionDecoder;
+            if (imageDecoder == null) return null;
+            generation = mDecoderGeneration;
 
             // We need to clear a reused bitmap, if wantRegion is not fully
             // within the image.
@@ -140,12 +235,21 @@ public class TileImageViewAdapter implements TileImageView.Model {
         options.inSampleSize =  (1 << level);
         options.inBitmap = bitmap;
 
+        BitmapRegionDecoder regionDecoder = acquireDecoder(generation);
+        if (regionDecoder == null) {
+            if (pool != null) pool.recycle(bitmap);
+            return null;
+        }
+
         try {
-            // In CropImage, we may call the decodeRegion() concurrently.
+            // The region decoder may be shared by several tiles, and in
+            // CropImage, we may call the decodeRegion() concurrently.
             synchronized (regionDecoder) {
                 bitmap = regionDecoder.decodeRegion(wantRegion, options);
             }
         } finally {
+            releaseDecoder(regionDecoder,
+                    regionDecoder == imageDecoder, generation);
             if (options.inBitmap != bitmap && options.inBitmap != null) {
                 if (pool != null) pool.recycle(options.inBitmap);
                 options.inBitmap = null;
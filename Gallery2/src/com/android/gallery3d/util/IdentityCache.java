@@ -19,13 +19,16 @@ package com.android.gallery3d.util;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+// A map whose values are weakly referenced. The entry of a value is removed
+// after the value has been garbage collected. It is safe for concurrent use,
+// and get() takes no lock.
 public class IdentityCache<K, V> {
 
-    private final HashMap<K, Entry<K, V>> mWeakMap =
-            new HashMap<K, Entry<K, V>>();
+    private final ConcurrentHashMap<K, Entry<K, V>> mWeakMap =
+            new ConcurrentHashMap<K, Entry<K, V>>();
     private ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
 
     public IdentityCache() {
@@ -40,23 +43,39 @@ public class IdentityCache<K, V> {
         }
     }
 
+    @SuppressWarnings("unchecked")
     private void cleanUpWeakMap() {
         Entry<K, V> entry = (Entry<K, V>) mQueue.poll();
         while (entry != null) {
-            mWeakMap.remove(entry.mKey);
+            // The key may have been given a new entry already.
+            mWeakMap.remove(entry.mKey, entry);
             entry = (Entry<K, V>) mQueue.poll();
         }
     }
 
-    public synchronized V put(K key, V value) {
+    public V put(K key, V value) {
         cleanUpWeakMap();
         Entry<K, V> entry = mWeakMap.put(
                 key, new Entry<K, V>(key, value, mQueue));
         return entry == null ? null : entry.get();
     }
 
-    public synchronized V get(K key) {
+    // Puts the value if there is no value for the key, and returns the
+    // value for the key after that.
+    public V putIfAbsent(K key, V value) {
         cleanUpWeakMap();
+        Entry<K, V> newEntry = new Entry<K, V>(key, value, mQueue);
+        while (true) {
+            Entry<K, V> entry = mWeakMap.putIfAbsent(key, newEntry);
+            if (entry == null) return value;
+            V current = entry.get();
+            if (current != null) return current;
+            // The old value is gone but its entry is not cleaned up yet.
+            if (mWeakMap.replace(key, entry, newEntry)) return value;
+        }
+    }
+
+    public V get(K key) {
         Entry<K, V> entry = mWeakMap.get(key);
         return entry == null ? null : entry.get();
     }
@@ -70,7 +89,7 @@ public class IdentityCache<K, V> {
     */
 
     // This is for debugging only
-    public synchronized ArrayList<K> keys() {
+    public ArrayList<K> keys() {
         Set<K> set = mWeakMap.keySet();
         ArrayList<K> result = new ArrayList<K>(set);
         return result;
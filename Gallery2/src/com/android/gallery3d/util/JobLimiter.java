@@ -20,9 +20,12 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 
-// Limit the number of concurrent jobs that has been submitted into a ThreadPool
+// Limit the number of concurrent jobs that has been submitted into a ThreadPool.
+// Waiting jobs are submitted in the order of their priority, and in the order
+// they came within one priority.
 @SuppressWarnings("rawtypes")
 public class JobLimiter implements FutureListener {
     private static final String TAG = "JobLimiter";
@@ -34,7 +37,13 @@ public class JobLimiter implements FutureListener {
     private static final int STATE_DONE = 1;
     private static final int STATE_CANCELLED = 2;
 
-    private final LinkedList<JobWrapper<?>> mJobs = new LinkedList<JobWrapper<?>>();
+    private static final int PRIORITY_COUNT =
+            ThreadPool.PRIORITY_BACKGROUND - ThreadPool.PRIORITY_IMMEDIATE + 1;
+
+    // mJobs[priority - PRIORITY_IMMEDIATE] are the waiting jobs with the
+    // priority.
+    private final ArrayList<LinkedList<JobWrapper<?>>> mJobs =
+            new ArrayList<LinkedList<JobWrapper<?>>>(PRIORITY_COUNT);
     private final ThreadPool mPool;
     private int mLimit;
 
@@ -44,10 +53,12 @@ public class JobLimiter implements FutureListener {
         private Future<T> mDelegate;
         private FutureListener<T> mListener;
         private T mResult;
+        private final int mPriority;
 
-        public JobWrapper(Job<T> job, FutureListener<T> listener) {
+        public JobWrapper(Job<T> job, FutureListener<T> listener, int priority) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
         }
 
         public synchronized void setFuture(Future<T> future) {
@@ -131,22 +142,39 @@ public class JobLimiter implements FutureListener {
     public JobLimiter(ThreadPool pool, int limit) {
         mPool = Utils.checkNotNull(pool);
         mLimit = limit;
+        for (int i = 0; i < PRIORITY_COUNT; ++i) {
+            mJobs.add(new LinkedList<JobWrapper<?>>());
+        }
     }
 
-    public synchronized <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        JobWrapper<T> future = new JobWrapper<T>(Utils.checkNotNull(job), listener);
-        mJobs.addLast(future);
+    public synchronized <T> Future<T> submit(
+            Job<T> job, FutureListener<T> listener, int priority) {
+        if (priority < ThreadPool.PRIORITY_IMMEDIATE
+                || priority > ThreadPool.PRIORITY_BACKGROUND) {
+            throw new IllegalArgumentException("priority: " + priority);
+        }
+        JobWrapper<T> future = new JobWrapper<T>(
+                Utils.checkNotNull(job), listener, priority);
+        mJobs.get(priority - ThreadPool.PRIORITY_IMMEDIATE).addLast(future);
         submitTasksIfAllowed();
         return future;
     }
 
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, ThreadPool.PRIORITY_VISIBLE);
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     private void submitTasksIfAllowed() {
-        while (mLimit > 0 && !mJobs.isEmpty()) {
-            JobWrapper wrapper = mJobs.removeFirst();
-            if (!wrapper.isCancelled()) {
-                --mLimit;
-                wrapper.setFuture(mPool.submit(wrapper, this));
+        for (int i = 0; i < PRIORITY_COUNT && mLimit > 0; ++i) {
+            LinkedList<JobWrapper<?>> jobs = mJobs.get(i);
+            while (mLimit > 0 && !jobs.isEmpty()) {
+                JobWrapper wrapper = jobs.removeFirst();
+                if (!wrapper.isCancelled()) {
+                    --mLimit;
+                    wrapper.setFuture(
+                            mPool.submit(wrapper, this, wrapper.mPriority));
+                }
             }
         }
     }
@@ -25,6 +25,8 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 
 import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.common.LruCache;
+import com.android.gallery3d.common.Utils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -51,7 +53,19 @@ public class ReverseGeocoder {
     private static final String GEO_CACHE_FILE = "rev_geocoding";
     private static final int GEO_CACHE_MAX_ENTRIES = 1000;
     private static final int GEO_CACHE_MAX_BYTES = 500 * 1024;
-    private static final int GEO_CACHE_VERSION = 0;
+    private static final int GEO_CACHE_VERSION = 1;
+
+    // The points are looked up by geohash cell, so the photos taken a few
+    // meters apart share one address. The default cell is about 20 meters
+    // high and 40 meters wide at the equator.
+    public static final int DEFAULT_CELL_BITS = 40;
+    private static final int MAX_CELL_BITS = 56;
+
+    // The decoded addresses of the cells looked up recently, shared by all
+    // the instances.
+    private static final int ADDRESS_CACHE_CAPACITY = 256;
+    private static final LruCache<Long, Address> sAddressCache =
+            new LruCache<Long, Address>(ADDRESS_CACHE_CAPACITY);
 
     public static class SetLatLong {
         // The latitude and longitude of the min latitude point.
@@ -72,10 +86,17 @@ public class ReverseGeocoder {
     private Geocoder mGeocoder;
     private BlobCache mGeoCache;
     private ConnectivityManager mConnectivityManager;
+    private final int mCellBits;
     private static Address sCurrentAddress; // last known address
 
     public ReverseGeocoder(Context context) {
+        this(context, DEFAULT_CELL_BITS);
+    }
+
+    public ReverseGeocoder(Context context, int cellBits) {
+        Utils.assertTrue(cellBits > 0 && cellBits <= MAX_CELL_BITS);
         mContext = context;
+        mCellBits = cellBits;
         mGeocoder = new Geocoder(mContext);
         mGeoCache = CacheManager.getCache(context, GEO_CACHE_FILE,
                 GEO_CACHE_MAX_ENTRIES, GEO_CACHE_MAX_BYTES,
@@ -97,8 +118,11 @@ public class ReverseGeocoder {
             setMaxLatitude = set.mMaxLonLatitude;
             setMaxLongitude = set.mMaxLonLongitude;
         }
-        Address addr1 = lookupAddress(setMinLatitude, setMinLongitude, true);
-        Address addr2 = lookupAddress(setMaxLatitude, setMaxLongitude, true);
+        Address[] addresses = lookupAddresses(
+                new double[] {setMinLatitude, setMaxLatitude},
+                new double[] {setMinLongitude, setMaxLongitude});
+        Address addr1 = addresses[0];
+        Address addr2 = addresses[1];
         if (addr1 == null)
             addr1 = addr2;
         if (addr2 == null)
@@ -301,11 +325,72 @@ public class ReverseGeocoder {
         return null;
     }
 
+    // Returns the geohash of the cell holding the point: the bits of the
+    // longitude and the latitude interleaved, the longitude first.
+    public static long getGeohash(double latitude, double longitude,
+            int bits) {
+        int lngBits = (bits + 1) / 2;
+        int latBits = bits / 2;
+        long lng = getCellIndex(longitude, LON_MIN, LON_MAX, lngBits);
+        long lat = getCellIndex(latitude, LAT_MIN, LAT_MAX, latBits);
+        long hash = 0;
+        for (int i = lngBits - 1; i >= 0; i--) {
+            hash = (hash << 1) | ((lng >> i) & 1);
+            if (i < latBits) hash = (hash << 1) | ((lat >> i) & 1);
+        }
+        return hash;
+    }
+
+    private static long getCellIndex(double value, int min, int max, int bits) {
+        long count = 1L << bits;
+        long index = (long) Math.floor((value - min) / (max - min) * count);
+        return Utils.clamp(index, 0, count - 1);
+    }
+
+    // The cell bits are kept in the low bits of the key, so the cells of
+    // different sizes never share a key.
+    private long getCellKey(double latitude, double longitude) {
+        return (getGeohash(latitude, longitude, mCellBits) << 6) | mCellBits;
+    }
+
+    /**
+     * Looks up the addresses of the given points. The points in one cell
+     * share one lookup.
+     */
+    public Address[] lookupAddresses(double[] latitudes, double[] longitudes) {
+        int n = latitudes.length;
+        Address[] addresses = new Address[n];
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = getCellKey(latitudes[i], longitudes[i]);
+            int j = 0;
+            while (j < i && keys[j] != keys[i]) ++j;
+            addresses[i] = j < i
+                    ? addresses[j]
+                    : lookupAddress(latitudes[i], longitudes[i], true);
+        }
+        return addresses;
+    }
+
     public Address lookupAddress(final double latitude, final double longitude,
             boolean useCache) {
+        long locationKey = getCellKey(latitude, longitude);
+        Address address = null;
+        if (useCache) {
+            address = sAddressCache.get(locationKey);
+            if (address != null && address.getLocale().getLanguage().equals(
+                    Locale.getDefault().getLanguage())) {
+                return address;
+            }
+        }
+        address = lookupAddress(locationKey, latitude, longitude, useCache);
+        if (address != null) sAddressCache.put(locationKey, address);
+        return address;
+    }
+
+    private Address lookupAddress(long locationKey, final double latitude,
+            final double longitude, boolean useCache) {
         try {
-            long locationKey = (long) (((latitude + LAT_MAX) * 2 * LAT_MAX
-                    + (longitude + LON_MAX)) * EARTH_RADIUS_METERS);
             byte[] cachedLocation = null;
             if (useCache && mGeoCache != null) {
                 cachedLocation = mGeoCache.lookup(locationKey);
@@ -368,7 +453,7 @@ public class ReverseGeocoder {
                 }
                 if (!locale.getLanguage().equals(Locale.getDefault().getLanguage())) {
                     dis.close();
-                    return lookupAddress(latitude, longitude, false);
+                    return lookupAddress(locationKey, latitude, longitude, false);
                 }
                 address = new Address(locale);
 
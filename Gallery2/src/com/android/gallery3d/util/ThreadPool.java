@@ -16,22 +16,40 @@
 
 package com.android.gallery3d.util;
 
+import java.util.Comparator;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadPool {
     private static final String TAG = "ThreadPool";
     private static final int CORE_POOL_SIZE = 4;
     private static final int MAX_POOL_SIZE = 8;
     private static final int KEEP_ALIVE_TIME = 10; // 10 seconds
+    private static final int INITIAL_QUEUE_SIZE = 32;
 
     // Resource type
     public static final int MODE_NONE = 0;
     public static final int MODE_CPU = 1;
     public static final int MODE_NETWORK = 2;
 
+    // Job priority. Queued jobs are run in the order of their priority, and
+    // the most recently submitted job first within one priority, since it is
+    // usually for what the user is looking at now. PRIORITY_IMMEDIATE is for
+    // a job which should run before the visible jobs submitted after it, like
+    // a batch lookup the per-item jobs will use.
+    public static final int PRIORITY_IMMEDIATE = -1;
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_NEAR_VISIBLE = 1;
+    public static final int PRIORITY_PREFETCH = 2;
+    public static final int PRIORITY_BACKGROUND = 3;
+
+    // A cancelled job is moved ahead of all others, so it is dropped, and its
+    // listener called, as soon as a thread is free.
+    private static final int PRIORITY_CANCELLED = -2;
+
     public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
     ResourceCounter mCpuCounter = new ResourceCounter(2);
@@ -75,26 +93,48 @@ public class ThreadPool {
         }
     }
 
+    private static class WorkerComparator implements Comparator<Runnable> {
+        @Override
+        public int compare(Runnable r1, Runnable r2) {
+            Worker<?> w1 = (Worker<?>) r1;
+            Worker<?> w2 = (Worker<?>) r2;
+            if (w1.mPriority != w2.mPriority) {
+                return w1.mPriority < w2.mPriority ? -1 : 1;
+            }
+            return w1.mSequence > w2.mSequence ? -1
+                    : w1.mSequence == w2.mSequence ? 0 : 1;
+        }
+    }
+
     private final Executor mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue;
+    private final AtomicLong mNextSequence = new AtomicLong();
 
     public ThreadPool() {
+        mQueue = new PriorityBlockingQueue<Runnable>(
+                INITIAL_QUEUE_SIZE, new WorkerComparator());
         mExecutor = new ThreadPoolExecutor(
                 CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                TimeUnit.SECONDS, mQueue,
                 new PriorityThreadFactory("thread-pool",
                 android.os.Process.THREAD_PRIORITY_BACKGROUND));
     }
 
     // Submit a job to the thread pool. The listener will be called when the
     // job is finished (or cancelled).
-    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        Worker<T> w = new Worker<T>(job, listener);
+    public <T> Future<T> submit(
+            Job<T> job, FutureListener<T> listener, int priority) {
+        Worker<T> w = new Worker<T>(job, listener, priority);
         mExecutor.execute(w);
         return w;
     }
 
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, PRIORITY_VISIBLE);
+    }
+
     public <T> Future<T> submit(Job<T> job) {
-        return submit(job, null);
+        return submit(job, null, PRIORITY_VISIBLE);
     }
 
     private class Worker<T> implements Runnable, Future<T>, JobContext {
@@ -108,9 +148,15 @@ public class ThreadPool {
         private T mResult;
         private int mMode;
 
-        public Worker(Job<T> job, FutureListener<T> listener) {
+        // Only changed while the worker is not in mQueue.
+        private int mPriority;
+        private final long mSequence;
+
+        public Worker(Job<T> job, FutureListener<T> listener, int priority) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mSequence = mNextSequence.getAndIncrement();
         }
 
         // This is called by a thread in the thread pool.
@@ -137,16 +183,22 @@ public class ThreadPool {
         }
 
         // Below are the methods for Future.
-        public synchronized void cancel() {
-            if (mIsCancelled) return;
-            mIsCancelled = true;
-            if (mWaitOnResource != null) {
-                synchronized (mWaitOnResource) {
-                    mWaitOnResource.notifyAll();
+        public void cancel() {
+            synchronized (this) {
+                if (mIsCancelled) return;
+                mIsCancelled = true;
+                if (mWaitOnResource != null) {
+                    synchronized (mWaitOnResource) {
+                        mWaitOnResource.notifyAll();
+                    }
+                }
+                if (mCancelListener != null) {
+                    mCancelListener.onCancel();
                 }
             }
-            if (mCancelListener != null) {
-                mCancelListener.onCancel();
+            if (mQueue.remove(this)) {
+                mPriority = PRIORITY_CANCELLED;
+                mQueue.offer(this);
             }
         }
 
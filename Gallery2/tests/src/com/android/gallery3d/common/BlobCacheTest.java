@@ -27,6 +27,7 @@ import android.util.Log;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 public class BlobCacheTest extends AndroidTestCase {
@@ -99,6 +100,20 @@ public class BlobCacheTest extends AndroidTestCase {
         bc.close();
     }
 
+    @SmallTest
+    public void testByteBufferChecksum() throws IOException {
+        BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, true);
+        Random rand = new Random(0);
+        for (int size : new int[] {0, 1, 3, 1024, 3854, 3855, 20000}) {
+            byte[] buf = new byte[size + 2];
+            rand.nextBytes(buf);
+            ByteBuffer bb = ByteBuffer.wrap(buf, 1, size);
+            assertEquals(bc.checkSum(buf, 1, size), BlobCache.checkSum(bb));
+            assertEquals(1, bb.position());
+        }
+        bc.close();
+    }
+
     private static final int HEADER_SIZE = 32;
     private static final int DATA_HEADER_SIZE = 4;
     private static final int BLOB_HEADER_SIZE = 20;
@@ -269,6 +284,197 @@ public class BlobCacheTest extends AndroidTestCase {
         bc.close();
     }
 
+    @MediumTest
+    public void testMappedLookup() throws IOException {
+        BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, true);
+        BlobCache.MappedLookupRequest req = new BlobCache.MappedLookupRequest();
+
+        req.key = 1;
+        assertFalse(bc.lookup(req));
+        assertNull(req.data);
+
+        genData(DATA_0, 1);
+        bc.insert(1, DATA_0);
+        genData(DATA_1, 2);
+        bc.insert(2, DATA_1);
+
+        req.key = 1;
+        assertTrue(bc.lookup(req));
+        genData(DATA_0, 1);
+        assertSameData(DATA_0, req.data);
+
+        // Looking up again with the same request releases the old blob.
+        req.key = 2;
+        assertTrue(bc.lookup(req));
+        assertSameData(DATA_1, req.data);
+        bc.release(req);
+        assertNull(req.data);
+        bc.release(req);
+
+        bc.close();
+    }
+
+    @MediumTest
+    public void testMappedLookupAcrossFlip() throws IOException {
+        BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, true);
+        BlobCache.MappedLookupRequest req = new BlobCache.MappedLookupRequest();
+        int maxFit = (MAX_BYTES - DATA_HEADER_SIZE) /
+                (BLOB_HEADER_SIZE + DATA_0.length);
+
+        for (int k = 0; k < maxFit; k++) {
+            genData(DATA_0, k);
+            bc.insert(k, DATA_0);
+        }
+        genData(DATA_0, 777);
+        bc.insert(KEY_1, DATA_0);
+        assertEquals(1, bc.getActiveCount());
+
+        // A blob in the inactive region is returned and copied over.
+        req.key = 3;
+        assertTrue(bc.lookup(req));
+        genData(DATA_0, 3);
+        assertSameData(DATA_0, req.data);
+        bc.release(req);
+        assertEquals(2, bc.getActiveCount());
+        assertSameData(DATA_0, bc.lookup(3));
+
+        // A blob stays readable until it's released.
+        req.key = KEY_1;
+        assertTrue(bc.lookup(req));
+        genData(DATA_0, 777);
+        assertSameData(DATA_0, req.data);
+        bc.release(req);
+
+        bc.close();
+    }
+
+    // The data files are mapped a window at a time, so blobs spread over a
+    // few MB, and a blob larger than a window, are found through different
+    // mappings. A blob stays readable after the window it was found in has
+    // been replaced.
+    @MediumTest
+    public void testMappedLookupWindows() throws IOException {
+        final int maxBytes = 8 * 1024 * 1024;
+        final int n = 40;
+        BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, maxBytes, true);
+        byte[][] data = new byte[n + 1][];
+        for (int i = 0; i < n; i++) {
+            data[i] = new byte[100 * 1024 + i];
+            genData(data[i], i);
+            bc.insert(i, data[i]);
+        }
+        data[n] = new byte[1536 * 1024];
+        genData(data[n], n);
+        bc.insert(n, data[n]);
+
+        BlobCache.MappedLookupRequest held = new BlobCache.MappedLookupRequest();
+        held.key = 0;
+        assertTrue(bc.lookup(held));
+        BlobCache.MappedLookupRequest req = new BlobCache.MappedLookupRequest();
+        Random random = new Random(1);
+        for (int i = 0; i < 3 * n; i++) {
+            req.key = random.nextInt(n + 1);
+            assertTrue(bc.lookup(req));
+            assertSameData(data[(int) req.key], req.data);
+        }
+        bc.release(req);
+        assertSameData(data[0], held.data);
+        bc.release(held);
+
+        bc.close();
+    }
+
+    @MediumTest
+    public void testBatchInsertAndLocate() throws IOException {
+        BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, true);
+        int n = 10;
+        long[] keys = new long[n];
+        byte[][] data = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            keys[i] = KEY_0 + i;
+            data[i] = new byte[DATA_0.length];
+            genData(data[i], i);
+        }
+        bc.insert(keys, data, n);
+        assertEquals(n, bc.getActiveCount());
+
+        // Locate the inserted keys, plus one which is not in the cache.
+        BlobCache.MappedLookupRequest[] reqs = new BlobCache.MappedLookupRequest[n + 1];
+        for (int i = 0; i <= n; i++) {
+            reqs[i] = new BlobCache.MappedLookupRequest();
+            reqs[i].key = KEY_0 + i;
+        }
+        assertEquals(n, bc.locate(reqs, n + 1));
+        for (int i = 0; i < n; i++) {
+            assertTrue(bc.lookup(reqs[i]));
+            assertSameData(data[i], reqs[i].data);
+            bc.release(reqs[i]);
+        }
+        assertFalse(bc.lookup(reqs[n]));
+
+        // A flip after locate() makes the lookup probe the index again.
+        assertEquals(n, bc.locate(reqs, n));
+        int maxFit = (MAX_BYTES - DATA_HEADER_SIZE) /
+                (BLOB_HEADER_SIZE + DATA_0.length);
+        for (int k = n; k <= maxFit; k++) {
+            genData(DATA_0, k);
+            bc.insert(KEY_2 + k, DATA_0);
+        }
+        assertEquals(1, bc.getActiveCount());
+        assertTrue(bc.lookup(reqs[0]));
+        assertSameData(data[0], reqs[0].data);
+        bc.release(reqs[0]);
+
+        bc.close();
+    }
+
+    @MediumTest
+    public void testCompaction() throws IOException {
+        // Each region takes 50 entries, and compaction starts at 38.
+        BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, 100000, true);
+        byte[] data = new byte[10];
+
+        for (int i = 0; i < 50; i++) {
+            genData(data, i);
+            bc.insert(i, data);
+        }
+        // Keys 0..4 are hot.
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(bc.lookup(i));
+            assertNotNull(bc.lookup(i));
+        }
+
+        // Flip, then fill the new active region up to the compaction start.
+        for (int i = 100; i < 137; i++) {
+            genData(data, i);
+            bc.insert(i, data);
+        }
+        assertFalse(bc.needsCompaction());
+        assertEquals(0, bc.compact(Integer.MAX_VALUE));
+        bc.insert(137, data);
+        assertTrue(bc.needsCompaction());
+        assertEquals(5 * (BLOB_HEADER_SIZE + data.length),
+                bc.compact(Integer.MAX_VALUE));
+        assertEquals(43, bc.getActiveCount());
+        assertFalse(bc.needsCompaction());
+        assertEquals(0, bc.compact(Integer.MAX_VALUE));
+
+        // Flip again. The region holding keys 0..49 is truncated, but the
+        // hot ones were copied.
+        for (int i = 138; i < 146; i++) {
+            bc.insert(i, data);
+        }
+        for (int i = 0; i < 5; i++) {
+            byte[] blob = bc.lookup(i);
+            genData(data, i);
+            assertSameData(data, blob);
+        }
+        for (int i = 5; i < 50; i++) {
+            assertNull(bc.lookup(i));
+        }
+        bc.close();
+    }
+
     @MediumTest
     public void testKeyCollision() throws IOException {
         BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, true);
@@ -714,6 +920,59 @@ public class BlobCacheTest extends AndroidTestCase {
         bc.close();
     }
 
+    @LargeTest
+    public void testConcurrentLookup() throws Exception {
+        final BlobCache bc = new BlobCache(TEST_FILE_NAME, MAX_ENTRIES, MAX_BYTES, true);
+        final int keyCount = 20;
+        final boolean[] failed = new boolean[1];
+
+        // Readers look up all keys repeatedly while the writer keeps inserting
+        // them, so lookups race with appends, copy-overs and region flips.
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] expected = new byte[DATA_0.length];
+                    BlobCache.LookupRequest req = new BlobCache.LookupRequest();
+                    try {
+                        for (int i = 0; i < 200 * keyCount; i++) {
+                            int k = i % keyCount;
+                            req.key = k;
+                            if (!bc.lookup(req)) continue;
+                            genData(expected, k);
+                            if (req.length != expected.length) failed[0] = true;
+                            for (int j = 0; j < expected.length; j++) {
+                                if (req.buffer[j] != expected[j]) failed[0] = true;
+                            }
+                        }
+                    } catch (IOException ex) {
+                        failed[0] = true;
+                    }
+                }
+            };
+            readers[t].start();
+        }
+
+        byte[] data = new byte[DATA_0.length];
+        for (int i = 0; i < 100 * keyCount; i++) {
+            int k = i % keyCount;
+            genData(data, k);
+            bc.insert(k, data);
+        }
+
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertFalse(failed[0]);
+
+        for (int k = 0; k < keyCount; k++) {
+            genData(data, k);
+            assertSameData(data, bc.lookup(k));
+        }
+        bc.close();
+    }
+
     private void genData(byte[] data, int seed) {
         for(int i = 0; i < data.length; i++) {
             data[i] = (byte) (seed * i);
@@ -729,6 +988,14 @@ public class BlobCacheTest extends AndroidTestCase {
         }
     }
 
+    private void assertSameData(byte[] data1, ByteBuffer data2) {
+        if (data1 == null || data2 == null) fail();
+        if (data1.length != data2.remaining()) fail();
+        for (int i = 0; i < data1.length; i++) {
+            if (data1[i] != data2.get(data2.position() + i)) fail();
+        }
+    }
+
     private void assertSameData(byte[] data1, byte[] data2, int n) {
         if (data1 == null || data2 == null) fail();
         for (int i = 0; i < n; i++) {
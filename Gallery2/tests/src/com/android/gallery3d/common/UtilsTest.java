@@ -193,6 +193,16 @@ public class UtilsTest extends AndroidTestCase {
         assertFalse(Utils.isOpaque(0xAA0000FF));
     }
 
+    @SmallTest
+    public void testCrc64String() {
+        assertEquals(0, Utils.crc64Long((String) null));
+        assertEquals(0, Utils.crc64Long(""));
+        String[] inputs = {"a", "/local/image/item/123+2", "\u4e2d\u6587"};
+        for (String in : inputs) {
+            assertEquals(Utils.crc64Long(Utils.getBytes(in)), Utils.crc64Long(in));
+        }
+    }
+
     public static void assertFloatEq(float expected, float actual) {
         if (Math.abs(actual - expected) > 1e-6) {
             Log.v(TAG, "expected: " + expected + ", actual: " + actual);
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class BitmapPoolTest extends AndroidTestCase {
+    private static final String TAG = "BitmapPoolTest";
+
+    private static Bitmap create(int width, int height) {
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    @SmallTest
+    public void testBuckets() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap a = create(10, 20);
+        Bitmap b = create(20, 10);
+        pool.recycle(a);
+        pool.recycle(b);
+        assertEquals(2 * 10 * 20 * 4, pool.getSize());
+
+        assertNull(pool.getBitmap(10, 10));
+        assertNull(pool.getBitmap(10, 20, Bitmap.Config.RGB_565));
+        assertSame(b, pool.getBitmap(20, 10));
+        assertSame(a, pool.getBitmap(10, 20));
+        assertNull(pool.getBitmap(10, 20));
+        assertEquals(0, pool.getSize());
+        assertEquals(2, pool.getHitCount());
+        assertEquals(3, pool.getMissCount());
+    }
+
+    @SmallTest
+    public void testByteLimit() {
+        // Room for three 10x10 bitmaps.
+        BitmapPool pool = new BitmapPool(3 * 10 * 10 * 4);
+        Bitmap a = create(10, 10);
+        Bitmap b = create(10, 10);
+        Bitmap c = create(5, 20);
+        Bitmap d = create(10, 10);
+        pool.recycle(a);
+        pool.recycle(b);
+        pool.recycle(c);
+        pool.recycle(d);
+
+        // a is the least recently recycled one, even though c is in
+        // another bucket.
+        assertEquals(1, pool.getEvictionCount());
+        assertSame(d, pool.getBitmap(10, 10));
+        assertSame(b, pool.getBitmap(10, 10));
+        assertNull(pool.getBitmap(10, 10));
+        assertSame(c, pool.getBitmap(5, 20));
+
+        // A bitmap larger than the whole pool is not kept.
+        Bitmap big = create(20, 20);
+        pool.recycle(big);
+        assertTrue(big.isRecycled());
+        assertEquals(0, pool.getSize());
+    }
+
+    @SmallTest
+    public void testSharedViews() {
+        BitmapPool store = new BitmapPool(2 * 10 * 10 * 4);
+        BitmapPool small = new BitmapPool(5, 5, store);
+        BitmapPool large = new BitmapPool(10, 10, store);
+
+        Bitmap wrongSize = create(5, 10);
+        small.recycle(wrongSize);
+        assertTrue(wrongSize.isRecycled());
+
+        Bitmap a = create(5, 5);
+        Bitmap b = create(10, 10);
+        Bitmap c = create(10, 10);
+        small.recycle(a);
+        large.recycle(b);
+        large.recycle(c);
+
+        // Both views are charged to the one budget.
+        assertEquals(1, store.getEvictionCount());
+        assertNull(small.getBitmap());
+        assertSame(c, large.getBitmap());
+        assertSame(b, store.getBitmap(10, 10));
+
+        small.recycle(a);
+        large.recycle(b);
+        large.clear();
+        assertNull(large.getBitmap());
+        assertSame(a, small.getBitmap());
+    }
+}
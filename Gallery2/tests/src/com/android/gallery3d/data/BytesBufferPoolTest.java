@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
+import com.android.gallery3d.util.ThreadPool;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class BytesBufferPoolTest extends AndroidTestCase {
+    private static final String TAG = "BytesBufferPoolTest";
+
+    private static final int BUFFER_SIZE = 1000;  // rounded up to 1024
+
+    @SmallTest
+    public void testSizeClass() {
+        BytesBufferPool pool = new BytesBufferPool(4, BUFFER_SIZE);
+        BytesBuffer small = pool.get();
+        assertEquals(1024, small.data.length);
+        BytesBuffer large = pool.get(3000);
+        assertEquals(4096, large.data.length);
+
+        pool.recycle(small);
+        pool.recycle(large);
+        assertSame(large, pool.get(2049));
+        assertSame(small, pool.get(10));
+
+        // Larger than the largest class: not pooled.
+        assertEquals(1024 * 16, pool.getMaxBufferSize());
+        BytesBuffer huge = pool.get(1024 * 16 + 1);
+        assertEquals(1024 * 16 + 1, huge.data.length);
+        pool.recycle(huge);
+        assertNotSame(huge, pool.get(1024 * 16 + 1));
+    }
+
+    @MediumTest
+    public void testReadFrom() throws IOException {
+        BytesBufferPool pool = new BytesBufferPool(4, BUFFER_SIZE);
+        int[] sizes = {0, 1, 1024, 1025, 4096, 100000};
+        for (int size : sizes) {
+            File file = createFile(size);
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                BytesBuffer buffer =
+                        pool.readFrom(ThreadPool.JOB_CONTEXT_STUB, fis.getFD());
+                assertEquals(size, buffer.length);
+                // Sizes over the largest class are allocated exactly.
+                int expected = size > 16 * 1024 ? size
+                        : Math.max(1024, Utils.nextPowerOf2(Math.max(1, size)));
+                assertEquals(expected, buffer.data.length);
+                for (int i = 0; i < size; i++) {
+                    assertEquals((byte) i, buffer.data[i]);
+                }
+                pool.recycle(buffer);
+            } finally {
+                fis.close();
+                file.delete();
+            }
+        }
+    }
+
+    @SmallTest
+    public void testReadFromGrows() throws IOException {
+        File file = createFile(5000);
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            BytesBuffer buffer = new BytesBufferPool(4, BUFFER_SIZE).get();
+            buffer.readFrom(ThreadPool.JOB_CONTEXT_STUB, fis.getFD());
+            assertEquals(5000, buffer.length);
+            assertEquals(8192, buffer.data.length);
+            assertEquals((byte) 4999, buffer.data[4999]);
+        } finally {
+            fis.close();
+            file.delete();
+        }
+    }
+
+    private static File createFile(int size) throws IOException {
+        File file = File.createTempFile("bytes", null);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) i;
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.util.GalleryUtils;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+public class ImageCacheKeyTest extends AndroidTestCase {
+    private static final String TAG = "ImageCacheKeyTest";
+
+    private static final int ITEM_COUNT = 1000;
+    // The typical size of a micro thumbnail in the image cache.
+    private static final int THUMB_BYTES = 12 * 1024;
+
+    @SmallTest
+    public void testKeys() {
+        String a = "/local/image/item/1";
+        String b = "/local/image/item/2";
+        int thumb = MediaItem.TYPE_THUMBNAIL;
+        int micro = MediaItem.TYPE_MICROTHUMBNAIL;
+
+        assertEquals(ImageCacheService.makeCacheKey(a, thumb),
+                ImageCacheService.makeCacheKey(new String(a), thumb));
+        assertEquals(ImageCacheService.makeCheckKey(a, thumb),
+                ImageCacheService.makeCheckKey(new String(a), thumb));
+
+        assertFalse(ImageCacheService.makeCacheKey(a, thumb)
+                == ImageCacheService.makeCacheKey(a, micro));
+        assertFalse(ImageCacheService.makeCacheKey(a, thumb)
+                == ImageCacheService.makeCacheKey(b, thumb));
+        assertFalse(ImageCacheService.makeCheckKey(a, thumb)
+                == ImageCacheService.makeCheckKey(a, micro));
+        assertFalse(ImageCacheService.makeCheckKey(a, thumb)
+                == ImageCacheService.makeCheckKey(b, thumb));
+    }
+
+    // Compares the allocations made to compute the key of one lookup, and
+    // the bytes each entry spends on its key, with the old format which
+    // stored the UTF-16 bytes of path.toString() + "+" + type.
+    @LargeTest
+    public void testKeyCost() {
+        String[] names = new String[ITEM_COUNT];
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            names[i] = "/local/image/item/" + (100000 + i);
+        }
+        int type = MediaItem.TYPE_MICROTHUMBNAIL;
+        long sink = 0;
+
+        Debug.startAllocCounting();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        int oldKeyBytes = 0;
+        for (String name : names) {
+            byte[] key = GalleryUtils.getBytes(name + "+" + type);
+            sink += Utils.crc64Long(key);
+            oldKeyBytes += key.length;
+        }
+        int oldCount = Debug.getThreadAllocCount();
+        int oldSize = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        for (String name : names) {
+            sink += ImageCacheService.makeCacheKey(name, type);
+            sink += ImageCacheService.makeCheckKey(name, type);
+        }
+        int newCount = Debug.getThreadAllocCount();
+        int newSize = Debug.getThreadAllocSize();
+
+        Debug.stopAllocCounting();
+
+        Log.v(TAG, "allocations per lookup: " + (float) oldCount / ITEM_COUNT
+                + " (" + (float) oldSize / ITEM_COUNT + " bytes) -> "
+                + (float) newCount / ITEM_COUNT
+                + " (" + (float) newSize / ITEM_COUNT + " bytes)");
+        assertTrue(newCount < oldCount);
+
+        float oldEntry = THUMB_BYTES + (float) oldKeyBytes / ITEM_COUNT;
+        float newEntry = THUMB_BYTES + 8;
+        Log.v(TAG, "key bytes per entry: " + (oldEntry - THUMB_BYTES)
+                + " -> " + (newEntry - THUMB_BYTES) + ", capacity gain: "
+                + ((oldEntry / newEntry - 1) * 100) + "%, sink " + sink);
+    }
+}
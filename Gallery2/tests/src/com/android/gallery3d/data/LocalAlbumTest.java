@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+public class LocalAlbumTest extends AndroidTestCase {
+    private static final String TAG = "LocalAlbumTest";
+
+    private static final int BUCKET_ID = 0xB000;
+    private static final int OTHER_BUCKET_ID = 0xB001;
+    private static final int PAGE_SIZE = 64;
+    private static final int BENCHMARK_PAGES = 10;
+
+    private SQLiteDatabase mDatabase;
+    private GalleryAppStub mApp;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = SQLiteDatabase.create(null);
+        LocalDataTest.createImageTable(mDatabase);
+        mDatabase.execSQL("ALTER TABLE images ADD COLUMN width INTEGER");
+        mDatabase.execSQL("ALTER TABLE images ADD COLUMN height INTEGER");
+        mApp = LocalDataTest.newGalleryContext(mDatabase, Looper.getMainLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    // Inserts count images. Every sameDate images share a date taken, and
+    // every nullDate-th image has none, so the keys must break ties by id.
+    private void insertImages(int count, int sameDate, int nullDate) {
+        SQLiteStatement insert = mDatabase.compileStatement(
+                "INSERT INTO images (title, mime_type, datetaken, bucket_id, "
+                + "bucket_display_name, _data) VALUES ('IMG', 'image/jpeg', "
+                + "?, ?, 'name', '/mnt/sdcard/DCIM/IMG.JPG')");
+        Random random = new Random(1);
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (nullDate > 0 && i % nullDate == 0) {
+                    insert.bindNull(1);
+                } else {
+                    insert.bindLong(1, random.nextInt(count / sameDate + 1));
+                }
+                insert.bindString(2, String.valueOf(
+                        i % 10 == 0 ? OTHER_BUCKET_ID : BUCKET_ID));
+                insert.executeInsert();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private LocalAlbum newAlbum() {
+        Path.clearAll();
+        return new LocalAlbum(Path.fromString("/local/image/" + BUCKET_ID),
+                mApp, BUCKET_ID, true, "name");
+    }
+
+    // Returns the ids of the bucket in the order the album should list them.
+    private int[] queryIds() {
+        Cursor cursor = mDatabase.rawQuery("SELECT _id FROM images WHERE "
+                + "bucket_id = ? ORDER BY datetaken DESC, _id DESC",
+                new String[] {String.valueOf(BUCKET_ID)});
+        try {
+            int[] ids = new int[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getInt(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void assertPage(int[] ids, int start, int count,
+            ArrayList<MediaItem> items) {
+        assertEquals(Math.max(0, Math.min(count, ids.length - start)),
+                items.size());
+        for (int i = 0, n = items.size(); i < n; i++) {
+            assertEquals(ids[start + i], ((LocalMediaItem) items.get(i)).id);
+        }
+    }
+
+    @MediumTest
+    public void testPaging() {
+        insertImages(3000, 7, 50);
+        int[] ids = queryIds();
+        LocalAlbum album = newAlbum();
+        assertEquals(ids.length, album.getMediaItemCount());
+
+        // Sequential pages, then random ones from the keys they left.
+        for (int start = 0; start < ids.length; start += PAGE_SIZE) {
+            assertPage(ids, start, PAGE_SIZE, album.getMediaItem(start, PAGE_SIZE));
+        }
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            int start = random.nextInt(ids.length + 100);
+            int count = random.nextInt(200) + 1;
+            assertPage(ids, start, count, album.getMediaItem(start, count));
+        }
+
+        // A fresh album has no keys and jumps with an offset.
+        album = newAlbum();
+        assertPage(ids, 2000, 30, album.getMediaItem(2000, 30));
+        assertPage(ids, 10, 30, album.getMediaItem(10, 30));
+    }
+
+    @MediumTest
+    public void testEnumerate() {
+        insertImages(1000, 3, 20);
+        final int[] ids = queryIds();
+        LocalAlbum album = newAlbum();
+        final int[] count = new int[1];
+        int total = album.enumerateMediaItems(new MediaSet.ItemConsumer() {
+            @Override
+            public void consume(int index, MediaItem item) {
+                assertEquals(ids[index], ((LocalMediaItem) item).id);
+                count[0]++;
+            }
+        }, 0);
+        assertEquals(ids.length, total);
+        assertEquals(ids.length, count[0]);
+        assertEquals(ids.length, album.getMediaItemCount());
+
+        // The enumeration leaves the keys for paging.
+        assertPage(ids, 700, 50, album.getMediaItem(700, 50));
+    }
+
+    // Pages from several threads while the keys are dropped by reloads.
+    @MediumTest
+    public void testConcurrentPaging() throws Exception {
+        insertImages(3000, 7, 50);
+        final int[] ids = queryIds();
+        final LocalAlbum album = newAlbum();
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            int start = random.nextInt(ids.length);
+                            int count = random.nextInt(100) + 1;
+                            assertPage(ids, start, count,
+                                    album.getMediaItem(start, count));
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                album.fakeChange();
+                album.reload();
+                thread.join(5);
+            }
+        }
+        synchronized (failure) {
+            if (failure[0] != null) throw new AssertionError(failure[0]);
+        }
+    }
+
+    // Reports the time to read a page at the head and at the tail of a large
+    // album, reading it in order and jumping to the tail directly.
+    @LargeTest
+    public void testPagingBenchmark() {
+        insertImages(55000, 1, 0);
+        int[] ids = queryIds();
+        int pageCount = (ids.length + PAGE_SIZE - 1) / PAGE_SIZE;
+
+        LocalAlbum album = newAlbum();
+        long head = 0;
+        long tail = 0;
+        for (int page = 0; page < pageCount; page++) {
+            long t = SystemClock.uptimeMillis();
+            ArrayList<MediaItem> items =
+                    album.getMediaItem(page * PAGE_SIZE, PAGE_SIZE);
+            t = SystemClock.uptimeMillis() - t;
+            if (page < BENCHMARK_PAGES) head += t;
+            if (page >= pageCount - BENCHMARK_PAGES) tail += t;
+            assertEquals(ids[page * PAGE_SIZE],
+                    ((LocalMediaItem) items.get(0)).id);
+        }
+
+        // A fresh album has no keys, so this is what an OFFSET query costs.
+        long jump = 0;
+        for (int page = pageCount - BENCHMARK_PAGES; page < pageCount; page++) {
+            album = newAlbum();
+            long t = SystemClock.uptimeMillis();
+            album.getMediaItem(page * PAGE_SIZE, PAGE_SIZE);
+            jump += SystemClock.uptimeMillis() - t;
+        }
+
+        album = newAlbum();
+        long enumerate = SystemClock.uptimeMillis();
+        album.enumerateMediaItems(new MediaSet.ItemConsumer() {
+            @Override
+            public void consume(int index, MediaItem item) {
+            }
+        }, 0);
+        enumerate = SystemClock.uptimeMillis() - enumerate;
+
+        Log.v(TAG, ids.length + " images, ms per page of " + PAGE_SIZE
+                + ": head " + (float) head / BENCHMARK_PAGES
+                + ", tail " + (float) tail / BENCHMARK_PAGES
+                + ", tail without keys " + (float) jump / BENCHMARK_PAGES
+                + "; enumerate all in " + enumerate + "ms");
+    }
+}
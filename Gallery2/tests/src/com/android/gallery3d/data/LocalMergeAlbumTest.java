@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.gallery3d.util.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+
+public class LocalMergeAlbumTest extends AndroidTestCase {
+    private static final String TAG = "LocalMergeAlbumTest";
+
+    private static final Comparator<MediaItem> sIdComparator =
+            new Comparator<MediaItem>() {
+        @Override
+        public int compare(MediaItem item1, MediaItem item2) {
+            return getId(item1) - getId(item2);
+        }
+    };
+
+    private static int getId(MediaItem item) {
+        return Integer.parseInt(item.getPath().getSuffix());
+    }
+
+    // A MockSet which counts the queries made on it.
+    private static class CountingSet extends MockSet {
+        int mQueryCount;
+
+        public CountingSet(Path path) {
+            super(path, null);
+        }
+
+        public void addItem(int id) {
+            mItems.add(new MockItem(mItemPath.getChild(id)));
+        }
+
+        @Override
+        public ArrayList<MediaItem> getMediaItem(int start, int count) {
+            ++mQueryCount;
+            return super.getMediaItem(start, count);
+        }
+    }
+
+    private CountingSet[] mSets;
+    private LocalMergeAlbum mAlbum;
+
+    // Items 0 .. total - 1 are spread over the sources at random, so the
+    // merged album lists them in order.
+    private void createAlbum(int sourceCount, int total) {
+        createAlbum(sourceCount, total, null);
+    }
+
+    private void createAlbum(int sourceCount, int total, ThreadPool threadPool) {
+        Path.clearAll();
+        Random random = new Random(1);
+        mSets = new CountingSet[sourceCount];
+        for (int i = 0; i < sourceCount; i++) {
+            mSets[i] = new CountingSet(Path.fromString("/mock/" + i));
+        }
+        for (int id = 0; id < total; id++) {
+            mSets[random.nextInt(sourceCount)].addItem(id);
+        }
+        mAlbum = new LocalMergeAlbum(Path.fromString("/merge"),
+                sIdComparator, mSets, 0, threadPool);
+        mAlbum.reload();
+    }
+
+    private void assertItems(int start, int count, int total) {
+        ArrayList<MediaItem> items = mAlbum.getMediaItem(start, count);
+        assertEquals(Math.max(0, Math.min(count, total - start)), items.size());
+        for (int i = 0, n = items.size(); i < n; i++) {
+            assertEquals(start + i, getId(items.get(i)));
+        }
+    }
+
+    private int getQueryCount() {
+        int count = 0;
+        for (CountingSet set : mSets) {
+            count += set.mQueryCount;
+            set.mQueryCount = 0;
+        }
+        return count;
+    }
+
+    @SmallTest
+    public void testMergeOrder() {
+        createAlbum(3, 2000);
+        assertEquals(2000, mAlbum.getMediaItemCount());
+        assertItems(0, 100, 2000);
+        assertItems(1500, 37, 2000);
+        assertItems(17, 300, 2000);
+        assertItems(1990, 20, 2000);
+        assertItems(2000, 5, 2000);
+
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            assertItems(random.nextInt(2100), random.nextInt(70), 2000);
+        }
+    }
+
+    @SmallTest
+    public void testSingleSource() {
+        createAlbum(1, 300);
+        assertItems(250, 100, 300);
+        assertItems(0, 300, 300);
+    }
+
+    // getMediaItem() may be called from several threads without
+    // DataManager.LOCK, like SelectionManager and SlideshowPage do.
+    @SmallTest
+    public void testConcurrentAccess() throws Exception {
+        createAlbum(3, 5000);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 300; i++) {
+                            assertItems(random.nextInt(5100),
+                                    random.nextInt(70), 5000);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (failure) {
+            if (failure[0] != null) throw new AssertionError(failure[0]);
+        }
+    }
+
+    @SmallTest
+    public void testRandomAccess() {
+        createAlbum(2, 20000);
+
+        // The first jump to the end builds the whole index.
+        assertItems(19990, 10, 20000);
+        getQueryCount();
+
+        // A jump to the middle reads one page from each source.
+        assertItems(10003, 10, 20000);
+        assertTrue(getQueryCount() <= 2 * mSets.length);
+
+        // The pages are kept, so going back there queries nothing.
+        assertItems(19995, 5, 20000);
+        getQueryCount();
+        assertItems(10000, 12, 20000);
+        assertEquals(0, getQueryCount());
+    }
+
+    // After a reload, the index is built in the background, so the first
+    // jump to the middle does not merge from the start on the caller thread.
+    @MediumTest
+    public void testBackgroundIndex() throws Exception {
+        createAlbum(2, 20000);
+        getQueryCount();
+        long start = SystemClock.uptimeMillis();
+        assertItems(10003, 10, 20000);
+        long lazyTime = SystemClock.uptimeMillis() - start;
+        int lazyQueries = getQueryCount();
+
+        createAlbum(2, 20000, new ThreadPool());
+        while (!mAlbum.isIndexComplete()) {
+            Thread.sleep(10);
+        }
+        getQueryCount();
+        start = SystemClock.uptimeMillis();
+        assertItems(10003, 10, 20000);
+        long indexedTime = SystemClock.uptimeMillis() - start;
+        int indexedQueries = getQueryCount();
+
+        Log.v(TAG, "First jump to the middle: " + lazyTime + "ms and "
+                + lazyQueries + " queries without the background index, "
+                + indexedTime + "ms and " + indexedQueries + " queries with it");
+        assertTrue(indexedQueries <= 2 * mSets.length);
+        assertTrue(indexedQueries < lazyQueries);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.gallery3d.util.GalleryUtils;
+import com.android.gallery3d.util.ThreadPool;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LocationClusteringTest extends AndroidTestCase {
+    private static final String TAG = "LocationClusteringTest";
+
+    // Some cities, as latitude and longitude in degrees.
+    private static final double[][] CITIES = {
+        {37.77, -122.42}, {40.71, -74.01}, {51.51, -0.13}, {48.86, 2.35},
+        {35.68, 139.69}, {-33.87, 151.21}, {25.03, 121.57}, {52.52, 13.40},
+        {41.90, 12.50}, {-23.55, -46.63}, {19.43, -99.13}, {55.76, 37.62},
+        {1.35, 103.82}, {30.04, 31.24}, {-1.29, 36.82},
+    };
+
+    private double[] mLatRad;
+    private double[] mLngRad;
+    private int[] mCity;
+
+    // Puts count points around the first cityCount cities, spread by about
+    // spreadInDegrees. One point in four is exactly where the one before it
+    // is, like a burst of shots.
+    private void createPoints(int count, int cityCount,
+            double spreadInDegrees) {
+        Random random = new Random(1);
+        mLatRad = new double[count];
+        mLngRad = new double[count];
+        mCity = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && random.nextInt(4) == 0) {
+                mLatRad[i] = mLatRad[i - 1];
+                mLngRad[i] = mLngRad[i - 1];
+                mCity[i] = mCity[i - 1];
+                continue;
+            }
+            int city = random.nextInt(cityCount);
+            mCity[i] = city;
+            mLatRad[i] = Math.toRadians(CITIES[city][0]
+                    + random.nextGaussian() * spreadInDegrees);
+            mLngRad[i] = Math.toRadians(CITIES[city][1]
+                    + random.nextGaussian() * spreadInDegrees);
+        }
+    }
+
+    // Checks that no group has points of two cities.
+    private void assertGroupsWithinCities(int cityCount, int[] bestK,
+            int[] grouping) {
+        assertTrue(bestK[0] >= cityCount);
+        int[] cityOfGroup = new int[bestK[0]];
+        Arrays.fill(cityOfGroup, -1);
+        for (int i = 0; i < grouping.length; i++) {
+            int group = grouping[i];
+            assertTrue(group >= 0 && group < bestK[0]);
+            if (cityOfGroup[group] == -1) cityOfGroup[group] = mCity[i];
+            assertEquals(cityOfGroup[group], mCity[i]);
+        }
+    }
+
+    @SmallTest
+    public void testSeparatedGroups() {
+        createPoints(2000, 5, 0.001);
+        int[] bestK = new int[1];
+        int[] grouping = LocationClustering.kMeans(mLatRad, mLngRad, bestK, null);
+        assertGroupsWithinCities(5, bestK, grouping);
+    }
+
+    @SmallTest
+    public void testSameLocation() {
+        createPoints(100, 1, 0);
+        int[] bestK = new int[1];
+        int[] grouping = LocationClustering.kMeans(mLatRad, mLngRad, bestK, null);
+        assertEquals(1, bestK[0]);
+        for (int group : grouping) {
+            assertEquals(0, group);
+        }
+    }
+
+    @SmallTest
+    public void testThreadPool() {
+        createPoints(3000, 7, 0.05);
+        int[] bestK = new int[1];
+        int[] grouping = LocationClustering.kMeans(mLatRad, mLngRad, bestK, null);
+        int[] poolBestK = new int[1];
+        int[] poolGrouping = LocationClustering.kMeans(
+                mLatRad, mLngRad, poolBestK, new ThreadPool());
+        assertEquals(bestK[0], poolBestK[0]);
+        assertTrue(Arrays.equals(grouping, poolGrouping));
+    }
+
+    // Returns the sum of distance from each point to its group center, times
+    // sqrt(k), the score both implementations try to minimize.
+    private double getScore(int k, int[] grouping) {
+        double[] sumLat = new double[k];
+        double[] sumLng = new double[k];
+        int[] count = new int[k];
+        for (int i = 0; i < grouping.length; i++) {
+            sumLat[grouping[i]] += mLatRad[i];
+            sumLng[grouping[i]] += mLngRad[i];
+            count[grouping[i]]++;
+        }
+        double total = 0;
+        for (int i = 0; i < grouping.length; i++) {
+            int group = grouping[i];
+            total += GalleryUtils.fastDistanceMeters(mLatRad[i], mLngRad[i],
+                    sumLat[group] / count[group], sumLng[group] / count[group]);
+        }
+        return total * Math.sqrt(k);
+    }
+
+    // Compares the time and the score with the k-means which computed every
+    // distance for every k on the caller's thread.
+    @LargeTest
+    public void testKMeansBenchmark() {
+        createPoints(30000, CITIES.length, 0.2);
+
+        long reference = SystemClock.uptimeMillis();
+        int[] referenceK = new int[1];
+        int[] referenceGrouping = referenceKMeans(mLatRad, mLngRad, referenceK);
+        reference = SystemClock.uptimeMillis() - reference;
+
+        long serial = SystemClock.uptimeMillis();
+        int[] bestK = new int[1];
+        LocationClustering.kMeans(mLatRad, mLngRad, bestK, null);
+        serial = SystemClock.uptimeMillis() - serial;
+
+        long parallel = SystemClock.uptimeMillis();
+        int[] grouping = LocationClustering.kMeans(
+                mLatRad, mLngRad, bestK, new ThreadPool());
+        parallel = SystemClock.uptimeMillis() - parallel;
+
+        double referenceScore = getScore(referenceK[0], referenceGrouping);
+        double score = getScore(bestK[0], grouping);
+        Log.v(TAG, mLatRad.length + " points: reference " + reference
+                + "ms, k=" + referenceK[0] + ", score " + referenceScore
+                + "; grid " + serial + "ms, with thread pool " + parallel
+                + "ms, k=" + bestK[0] + ", score " + score);
+        assertTrue(score <= referenceScore * 1.05);
+    }
+
+    private static final int MAX_ITERATIONS = 30;
+    private static final float STOP_CHANGE_RATIO = 0.01f;
+
+    // The k-means LocationClustering used before it ran on grid cells.
+    private static int[] referenceKMeans(double[] latRad, double[] lngRad,
+            int[] bestK) {
+        int n = latRad.length;
+        int minK = Math.min(n, 1);
+        int maxK = Math.min(n, 20);
+        double[] centerLat = new double[maxK];
+        double[] centerLng = new double[maxK];
+        double[] sumLat = new double[maxK];
+        double[] sumLng = new double[maxK];
+        int[] groupCount = new int[maxK];
+        int[] grouping = new int[n];
+        float bestScore = Float.MAX_VALUE;
+        int[] bestGrouping = new int[n];
+        bestK[0] = 1;
+        float lastDistance = 0;
+        float totalDistance = 0;
+
+        for (int k = minK; k <= maxK; k++) {
+            int delta = n / k;
+            for (int i = 0; i < k; i++) {
+                centerLat[i] = latRad[i * delta];
+                centerLng[i] = lngRad[i * delta];
+            }
+            for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
+                for (int i = 0; i < k; i++) {
+                    sumLat[i] = 0;
+                    sumLng[i] = 0;
+                    groupCount[i] = 0;
+                }
+                totalDistance = 0;
+                for (int i = 0; i < n; i++) {
+                    float bestDistance = Float.MAX_VALUE;
+                    int bestIndex = 0;
+                    for (int j = 0; j < k; j++) {
+                        float distance = (float) GalleryUtils.fastDistanceMeters(
+                                latRad[i], lngRad[i], centerLat[j], centerLng[j]);
+                        if (distance < 1) distance = 0;
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            bestIndex = j;
+                        }
+                    }
+                    grouping[i] = bestIndex;
+                    groupCount[bestIndex]++;
+                    sumLat[bestIndex] += latRad[i];
+                    sumLng[bestIndex] += lngRad[i];
+                    totalDistance += bestDistance;
+                }
+                for (int i = 0; i < k; i++) {
+                    if (groupCount[i] > 0) {
+                        centerLat[i] = sumLat[i] / groupCount[i];
+                        centerLng[i] = sumLng[i] / groupCount[i];
+                    }
+                }
+                if (totalDistance == 0 || (Math.abs(lastDistance - totalDistance)
+                        / totalDistance) < STOP_CHANGE_RATIO) {
+                    break;
+                }
+                lastDistance = totalDistance;
+            }
+            int[] reassign = new int[k];
+            int realK = 0;
+            for (int i = 0; i < k; i++) {
+                if (groupCount[i] > 0) reassign[i] = realK++;
+            }
+            float score = totalDistance * (float) Math.sqrt(realK);
+            if (score < bestScore) {
+                bestScore = score;
+                bestK[0] = realK;
+                for (int i = 0; i < n; i++) {
+                    bestGrouping[i] = reassign[grouping[i]];
+                }
+                if (score == 0) break;
+            }
+        }
+        return bestGrouping;
+    }
+}
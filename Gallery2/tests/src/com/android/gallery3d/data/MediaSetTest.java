@@ -17,12 +17,17 @@
 package com.android.gallery3d.data;
 
 import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.util.ThreadPool;
 
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MediaSetTest extends AndroidTestCase {
-    @SuppressWarnings("unused")
     private static final String TAG = "MediaSetTest";
 
     @SmallTest
@@ -60,4 +65,136 @@ public class MediaSetTest extends AndroidTestCase {
 
         assertEquals(10, combo.getTotalMediaItemCount());
     }
+
+    // A set of count items under the sets of the given sizes.
+    private static MockSet createNestedSet(int count, int... subCounts) {
+        Path.clearAll();
+        int id = 0;
+        MockSet set = new MockSet(Path.fromString("/mock/root"), null, count, id);
+        for (int i = 0; i < subCounts.length; i++) {
+            id += 100000;
+            set.addMediaSet(new MockSet(
+                    Path.fromString("/mock/" + i), null, subCounts[i], id));
+        }
+        return set;
+    }
+
+    // Checks that the consumer is called one thread at a time, with each
+    // index once and in order.
+    private static class OrderedConsumer implements MediaSet.ItemConsumer {
+        private final AtomicInteger mRunning = new AtomicInteger();
+        int mNextIndex;
+
+        public void consume(int index, MediaItem item) {
+            assertEquals(1, mRunning.incrementAndGet());
+            assertEquals(mNextIndex++, index);
+            mRunning.decrementAndGet();
+        }
+    }
+
+    @SmallTest
+    public void testPipelinedEnumerate() {
+        MockSet set = createNestedSet(1000, 0, 1, 777, 3000);
+        ThreadPool threadPool = new ThreadPool();
+
+        OrderedConsumer consumer = new OrderedConsumer();
+        set.enumerateTotalMediaItems(consumer, threadPool);
+        assertEquals(set.getTotalMediaItemCount(), consumer.mNextIndex);
+
+        consumer = new OrderedConsumer();
+        set.enumerateTotalMediaItems(consumer, null);
+        assertEquals(set.getTotalMediaItemCount(), consumer.mNextIndex);
+    }
+
+    // A set whose own items take READ_MS to read, like a provider query. It
+    // counts the sets being read.
+    private static final int READ_MS = 30;
+    private static final AtomicInteger sReadingCount = new AtomicInteger();
+
+    private static class SlowSet extends MockSet {
+        private final RuntimeException mFailure;
+
+        public SlowSet(Path path, int count, int id, RuntimeException failure) {
+            super(path, null, count, id);
+            mFailure = failure;
+        }
+
+        @Override
+        protected int enumerateMediaItems(MediaSet.ItemConsumer consumer,
+                int startIndex) {
+            sReadingCount.incrementAndGet();
+            try {
+                SystemClock.sleep(READ_MS);
+                if (mFailure != null) throw mFailure;
+                return super.enumerateMediaItems(consumer, startIndex);
+            } finally {
+                sReadingCount.decrementAndGet();
+            }
+        }
+    }
+
+    // A set of count items under setCount slow sets of count items each.
+    private static MockSet createSlowSet(int count, int setCount,
+            int failingSet, RuntimeException failure) {
+        Path.clearAll();
+        MockSet set = new MockSet(Path.fromString("/mock/root"), null, count, 0);
+        for (int i = 0; i < setCount; i++) {
+            set.addMediaSet(new SlowSet(Path.fromString("/mock/" + i), count,
+                    (i + 1) * 100000, i == failingSet ? failure : null));
+        }
+        return set;
+    }
+
+    // The sub media sets are read ahead on the pool, so the enumeration
+    // takes about half the time it takes on one thread.
+    @MediumTest
+    public void testPipelinedEnumerateTime() {
+        MockSet set = createSlowSet(500, 8, -1, null);
+        int total = set.getTotalMediaItemCount();
+        ThreadPool threadPool = new ThreadPool();
+
+        OrderedConsumer consumer = new OrderedConsumer();
+        long start = SystemClock.uptimeMillis();
+        set.enumerateTotalMediaItems(consumer, null);
+        long serialTime = SystemClock.uptimeMillis() - start;
+        assertEquals(total, consumer.mNextIndex);
+
+        consumer = new OrderedConsumer();
+        start = SystemClock.uptimeMillis();
+        set.enumerateTotalMediaItems(consumer, threadPool);
+        long pipelinedTime = SystemClock.uptimeMillis() - start;
+        assertEquals(total, consumer.mNextIndex);
+        assertEquals(0, sReadingCount.get());
+
+        Log.v(TAG, total + " items in 8 sets read in " + READ_MS
+                + "ms each: " + serialTime + "ms on one thread, "
+                + pipelinedTime + "ms with the pool");
+        assertTrue(pipelinedTime < serialTime * 3 / 4);
+    }
+
+    @SmallTest
+    public void testPipelinedEnumerateFailure() {
+        MockSet set = createNestedSet(1000, 2000, 3000);
+        final RuntimeException failure = new RuntimeException();
+        try {
+            set.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+                public void consume(int index, MediaItem item) {
+                    if (index == 2500) throw failure;
+                }
+            }, new ThreadPool());
+            fail();
+        } catch (RuntimeException e) {
+            assertSame(failure, e);
+        }
+
+        // A failure to read a set is rethrown too, after the other reads.
+        set = createSlowSet(100, 4, 2, failure);
+        try {
+            set.enumerateTotalMediaItems(new OrderedConsumer(), new ThreadPool());
+            fail();
+        } catch (RuntimeException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(0, sReadingCount.get());
+    }
 }
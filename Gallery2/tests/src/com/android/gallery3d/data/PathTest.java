@@ -16,13 +16,18 @@
 
 package com.android.gallery3d.data;
 
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 public class PathTest extends AndroidTestCase {
-    @SuppressWarnings("unused")
     private static final String TAG = "PathTest";
 
+    private static final int THREAD_COUNT = 4;
+
     @SmallTest
     public void testToString() {
         Path p = Path.fromString("/hello/world");
@@ -79,4 +84,85 @@ public class PathTest extends AndroidTestCase {
         assertEquals("{bb,ccc}", s[1]);
         assertEquals("d", s[2]);
     }
+
+    @SmallTest
+    public void testToStringCached() {
+        Path p = Path.fromString("/hello/world/42");
+        assertSame(p.toString(), p.toString());
+        assertSame(p, Path.fromString(p.toString()));
+    }
+
+    @MediumTest
+    public void testConcurrentFromString() throws Exception {
+        final int count = 500;
+        final Path[][] results = new Path[THREAD_COUNT][count];
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final Path[] result = results[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        result[i] = Path.fromString("/concurrent/item/" + i);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        for (int i = 0; i < count; i++) {
+            for (int t = 1; t < THREAD_COUNT; t++) {
+                assertSame(results[0][i], results[t][i]);
+            }
+        }
+    }
+
+    // Compares the throughput of Path.fromString() from several threads with
+    // the one when all lookups are serialized on Path.class, as they were
+    // with the global lock.
+    @LargeTest
+    public void testFromStringContention() throws Exception {
+        final String[] names = new String[1000];
+        Path[] hold = new Path[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "/local/image/item/" + i;
+            hold[i] = Path.fromString(names[i]);
+        }
+
+        long locked = runFromString(names, true);
+        long unlocked = runFromString(names, false);
+        Log.v(TAG, THREAD_COUNT + " threads, lookups per ms: global lock "
+                + locked + ", no lock " + unlocked);
+        assertNotNull(hold[0]);
+    }
+
+    private long runFromString(final String[] names, final boolean lock)
+            throws Exception {
+        final int rounds = 200;
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int r = 0; r < rounds; r++) {
+                        for (String name : names) {
+                            if (lock) {
+                                synchronized (Path.class) {
+                                    Path.fromString(name);
+                                }
+                            } else {
+                                Path.fromString(name);
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        long start = SystemClock.uptimeMillis();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        long elapsed = Math.max(1, SystemClock.uptimeMillis() - start);
+        return (long) THREAD_COUNT * rounds * names.length / elapsed;
+    }
 }
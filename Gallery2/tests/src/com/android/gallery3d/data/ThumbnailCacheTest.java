@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class ThumbnailCacheTest extends AndroidTestCase {
+    private static final String TAG = "ThumbnailCacheTest";
+
+    private static final int TYPE = MediaItem.TYPE_MICROTHUMBNAIL;
+    private static final int BYTES = 10 * 10 * 4;
+
+    private static Bitmap create() {
+        return Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+    }
+
+    @SmallTest
+    public void testTakeBack() {
+        BitmapPool pool = new BitmapPool(BYTES * 10);
+        ThumbnailCache cache = new ThumbnailCache(pool, BYTES * 2);
+        MockItem item = new MockItem(Path.fromString("/thumbnail/1"));
+        Bitmap bitmap = create();
+
+        cache.put(item, TYPE, bitmap);
+        assertNull(cache.get(item.getPath(), MediaItem.TYPE_THUMBNAIL,
+                item.getDataVersion()));
+        assertNull(cache.get(item.getPath(), TYPE, item.getDataVersion() + 1));
+        assertSame(bitmap, cache.get(item.getPath(), TYPE, item.getDataVersion()));
+
+        // The thumbnail is given away, so a second get misses.
+        assertNull(cache.get(item.getPath(), TYPE, item.getDataVersion()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @SmallTest
+    public void testEvictToPool() {
+        BitmapPool pool = new BitmapPool(BYTES * 10);
+        ThumbnailCache cache = new ThumbnailCache(pool, BYTES * 2);
+        MockItem[] items = new MockItem[3];
+        Bitmap[] bitmaps = new Bitmap[3];
+        for (int i = 0; i < 3; i++) {
+            items[i] = new MockItem(Path.fromString("/thumbnail/evict/" + i));
+            bitmaps[i] = create();
+            cache.put(items[i], TYPE, bitmaps[i]);
+        }
+
+        // The first one is evicted into the pool, not recycled.
+        assertEquals(BYTES * 2, cache.getSize());
+        assertNull(cache.get(items[0].getPath(), TYPE, items[0].getDataVersion()));
+        assertFalse(bitmaps[0].isRecycled());
+        assertSame(bitmaps[0], pool.getBitmap(10, 10));
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(BYTES * 2, pool.getSize());
+    }
+}
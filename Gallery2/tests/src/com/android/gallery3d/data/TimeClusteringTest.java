@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.gallery3d.util.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+public class TimeClusteringTest extends AndroidTestCase {
+    @SuppressWarnings("unused")
+    private static final String TAG = "TimeClusteringTest";
+
+    private static final long START_TIME = 1300000000000L;
+    private static final long DAY_IN_MS = 24 * 3600 * 1000L;
+    private static final long SHOT_INTERVAL_IN_MS = 10000L;
+
+    private static class DatedItem extends MockItem {
+        private final long mDateInMs;
+
+        public DatedItem(Path path, long dateInMs) {
+            super(path);
+            mDateInMs = dateInMs;
+        }
+
+        @Override
+        public long getDateInMs() {
+            return mDateInMs;
+        }
+    }
+
+    private MockSet mSet;
+    private HashMap<Path, Long> mDates;
+    private int mNextId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Path.clearAll();
+        mSet = new MockSet(Path.fromString("/mock"), null);
+        mDates = new HashMap<Path, Long>();
+        mNextId = 0;
+    }
+
+    private DatedItem addItem(long dateInMs) {
+        DatedItem item = new DatedItem(
+                Path.fromString("/mock/item").getChild(mNextId++), dateInMs);
+        mSet.mItems.add(item);
+        mDates.put(item.getPath(), dateInMs);
+        return item;
+    }
+
+    // Adds count bursts of size shots, one burst a day.
+    private void addBursts(int count, int size) {
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < size; j++) {
+                addItem(START_TIME + i * DAY_IN_MS + j * SHOT_INTERVAL_IN_MS);
+            }
+        }
+    }
+
+    private void removeItem(MediaItem item) {
+        mSet.mItems.remove(item);
+        mDates.remove(item.getPath());
+    }
+
+    // Checks that the clusters hold every item of the set once, newest first.
+    private void assertTimeline(TimeClustering clustering) {
+        HashSet<Path> seen = new HashSet<Path>();
+        long last = Long.MAX_VALUE;
+        for (int i = 0, n = clustering.getNumberOfClusters(); i < n; i++) {
+            ArrayList<Path> paths = clustering.getCluster(i);
+            assertFalse(paths.isEmpty());
+            for (Path path : paths) {
+                assertTrue(seen.add(path));
+                long date = mDates.get(path);
+                assertTrue(date <= last);
+                last = date;
+            }
+        }
+        assertEquals(mDates.size(), seen.size());
+    }
+
+    private int countChanged(TimeClustering clustering) {
+        int count = 0;
+        for (int i = 0, n = clustering.getNumberOfClusters(); i < n; i++) {
+            if (clustering.isClusterChanged(i)) ++count;
+        }
+        return count;
+    }
+
+    private HashMap<Integer, ArrayList<Path>> getClustersById(
+            TimeClustering clustering) {
+        HashMap<Integer, ArrayList<Path>> result =
+                new HashMap<Integer, ArrayList<Path>>();
+        for (int i = 0, n = clustering.getNumberOfClusters(); i < n; i++) {
+            result.put(clustering.getClusterId(i), clustering.getCluster(i));
+        }
+        return result;
+    }
+
+    @SmallTest
+    public void testUpdateInsert() {
+        addBursts(40, 12);
+        TimeClustering clustering = new TimeClustering(getContext(), null);
+        clustering.run(mSet);
+        assertTimeline(clustering);
+        HashMap<Integer, ArrayList<Path>> before = getClustersById(clustering);
+
+        // A new shot in the middle of a burst changes that cluster only,
+        // and it keeps its id.
+        DatedItem item = addItem(START_TIME + 20 * DAY_IN_MS + 5);
+        clustering.update(mSet);
+        assertTimeline(clustering);
+        assertEquals(before.size(), clustering.getNumberOfClusters());
+        assertEquals(1, countChanged(clustering));
+        for (int i = 0, n = clustering.getNumberOfClusters(); i < n; i++) {
+            ArrayList<Path> paths = clustering.getCluster(i);
+            ArrayList<Path> old = before.get(clustering.getClusterId(i));
+            if (clustering.isClusterChanged(i)) {
+                assertTrue(paths.contains(item.getPath()));
+                assertEquals(old.size() + 1, paths.size());
+            } else {
+                assertEquals(old, paths);
+            }
+        }
+
+        // Nothing changed, so nothing is computed again.
+        clustering.update(mSet);
+        assertEquals(0, countChanged(clustering));
+    }
+
+    @SmallTest
+    public void testUpdateNewCluster() {
+        addBursts(40, 12);
+        TimeClustering clustering = new TimeClustering(getContext(), null);
+        clustering.run(mSet);
+        HashMap<Integer, ArrayList<Path>> before = getClustersById(clustering);
+
+        // A new burst after all the others, big enough to stand on its own,
+        // gets a new id and leaves the other clusters alone.
+        for (int j = 0; j < 20; j++) {
+            addItem(START_TIME + 50 * DAY_IN_MS + j * SHOT_INTERVAL_IN_MS);
+        }
+        clustering.update(mSet);
+        assertTimeline(clustering);
+        assertEquals(before.size() + 1, clustering.getNumberOfClusters());
+        assertFalse(before.containsKey(clustering.getClusterId(0)));
+        assertEquals(1, countChanged(clustering));
+    }
+
+    @SmallTest
+    public void testUpdateRemove() {
+        addBursts(40, 12);
+        TimeClustering clustering = new TimeClustering(getContext(), null);
+        clustering.run(mSet);
+        int count = clustering.getNumberOfClusters();
+
+        // Removing a whole burst removes its cluster.
+        for (Path path : clustering.getCluster(10)) {
+            for (MediaItem item : new ArrayList<MediaItem>(mSet.mItems)) {
+                if (item.getPath() == path) removeItem(item);
+            }
+        }
+        clustering.update(mSet);
+        assertTimeline(clustering);
+        assertEquals(count - 1, clustering.getNumberOfClusters());
+        assertTrue(countChanged(clustering) <= 2);
+    }
+
+    @SmallTest
+    public void testRandomUpdates() {
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            addItem(START_TIME + random.nextInt(100) * DAY_IN_MS
+                    + random.nextInt(50) * SHOT_INTERVAL_IN_MS);
+        }
+        TimeClustering clustering = new TimeClustering(getContext(), new ThreadPool());
+        clustering.run(mSet);
+        for (int round = 0; round < 50; round++) {
+            for (int i = random.nextInt(5); i > 0; i--) {
+                removeItem(mSet.mItems.get(random.nextInt(mSet.mItems.size())));
+            }
+            for (int i = random.nextInt(5); i > 0; i--) {
+                addItem(START_TIME + random.nextInt(100) * DAY_IN_MS
+                        + random.nextInt(50) * SHOT_INTERVAL_IN_MS);
+            }
+            clustering.update(mSet);
+            assertTimeline(clustering);
+
+            HashSet<Integer> ids = new HashSet<Integer>();
+            for (int i = 0, n = clustering.getNumberOfClusters(); i < n; i++) {
+                assertTrue(ids.add(clustering.getClusterId(i)));
+            }
+        }
+    }
+}
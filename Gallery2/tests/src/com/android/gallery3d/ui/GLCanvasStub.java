@@ -71,6 +71,7 @@ public class GLCanvasStub implements GLCanvas {
     public GL11 getGLInstance() {
         throw new UnsupportedOperationException();
     }
+    public void flush() {}
     public boolean unloadTexture(BasicTexture texture) {
         throw new UnsupportedOperationException();
     }
@@ -21,6 +21,8 @@ import android.util.Log;
 
 import junit.framework.TestCase;
 
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
 
 import javax.microedition.khronos.opengles.GL10;
@@ -359,6 +361,177 @@ public class GLCanvasTest extends TestCase {
         }
     }
 
+    // A texture which is loaded already, so it can be drawn on a GLStub.
+    private static class LoadedTexture extends BasicTexture {
+        LoadedTexture(GLCanvas canvas, int id, int width, int height) {
+            super(canvas, id, STATE_LOADED);
+            setSize(width, height);
+        }
+
+        @Override
+        protected boolean onBind(GLCanvas canvas) {
+            return true;
+        }
+
+        @Override
+        protected int getTarget() {
+            return GL11.GL_TEXTURE_2D;
+        }
+
+        public boolean isOpaque() {
+            return true;
+        }
+    }
+
+    // Counts the calls which draw something, and keeps the vertices of the
+    // last glDrawArrays on a client side array.
+    private static class DrawCountGL extends GLStub {
+        int mDrawCount;
+        private FloatBuffer mVertexPointer;
+        private int mVertexStride;
+        float[] mVertices;
+
+        @Override
+        public void glVertexPointer(int size, int type, int stride,
+                Buffer pointer) {
+            mVertexPointer = (FloatBuffer) pointer;
+            mVertexStride = stride / (Float.SIZE / Byte.SIZE);
+        }
+
+        @Override
+        public void glDrawArrays(int mode, int first, int count) {
+            mDrawCount++;
+            if (mVertexPointer == null) return;
+            assertEquals(GL11.GL_TRIANGLES, mode);
+            mVertices = new float[count * 2];
+            for (int i = 0; i < count; i++) {
+                int index = mVertexPointer.position() + (first + i) * mVertexStride;
+                mVertices[i * 2] = mVertexPointer.get(index);
+                mVertices[i * 2 + 1] = mVertexPointer.get(index + 1);
+            }
+            mVertexPointer = null;
+        }
+
+        @Override
+        public void glDrawElements(int mode, int count, int type, int offset) {
+            mDrawCount++;
+        }
+
+        @Override
+        public void glDrawTexiOES(int x, int y, int z, int width, int height) {
+            mDrawCount++;
+        }
+    }
+
+    @SmallTest
+    public void testBatchFillRect() {
+        DrawCountGL gl = new DrawCountGL();
+        GLCanvasImpl canvas = new GLCanvasImpl(gl);
+        canvas.setBatchEnabled(true);
+        canvas.setSize(400, 300);
+
+        // Rectangles of one color are drawn together, in window coordinates.
+        canvas.translate(10, 20);
+        canvas.fillRect(2, 7, 1, 8, 0xFF00FF00);
+        canvas.fillRect(50, 50, 10, 10, 0xFF00FF00);
+        assertEquals(0, gl.mDrawCount);
+        canvas.flush();
+        assertEquals(1, gl.mDrawCount);
+        assertEquals(24, gl.mVertices.length);
+        float[] corners = {12, 273, 13, 273, 12, 265, 13, 265};
+        for (int i = 0; i < corners.length; i += 2) {
+            boolean found = false;
+            for (int j = 0; j < 12; j += 2) {
+                if (corners[i] == gl.mVertices[j]
+                        && corners[i + 1] == gl.mVertices[j + 1]) {
+                    found = true;
+                }
+            }
+            assertTrue(found);
+        }
+
+        // A new color, or any call which doesn't batch, draws the batch.
+        canvas.fillRect(0, 0, 1, 1, 0xFF00FF00);
+        canvas.fillRect(0, 0, 1, 1, 0xFFFF0000);
+        assertEquals(2, gl.mDrawCount);
+        canvas.drawLine(0, 0, 1, 1, newColorPaint(0xFF0000FF));
+        assertEquals(4, gl.mDrawCount);
+        canvas.fillRect(0, 0, 1, 1, 0xFF00FF00);
+        canvas.getGLInstance();
+        assertEquals(5, gl.mDrawCount);
+    }
+
+    private static final int SLOT_COUNT = 60;
+    private static final int SLOT_COLUMNS = 4;
+    private static final int SLOT_SIZE = 100;
+    private static final int PLACEHOLDER_COLOR = 0xFF222222;
+
+    // Draws a page of slots in the way SlotView and AlbumSlotRenderer do.
+    // A slot without a thumbnail shows the placeholder color, and every
+    // videoInterval-th slot gets a video overlay and a play icon.
+    private static void drawSlotFrame(GLCanvas canvas, BasicTexture[] thumbnails,
+            int videoInterval) {
+        ColorTexture placeholder = new ColorTexture(PLACEHOLDER_COLOR);
+        placeholder.setSize(1, 1);
+        BasicTexture overlay = new LoadedTexture(canvas, 1000, 32, 128);
+        BasicTexture playIcon = new LoadedTexture(canvas, 1001, 64, 64);
+
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            canvas.save(GLCanvas.SAVE_FLAG_ALPHA | GLCanvas.SAVE_FLAG_MATRIX);
+            canvas.translate(i % SLOT_COLUMNS * SLOT_SIZE, i / SLOT_COLUMNS * SLOT_SIZE);
+
+            Texture content = thumbnails[i] == null ? placeholder : thumbnails[i];
+            canvas.save(GLCanvas.SAVE_FLAG_MATRIX);
+            float scale = (float) SLOT_SIZE / content.getWidth();
+            canvas.scale(scale, scale, 1);
+            content.draw(canvas, 0, 0);
+            canvas.restore();
+
+            if (videoInterval > 0 && i % videoInterval == 0) {
+                overlay.draw(canvas, 0, 0, SLOT_SIZE / 4, SLOT_SIZE);
+                playIcon.draw(canvas, SLOT_SIZE / 3, SLOT_SIZE / 3,
+                        SLOT_SIZE / 3, SLOT_SIZE / 3);
+            }
+            canvas.restore();
+        }
+        canvas.flush();
+    }
+
+    // Returns the number of draw calls for a slot frame where the first
+    // loadedCount slots have thumbnails.
+    private static int countSlotFrameDraws(boolean batch, int loadedCount,
+            int videoInterval) {
+        DrawCountGL gl = new DrawCountGL();
+        GLCanvasImpl canvas = new GLCanvasImpl(gl);
+        canvas.setBatchEnabled(batch);
+        canvas.setSize(SLOT_COLUMNS * SLOT_SIZE, 1600);
+        BasicTexture[] thumbnails = new BasicTexture[SLOT_COUNT];
+        for (int i = 0; i < loadedCount; i++) {
+            thumbnails[i] = new LoadedTexture(canvas, i + 1, 200, 200);
+        }
+        drawSlotFrame(canvas, thumbnails, videoInterval);
+        return gl.mDrawCount;
+    }
+
+    @SmallTest
+    public void testBatchSlotFrame() {
+        // While the thumbnails load, the placeholders are drawn together.
+        assertEquals(SLOT_COUNT, countSlotFrameDraws(false, 0, 0));
+        assertEquals(1, countSlotFrameDraws(true, 0, 0));
+
+        int half = SLOT_COUNT / 2;
+        assertEquals(SLOT_COUNT, countSlotFrameDraws(false, half, 0));
+        assertEquals(half + 1, countSlotFrameDraws(true, half, 0));
+
+        // Each thumbnail is a texture of its own, so a loaded page takes as
+        // many calls as before, and no more.
+        int videoCount = (SLOT_COUNT + 3) / 4;
+        assertEquals(SLOT_COUNT + videoCount * 2,
+                countSlotFrameDraws(false, SLOT_COUNT, 4));
+        assertEquals(SLOT_COUNT + videoCount * 2,
+                countSlotFrameDraws(true, SLOT_COUNT, 4));
+    }
+
     @SmallTest
     public void testGetGLInstance() {
         GL11 glStub = new GLStub();
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ReverseGeocoderTest extends TestCase {
+    private static final String TAG = "ReverseGeocoderTest";
+
+    private static final int BITS = ReverseGeocoder.DEFAULT_CELL_BITS;
+
+    public void testGeohash() {
+        // A 40 bit geohash is 8 characters in base 32, "u09tunqg" here.
+        assertEquals(0xd0139d52cfL,
+                ReverseGeocoder.getGeohash(48.85824, 2.29451, 40));
+
+        // A point a few meters away shares the cell, one a kilometer away
+        // doesn't.
+        long hash = ReverseGeocoder.getGeohash(37.42205, -122.08405, BITS);
+        assertEquals(hash, ReverseGeocoder.getGeohash(37.42207, -122.08408, BITS));
+        assertTrue(hash != ReverseGeocoder.getGeohash(37.43105, -122.08405, BITS));
+
+        // A larger cell is a prefix of a smaller one.
+        assertEquals(hash >> 10,
+                ReverseGeocoder.getGeohash(37.42205, -122.08405, BITS - 10));
+    }
+
+    public void testGeohashBounds() {
+        assertEquals(0, ReverseGeocoder.getGeohash(-90, -180, BITS));
+        assertEquals((1L << BITS) - 1, ReverseGeocoder.getGeohash(90, 180, BITS));
+        assertEquals(1, ReverseGeocoder.getGeohash(0, 0, 1));
+        assertEquals(3, ReverseGeocoder.getGeohash(0, 0, 2));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.util;
+
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import junit.framework.TestCase;
+
+@MediumTest
+public class ThreadPoolTest extends TestCase {
+    private static final String TAG = "ThreadPoolTest";
+    private static final int THREAD_COUNT = 4;
+
+    private final ArrayList<String> mOrder = new ArrayList<String>();
+
+    private class BlockJob implements Job<Void> {
+        private final CountDownLatch mStarted;
+        private final CountDownLatch mRelease = new CountDownLatch(1);
+
+        public BlockJob(CountDownLatch started) {
+            mStarted = started;
+        }
+
+        @Override
+        public Void run(JobContext jc) {
+            jc.setMode(ThreadPool.MODE_NONE);
+            mStarted.countDown();
+            while (true) {
+                try {
+                    mRelease.await();
+                    return null;
+                } catch (InterruptedException e) {
+                    // try again.
+                }
+            }
+        }
+    }
+
+    private class RecordJob implements Job<Void>, FutureListener<Void> {
+        private final String mName;
+
+        public RecordJob(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Void run(JobContext jc) {
+            synchronized (mOrder) {
+                mOrder.add(mName);
+            }
+            return null;
+        }
+
+        @Override
+        public void onFutureDone(Future<Void> future) {
+            if (future.isCancelled()) {
+                synchronized (mOrder) {
+                    mOrder.add("cancelled " + mName);
+                }
+            }
+        }
+    }
+
+    private Future<Void> submit(ThreadPool pool, String name, int priority) {
+        RecordJob job = new RecordJob(name);
+        return pool.submit(job, job, priority);
+    }
+
+    public void testPriority() throws Exception {
+        ThreadPool pool = new ThreadPool();
+
+        // Occupy all threads, so the jobs below wait in the queue.
+        CountDownLatch started = new CountDownLatch(THREAD_COUNT);
+        BlockJob[] blocks = new BlockJob[THREAD_COUNT];
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            blocks[i] = new BlockJob(started);
+            pool.submit(blocks[i]);
+        }
+        started.await();
+
+        ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+        futures.add(submit(pool, "background", ThreadPool.PRIORITY_BACKGROUND));
+        futures.add(submit(pool, "immediate", ThreadPool.PRIORITY_IMMEDIATE));
+        futures.add(submit(pool, "visible 1", ThreadPool.PRIORITY_VISIBLE));
+        futures.add(submit(pool, "prefetch", ThreadPool.PRIORITY_PREFETCH));
+        futures.add(submit(pool, "visible 2", ThreadPool.PRIORITY_VISIBLE));
+        futures.add(submit(pool, "near", ThreadPool.PRIORITY_NEAR_VISIBLE));
+        Future<Void> stale = submit(pool, "stale", ThreadPool.PRIORITY_VISIBLE);
+        futures.add(stale);
+        stale.cancel();
+
+        // Let one thread drain the queue.
+        blocks[0].mRelease.countDown();
+        for (Future<Void> future : futures) future.waitDone();
+        for (int i = 1; i < THREAD_COUNT; i++) blocks[i].mRelease.countDown();
+
+        String[] expected = {"cancelled stale", "immediate", "visible 2", "visible 1",
+                "near", "prefetch", "background"};
+        assertEquals(expected.length, mOrder.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], mOrder.get(i));
+        }
+    }
+
+    public void testLimiterPriority() throws Exception {
+        ThreadPool pool = new ThreadPool();
+        JobLimiter limiter = new JobLimiter(pool, 1);
+
+        // Take the only slot, so the jobs below wait in the limiter.
+        CountDownLatch started = new CountDownLatch(1);
+        BlockJob block = new BlockJob(started);
+        limiter.submit(block, null, ThreadPool.PRIORITY_VISIBLE);
+        started.await();
+
+        ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+        String[] names = {"background", "immediate", "visible 1", "prefetch", "visible 2"};
+        int[] priorities = {ThreadPool.PRIORITY_BACKGROUND, ThreadPool.PRIORITY_IMMEDIATE,
+                ThreadPool.PRIORITY_VISIBLE, ThreadPool.PRIORITY_PREFETCH,
+                ThreadPool.PRIORITY_VISIBLE};
+        for (int i = 0; i < names.length; i++) {
+            RecordJob job = new RecordJob(names[i]);
+            futures.add(limiter.submit(job, job, priorities[i]));
+        }
+
+        try {
+            limiter.submit(new RecordJob("invalid"), null, ThreadPool.PRIORITY_BACKGROUND + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+
+        block.mRelease.countDown();
+        for (Future<Void> future : futures) future.waitDone();
+
+        String[] expected = {"immediate", "visible 1", "visible 2", "prefetch", "background"};
+        assertEquals(expected.length, mOrder.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], mOrder.get(i));
+        }
+    }
+}
@@ -113,7 +113,6 @@ public class CPCam extends ActivityBase implements CPCamFocusManager.Listener,
     private static final int SET_CAMERA_PARAMETERS_WHEN_IDLE = 4;
     private static final int CHECK_DISPLAY_ROTATION = 5;
     private static final int SHOW_TAP_TO_FOCUS_TOAST = 6;
-    private static final int UPDATE_THUMBNAIL = 7;
     private static final int SWITCH_CAMERA = 8;
     private static final int SWITCH_CAMERA_START_ANIMATION = 9;
     private static final int CAMERA_OPEN_DONE = 10;
@@ -289,9 +288,17 @@ public class CPCam extends ActivityBase implements CPCamFocusManager.Listener,
     // A view group that contains all the small indicators.
     private Rotatable mOnScreenIndicators;
 
-    // We use a thread in ImageSaver to do the work of saving images and
+    // We use the threads of ImageSaver to do the work of saving images and
     // generating thumbnails. This reduces the shot-to-shot time.
     private ImageSaver mImageSaver;
+    private final ImageSaver.Listener mThumbnailListener =
+            new ImageSaver.Listener() {
+        @Override
+        public void onThumbnailUpdated(Thumbnail thumbnail) {
+            mThumbnail = thumbnail;
+            mThumbnailView.setBitmap(mThumbnail.getBitmap());
+        }
+    };
     // Similarly, we use a thread to generate the name of the picture and insert
     // it into MediaStore while picture taking is still in progress.
     private ImageNamer mImageNamer;
@@ -491,11 +498,6 @@ public class CPCam extends ActivityBase implements CPCamFocusManager.Listener,
                     break;
                 }
 
-                case UPDATE_THUMBNAIL: {
-                    mImageSaver.updateThumbnail();
-                    break;
-                }
-
                 case MANUAL_GAIN_EXPOSURE_CHANGED: {
                     Bundle data;
                     data = msg.getData();
@@ -657,7 +659,7 @@ public class CPCam extends ActivityBase implements CPCamFocusManager.Listener,
         mShutterButton.setOnShutterButtonLongPressListener(this);
         mShutterButton.setVisibility(View.VISIBLE);
 
-        mImageSaver = new ImageSaver();
+        mImageSaver = new ImageSaver(this, mHandler, mThumbnailListener);
         mImageNamer = new ImageNamer();
         installIntentFilter();
         initializeCPcamSliders(mIsRelativeExposureGainPair);
@@ -703,7 +705,7 @@ public class CPCam extends ActivityBase implements CPCamFocusManager.Listener,
         mLocationManager.recordLocation(recordLocation);
 
         installIntentFilter();
-        mImageSaver = new ImageSaver();
+        mImageSaver = new ImageSaver(this, mHandler, mThumbnailListener);
         mImageNamer = new ImageNamer();
         keepMediaProviderInstance();
         checkStorage();
@@ -1147,222 +1149,6 @@ public class CPCam extends ActivityBase implements CPCamFocusManager.Listener,
         }
     }
 
-    // Each SaveRequest remembers the data needed to save an image.
-    private static class SaveRequest {
-        byte[] data;
-        Uri uri;
-        String title;
-        Location loc;
-        int width, height;
-        int thumbnailWidth;
-        int orientation;
-        long dateTaken;
-    }
-
-    // We use a queue to store the SaveRequests that have not been completed
-    // yet. The main thread puts the request into the queue. The saver thread
-    // gets it from the queue, does the work, and removes it from the queue.
-    //
-    // The main thread needs to wait for the saver thread to finish all the work
-    // in the queue, when the activity's onPause() is called, we need to finish
-    // all the work, so other programs (like Gallery) can see all the images.
-    //
-    // If the queue becomes too long, adding a new request will block the main
-    // thread until the queue length drops below the threshold (QUEUE_LIMIT).
-    // If we don't do this, we may face several problems: (1) We may OOM
-    // because we are holding all the jpeg data in memory. (2) We may ANR
-    // when we need to wait for saver thread finishing all the work (in
-    // onPause() or gotoGallery()) because the time to finishing a long queue
-    // of work may be too long.
-    private class ImageSaver extends Thread {
-        private static final int QUEUE_LIMIT = 3;
-
-        private ArrayList<SaveRequest> mQueue;
-        private Thumbnail mPendingThumbnail;
-        private Object mUpdateThumbnailLock = new Object();
-        private boolean mStop;
-
-        // Runs in main thread
-        public ImageSaver() {
-            mQueue = new ArrayList<SaveRequest>();
-            start();
-        }
-
-        // Runs in main thread
-        public void addImage(final byte[] data, Uri uri, String title,
-                Location loc, int width, int height, int thumbnailWidth,
-                int orientation) {
-            SaveRequest r = new SaveRequest();
-            r.data = data;
-            r.uri = uri;
-            r.title = title;
-            r.loc = (loc == null) ? null : new Location(loc);  // make a copy
-            r.width = width;
-            r.height = height;
-            r.thumbnailWidth = thumbnailWidth;
-            r.orientation = orientation;
-            r.dateTaken = System.currentTimeMillis();
-            synchronized (this) {
-                while (mQueue.size() >= QUEUE_LIMIT) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
-                    }
-                }
-                mQueue.add(r);
-                notifyAll();  // Tell saver thread there is new work to do.
-            }
-        }
-
-        // Runs in saver thread
-        @Override
-        public void run() {
-            while (true) {
-                SaveRequest r;
-                synchronized (this) {
-                    if (mQueue.isEmpty()) {
-                        notifyAll();  // notify main thread in waitDone
-
-                        // Note that we can only stop after we saved all images
-                        // in the queue.
-                        if (mStop) break;
-
-                        try {
-                            wait();
-                        } catch (InterruptedException ex) {
-                            // ignore.
-                        }
-                        continue;
-                    }
-                    r = mQueue.get(0);
-                }
-                storeImage(r.data, r.uri, r.title, r.loc, r.width, r.height,
-                        r.thumbnailWidth, r.orientation, r.dateTaken);
-                synchronized (this) {
-                    mQueue.remove(0);
-                    notifyAll();  // the main thread may wait in addImage
-                }
-            }
-        }
-
-        // Runs in main thread
-        public void waitDone() {
-            synchronized (this) {
-                while (!mQueue.isEmpty()) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
-                    }
-                }
-            }
-            updateThumbnail();
-        }
-
-        // Runs in main thread
-        public void finish() {
-            waitDone();
-            synchronized (this) {
-                mStop = true;
-                notifyAll();
-            }
-            try {
-                join();
-            } catch (InterruptedException ex) {
-                // ignore.
-            }
-        }
-
-        // Runs in main thread (because we need to update mThumbnailView in the
-        // main thread)
-        public void updateThumbnail() {
-            Thumbnail t;
-            synchronized (mUpdateThumbnailLock) {
-                mHandler.removeMessages(UPDATE_THUMBNAIL);
-                t = mPendingThumbnail;
-                mPendingThumbnail = null;
-            }
-
-            if (t != null) {
-                mThumbnail = t;
-                mThumbnailView.setBitmap(mThumbnail.getBitmap());
-            }
-        }
-
-        // Runs in saver thread
-        private void storeImage(final byte[] data, Uri uri, String title,
-                Location loc, int width, int height, int thumbnailWidth,
-                int orientation, long date) {
-            boolean ok = Storage.updateImage(mContentResolver, uri, title, loc,
-                    orientation, data, width, height, date);
-            if (ok) {
-                boolean needThumbnail;
-                synchronized (this) {
-                    // If the number of requests in the queue (include the
-                    // current one) is greater than 1, we don't need to generate
-                    // thumbnail for this image. Because we'll soon replace it
-                    // with the thumbnail for some image later in the queue.
-                    needThumbnail = (mQueue.size() <= 1);
-                }
-                if (needThumbnail) {
-                    // Create a thumbnail whose width is equal or bigger than
-                    // that of the thumbnail view.
-                    int ratio = (int) Math.ceil((double) width / thumbnailWidth);
-                    int inSampleSize = Integer.highestOneBit(ratio);
-                    Thumbnail t = Thumbnail.createThumbnail(
-                                data, orientation, inSampleSize, uri);
-                    synchronized (mUpdateThumbnailLock) {
-                        // We need to update the thumbnail in the main thread,
-                        // so send a message to run updateThumbnail().
-                        mPendingThumbnail = t;
-                        mHandler.sendEmptyMessage(UPDATE_THUMBNAIL);
-                    }
-                }
-                Util.broadcastNewPicture(CPCam.this, uri);
-            }
-        }
-    }
-
-    private boolean setUpQueuedShot() {
-        mCaptureStartTime = System.currentTimeMillis();
-        mPostViewPictureCallbackTime = 0;
-        mJpegImageData = null;
-
-        // Set rotation and gps data.
-        mJpegRotation = Util.getJpegRotation(mCameraId, mOrientation);
-        mParameters.setRotation(mJpegRotation);
-        Location loc = mLocationManager.getCurrentLocation();
-        Util.setGpsParametersCPCam(mParameters, loc);
-        mParameters.setPictureFormat(ImageFormat.NV21);
-        mParameters.setPictureSize(mFrameWidth, mFrameHeight);
-        mCPCamDevice.setParameters(mParameters);
-
-        if(mShotParams == null) {
-            //If shot params are not set, put default values
-            mShotParams = mCPCamDevice.getParameters();
-            mShotParams.set(CPCameraSettings.KEY_SHOTPARAMS_EXP_GAIN_PAIRS,
-                            DEFAULT_EXPOSURE_GAIN);
-               mShotParams.set(CPCameraSettings.KEY_SHOTPARAMS_BURST, 1);
-        } else {
-            mCPCamDevice.setParameters(mShotParams);
-        }
-
-        try {
-            mCPCamDevice.takePicture(null, null, null, mJpegCallback, mShotParams);
-        } catch (RuntimeException e ) {
-            e.printStackTrace();
-            return false;
-        }
-
-        mFaceDetectionStarted = false;
-        setCameraState(QUEUED_SHOT_IN_PROGRESS);
-        mReprocessButton.setVisibility(View.VISIBLE);
-        mExpGainButton.setVisibility(View.VISIBLE);
-        mIndicatorControlContainer.showCPCamSliders(true);
-        return true;
-    }
-
     private static class ImageNamer extends Thread {
         private boolean mRequestPending;
         private ContentResolver mResolver;
@@ -1798,6 +1584,13 @@ public class CPCam extends ActivityBase implements CPCamFocusManager.Listener,
             Log.i(TAG, "Not enough space or storage not ready. remaining=" + mStorageSpace);
             return;
         }
+
+        // Do not take the picture if the previous ones are still being saved
+        // and hold too much memory.
+        if (mImageSaver != null && mImageSaver.isFull()) {
+            Log.i(TAG, "Too many images are being saved.");
+            return;
+        }
         Log.v(TAG, "onShutterButtonClick: mCameraState=" + mCameraState);
 
         // If the user wants to do a snapshot while the previous one is still
@@ -2437,7 +2230,7 @@ public class CPCam extends ActivityBase implements CPCamFocusManager.Listener,
     private void setCameraParameters(int updateSet) {
         boolean restartPreview = false;
 
-        mParameters = mCPCamDevice.getParameters();
+        mParameters = mCPCamDevice.refreshParameters(mParameters);
 
         if ((updateSet & UPDATE_PARAM_INITIALIZE) != 0) {
             updateCameraParametersInitialize();
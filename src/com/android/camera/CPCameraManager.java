@@ -34,6 +34,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
@@ -42,11 +43,34 @@ public class CPCameraManager {
     private static final String TAG = "CameraManager";
     private static CPCameraManager sCameraManager = new CPCameraManager();
 
-    // Thread progress signals
-    private ConditionVariable mSig = new ConditionVariable();
-
     private com.ti.omap.android.cpcam.CPCam.Parameters mParameters;
     private IOException mReconnectException;
+    // The parameters object the camera handler unflattens the parameters to
+    // set into. Only used in the camera handler thread.
+    private Parameters mParametersToSet;
+
+    // The SET_PARAMETERS command at the tail of the queue, if it has not been
+    // handled yet, so the next setParameters() can replace its parameters
+    // instead of queuing another command. Guarded by mQueueLock.
+    private ParametersHolder mQueuedParameters;
+    private final Object mQueueLock = new Object();
+
+    // The parameters last read from the camera, so refreshParameters() can
+    // skip reading them again. The version counts the commands which may
+    // change the parameters of the camera; the parameters read are only
+    // current while it stays the same. The camera handed out by getCamera()
+    // may have its parameters changed at any time, so after that they are
+    // always read again until the camera is reopened. Guarded by mQueueLock.
+    private String mReadParameters;
+    private int mReadParametersVersion = -1;
+    private int mParametersVersion;
+    private boolean mCameraHandedOut;
+
+    // Statistics, guarded by mQueueLock.
+    private int mCommandCount;
+    private int mCoalescedCount;
+    private int mSkippedCount;
+    private long mMainThreadBlockedTime;
 
     private static final int RELEASE = 1;
     private static final int RECONNECT = 2;
@@ -68,7 +92,6 @@ public class CPCameraManager {
     private static final int SET_ERROR_CALLBACK = 18;
     private static final int SET_PARAMETERS = 19;
     private static final int GET_PARAMETERS = 20;
-    private static final int SET_PARAMETERS_ASYNC = 21;
     private static final int WAIT_FOR_IDLE = 22;
     private static final int REPROCESS = 23;
 
@@ -86,6 +109,137 @@ public class CPCameraManager {
         mCameraHandler = new CameraHandler(ht.getLooper());
     }
 
+    private static class ParametersHolder {
+        String flattened;
+    }
+
+    // Returns the time in ms the main thread has waited for the camera
+    // handler since the process started.
+    public long getMainThreadBlockedTime() {
+        synchronized (mQueueLock) {
+            return mMainThreadBlockedTime;
+        }
+    }
+
+    // Returns the number of commands sent to the camera handler, not counting
+    // the setParameters() calls merged into a queued one.
+    public int getCommandCount() {
+        synchronized (mQueueLock) {
+            return mCommandCount;
+        }
+    }
+
+    // Returns the number of setParameters() calls merged into a queued one.
+    public int getCoalescedCount() {
+        synchronized (mQueueLock) {
+            return mCoalescedCount;
+        }
+    }
+
+    // Returns the number of refreshParameters() calls which did not read the
+    // camera.
+    public int getSkippedCount() {
+        synchronized (mQueueLock) {
+            return mSkippedCount;
+        }
+    }
+
+    // Returns false for the commands which never change the parameters.
+    private static boolean mayChangeParameters(int what) {
+        switch (what) {
+            case SET_PREVIEW_CALLBACK_WITH_BUFFER:
+            case ADD_CALLBACK_BUFFER:
+            case SET_AUTO_FOCUS_MOVE_CALLBACK:
+            case SET_DISPLAY_ORIENTATION:
+            case SET_ZOOM_CHANGE_LISTENER:
+            case SET_FACE_DETECTION_LISTENER:
+            case SET_ERROR_CALLBACK:
+            case GET_PARAMETERS:
+            case WAIT_FOR_IDLE:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    // The commands are handled in the order they are sent, so the commands
+    // which return nothing are only queued. The ones which return something,
+    // or after which the caller uses the camera directly, wait for the camera
+    // handler to finish all the commands queued.
+    private void send(Message msg) {
+        synchronized (mQueueLock) {
+            mQueuedParameters = null;
+            ++mCommandCount;
+            if (mayChangeParameters(msg.what)) {
+                ++mParametersVersion;
+            }
+            msg.sendToTarget();
+        }
+    }
+
+    private void post(Runnable r) {
+        synchronized (mQueueLock) {
+            mQueuedParameters = null;
+            ++mCommandCount;
+            ++mParametersVersion;
+            mCameraHandler.post(r);
+        }
+    }
+
+    private void waitDone() {
+        ConditionVariable sig = new ConditionVariable();
+        send(mCameraHandler.obtainMessage(WAIT_FOR_IDLE, sig));
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            sig.block();
+            return;
+        }
+        long start = SystemClock.uptimeMillis();
+        sig.block();
+        synchronized (mQueueLock) {
+            mMainThreadBlockedTime += SystemClock.uptimeMillis() - start;
+        }
+    }
+
+    private void setParameters(Parameters params) {
+        // The caller keeps changing params, so take a snapshot now.
+        String flattened = params.flatten();
+        synchronized (mQueueLock) {
+            ++mParametersVersion;
+            if (mQueuedParameters != null) {
+                mQueuedParameters.flattened = flattened;
+                ++mCoalescedCount;
+                return;
+            }
+            ParametersHolder holder = new ParametersHolder();
+            holder.flattened = flattened;
+            send(mCameraHandler.obtainMessage(SET_PARAMETERS, holder));
+            mQueuedParameters = holder;
+        }
+    }
+
+    private Parameters getParameters() {
+        synchronized (mQueueLock) {
+            send(mCameraHandler.obtainMessage(
+                    GET_PARAMETERS, mParametersVersion, 0));
+        }
+        waitDone();
+        return mParameters;
+    }
+
+    private Parameters refreshParameters(Parameters params) {
+        String flattened = null;
+        synchronized (mQueueLock) {
+            if (params != null && !mCameraHandedOut
+                    && mReadParametersVersion == mParametersVersion) {
+                flattened = mReadParameters;
+                ++mSkippedCount;
+            }
+        }
+        if (flattened == null) return getParameters();
+        params.unflatten(flattened);
+        return params;
+    }
+
     private class CameraHandler extends Handler {
         CameraHandler(Looper looper) {
             super(looper);
@@ -99,6 +253,7 @@ public class CPCameraManager {
                         mCPCamera.release();
                         mCPCamera = null;
                         mCameraProxy = null;
+                        mParametersToSet = null;
                         break;
 
                     case RECONNECT:
@@ -124,11 +279,11 @@ public class CPCameraManager {
                         } catch(IOException e) {
                             throw new RuntimeException(e);
                         }
-                        return;  // no need to call mSig.open()
+                        break;
 
                     case START_PREVIEW_ASYNC:
                         mCPCamera.startPreview();
-                        return;  // no need to call mSig.open()
+                        break;
 
                     case STOP_PREVIEW:
                         mCPCamera.stopPreview();
@@ -182,13 +337,36 @@ public class CPCameraManager {
                         mCPCamera.setErrorCallback((ErrorCallback) msg.obj);
                         break;
 
-                    case SET_PARAMETERS:
-                        mCPCamera.setParameters((Parameters) msg.obj);
+                    case SET_PARAMETERS: {
+                        ParametersHolder holder = (ParametersHolder) msg.obj;
+                        String flattened;
+                        synchronized (mQueueLock) {
+                            if (mQueuedParameters == holder) {
+                                mQueuedParameters = null;
+                            }
+                            flattened = holder.flattened;
+                        }
+                        if (mParametersToSet == null) {
+                            mParametersToSet = mCPCamera.getParameters();
+                        }
+                        mParametersToSet.unflatten(flattened);
+                        mCPCamera.setParameters(mParametersToSet);
                         break;
+                    }
 
-                    case GET_PARAMETERS:
+                    case GET_PARAMETERS: {
                         mParameters = mCPCamera.getParameters();
+                        String flattened = mParameters.flatten();
+                        synchronized (mQueueLock) {
+                            // Keep it only if no command which may change the
+                            // parameters was sent after this one.
+                            if (msg.arg1 == mParametersVersion) {
+                                mReadParameters = flattened;
+                                mReadParametersVersion = msg.arg1;
+                            }
+                        }
                         break;
+                    }
 
                     case REPROCESS:
                         try {
@@ -198,12 +376,8 @@ public class CPCameraManager {
                         }
                         break;
 
-                    case SET_PARAMETERS_ASYNC:
-                        mCPCamera.setParameters((Parameters) msg.obj);
-                        return;  // no need to call mSig.open()
-
                     case WAIT_FOR_IDLE:
-                        // do nothing
+                        ((ConditionVariable) msg.obj).open();
                         break;
                 }
             } catch (RuntimeException e) {
@@ -215,10 +389,10 @@ public class CPCameraManager {
                     }
                     mCPCamera = null;
                     mCameraProxy = null;
+                    mParametersToSet = null;
                 }
                 throw e;
             }
-            mSig.open();
         }
     }
 
@@ -233,6 +407,11 @@ public class CPCameraManager {
         // a view hierarchy can touch its views.
         mCPCamera = com.ti.omap.android.cpcam.CPCam.open(cameraId);
         if (mCPCamera != null) {
+            // Nobody else has this camera yet.
+            synchronized (mQueueLock) {
+                mReadParameters = null;
+                mCameraHandedOut = false;
+            }
             mCameraProxy = new CPCameraProxy();
             return mCameraProxy;
         } else {
@@ -245,118 +424,106 @@ public class CPCameraManager {
             Assert(mCPCamera != null);
         }
 
+        // Waits for the queued commands, so the caller can use the camera.
+        // The caller may change the parameters behind our back, now or at
+        // any time later, so the parameters read are not trusted again
+        // until the camera is reopened.
         public com.ti.omap.android.cpcam.CPCam getCamera() {
+            waitDone();
+            synchronized (mQueueLock) {
+                ++mParametersVersion;
+                mReadParameters = null;
+                mCameraHandedOut = true;
+            }
             return mCPCamera;
         }
 
         public void release() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(RELEASE);
-            mSig.block();
+            send(mCameraHandler.obtainMessage(RELEASE));
+            waitDone();
         }
 
         public void reconnect() throws IOException {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(RECONNECT);
-            mSig.block();
+            send(mCameraHandler.obtainMessage(RECONNECT));
+            waitDone();
             if (mReconnectException != null) {
                 throw mReconnectException;
             }
         }
 
         public void unlock() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(UNLOCK);
-            mSig.block();
+            send(mCameraHandler.obtainMessage(UNLOCK));
+            waitDone();
         }
 
         public void lock() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(LOCK);
-            mSig.block();
+            send(mCameraHandler.obtainMessage(LOCK));
+            waitDone();
         }
 
         public void setPreviewTextureAsync(final SurfaceTexture surfaceTexture) {
-            mCameraHandler.obtainMessage(SET_PREVIEW_TEXTURE_ASYNC, surfaceTexture).sendToTarget();
+            send(mCameraHandler.obtainMessage(SET_PREVIEW_TEXTURE_ASYNC, surfaceTexture));
         }
 
         public void startPreviewAsync() {
-            mCameraHandler.sendEmptyMessage(START_PREVIEW_ASYNC);
+            send(mCameraHandler.obtainMessage(START_PREVIEW_ASYNC));
         }
 
+        // Waits for the camera to stop, because the caller may release the
+        // preview surface right after this.
         public void stopPreview() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(STOP_PREVIEW);
-            mSig.block();
+            send(mCameraHandler.obtainMessage(STOP_PREVIEW));
+            waitDone();
         }
 
         public void setPreviewCallbackWithBuffer(final PreviewCallback cb) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_PREVIEW_CALLBACK_WITH_BUFFER, cb).sendToTarget();
-            mSig.block();
+            send(mCameraHandler.obtainMessage(SET_PREVIEW_CALLBACK_WITH_BUFFER, cb));
         }
 
         public void addCallbackBuffer(byte[] callbackBuffer) {
-            mSig.close();
-            mCameraHandler.obtainMessage(ADD_CALLBACK_BUFFER, callbackBuffer).sendToTarget();
-            mSig.block();
+            send(mCameraHandler.obtainMessage(ADD_CALLBACK_BUFFER, callbackBuffer));
         }
 
         public void autoFocus(AutoFocusCallback cb) {
-            mSig.close();
-            mCameraHandler.obtainMessage(AUTO_FOCUS, cb).sendToTarget();
-            mSig.block();
+            send(mCameraHandler.obtainMessage(AUTO_FOCUS, cb));
         }
 
         public void cancelAutoFocus() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(CANCEL_AUTO_FOCUS);
-            mSig.block();
+            send(mCameraHandler.obtainMessage(CANCEL_AUTO_FOCUS));
         }
 
         public void setAutoFocusMoveCallback(AutoFocusMoveCallback cb) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_AUTO_FOCUS_MOVE_CALLBACK, cb).sendToTarget();
-            mSig.block();
+            send(mCameraHandler.obtainMessage(SET_AUTO_FOCUS_MOVE_CALLBACK, cb));
         }
 
+        // Waits for the camera, because the caller keeps changing param.
         public void takePicture(final ShutterCallback shutter, final PictureCallback raw,
                 final PictureCallback postview, final PictureCallback jpeg, final Parameters param) {
-            mSig.close();
             // Too many parameters, so use post for simplicity
-            mCameraHandler.post(new Runnable() {
+            post(new Runnable() {
                 @Override
                 public void run() {
                     mCPCamera.takePicture(shutter, raw, postview, jpeg, param);
-                    mSig.open();
                 }
             });
-            mSig.block();
+            waitDone();
         }
 
         public void setDisplayOrientation(int degrees) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_DISPLAY_ORIENTATION, degrees, 0)
-                    .sendToTarget();
-            mSig.block();
+            send(mCameraHandler.obtainMessage(SET_DISPLAY_ORIENTATION, degrees, 0));
         }
 
         public void setZoomChangeListener(OnZoomChangeListener listener) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_ZOOM_CHANGE_LISTENER, listener).sendToTarget();
-            mSig.block();
+            send(mCameraHandler.obtainMessage(SET_ZOOM_CHANGE_LISTENER, listener));
         }
 
         public void setFaceDetectionListener(FaceDetectionListener listener) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_FACE_DETECTION_LISTENER, listener).sendToTarget();
-            mSig.block();
+            send(mCameraHandler.obtainMessage(SET_FACE_DETECTION_LISTENER, listener));
         }
 
         public void setBufferSource(final CPCamBufferQueue tapIn, final CPCamBufferQueue tapOut) {
-            mSig.close();
             // Too many parameters, so use post for simplicity
-            mCameraHandler.post(new Runnable() {
+            post(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -364,59 +531,53 @@ public class CPCameraManager {
                     } catch (IOException ioe) {
                         Log.e(TAG, "Error trying to setBufferSource!");
                     }
-                    mSig.open();
                 }
             });
-            mSig.block();
+            waitDone();
         }
 
         public void startFaceDetection() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(START_FACE_DETECTION);
-            mSig.block();
+            send(mCameraHandler.obtainMessage(START_FACE_DETECTION));
         }
 
         public void stopFaceDetection() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(STOP_FACE_DETECTION);
-            mSig.block();
+            send(mCameraHandler.obtainMessage(STOP_FACE_DETECTION));
         }
 
         public void setErrorCallback(ErrorCallback cb) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_ERROR_CALLBACK, cb).sendToTarget();
-            mSig.block();
+            send(mCameraHandler.obtainMessage(SET_ERROR_CALLBACK, cb));
         }
 
+        // The parameters are copied, so the caller may change params right
+        // away. Consecutive calls are merged into one.
         public void setParameters(Parameters params) {
-            mSig.close();
-            mCameraHandler.obtainMessage(SET_PARAMETERS, params).sendToTarget();
-            mSig.block();
+            CPCameraManager.this.setParameters(params);
         }
 
+        // Same as setParameters(), which does not wait any more.
         public void setParametersAsync(Parameters params) {
-            mCameraHandler.removeMessages(SET_PARAMETERS_ASYNC);
-            mCameraHandler.obtainMessage(SET_PARAMETERS_ASYNC, params).sendToTarget();
+            CPCameraManager.this.setParameters(params);
         }
 
         public Parameters getParameters() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(GET_PARAMETERS);
-            mSig.block();
-            return mParameters;
+            return CPCameraManager.this.getParameters();
+        }
+
+        // Returns the parameters of the camera. If no command since the last
+        // getParameters() may have changed them, they are copied into params,
+        // which is returned, instead of being read from the camera again.
+        public Parameters refreshParameters(Parameters params) {
+            return CPCameraManager.this.refreshParameters(params);
         }
 
         public void waitForIdle() {
-            mSig.close();
-            mCameraHandler.sendEmptyMessage(WAIT_FOR_IDLE);
-            mSig.block();
+            waitDone();
         }
 
+        // Waits for the camera, because the caller keeps changing shotParams.
         public void reprocess(Parameters shotParams) {
-            mSig.close();
-            mCameraHandler.obtainMessage(REPROCESS, shotParams).sendToTarget();
-            mSig.block();
+            send(mCameraHandler.obtainMessage(REPROCESS, shotParams));
+            waitDone();
         }
-
     }
 }
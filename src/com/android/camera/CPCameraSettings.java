@@ -31,7 +31,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 /**
  *  Provides utilities and keys for Camera settings.
@@ -415,16 +414,7 @@ public class CPCameraSettings {
     }
 
     public List<String> parseToList(String str) {
-        if (null == str)
-            return null;
-
-        StringTokenizer tokenizer = new StringTokenizer(str, ",");
-        ArrayList<String> substrings = new ArrayList<String>();
-
-        while (tokenizer.hasMoreElements())
-            substrings.add(tokenizer.nextToken());
-
-        return substrings;
+        return Util.parseToList(str);
     }
 
 }
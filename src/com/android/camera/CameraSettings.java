@@ -1126,16 +1126,7 @@ public class CameraSettings {
     }
 
     public List<String> parseToList(String str) {
-        if (null == str)
-            return null;
-
-        StringTokenizer tokenizer = new StringTokenizer(str, ",");
-        ArrayList<String> substrings = new ArrayList<String>();
-
-        while (tokenizer.hasMoreElements())
-            substrings.add(tokenizer.nextToken());
-
-        return substrings;
+        return Util.parseToList(str);
     }
 
     public static void filterUnsupportedOptions(PreferenceGroup group,
@@ -23,12 +23,83 @@ public class Exif {
 
     // Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
     public static int getOrientation(byte[] jpeg) {
-        if (jpeg == null) {
+        int[] length = new int[1];
+        int offset = findTiffHeader(jpeg, length);
+        if (offset < 0) {
+            return 0;
+        }
+
+        boolean littleEndian = isLittleEndian(jpeg, offset);
+        int entry = findEntry(jpeg, offset, length[0], firstIfd(jpeg, offset, length[0],
+                littleEndian), 0x0112, littleEndian);
+        if (entry >= 0) {
+            // We do not really care about type and count, do we?
+            int orientation = pack(jpeg, entry + 8, 2, littleEndian);
+            switch (orientation) {
+                case 1:
+                    return 0;
+                case 3:
+                    return 180;
+                case 6:
+                    return 90;
+                case 8:
+                    return 270;
+            }
+            Log.i(TAG, "Unsupported orientation");
             return 0;
         }
 
+        Log.i(TAG, "Orientation not found");
+        return 0;
+    }
+
+    // Returns the offset and the length of the jpeg thumbnail embedded in
+    // IFD1, or null if there is none. The thumbnail is much smaller than the
+    // image, so decoding it is much faster than decoding the image.
+    public static int[] getThumbnail(byte[] jpeg) {
+        int[] length = new int[1];
+        int offset = findTiffHeader(jpeg, length);
+        if (offset < 0) {
+            return null;
+        }
+
+        boolean littleEndian = isLittleEndian(jpeg, offset);
+        int ifd0 = firstIfd(jpeg, offset, length[0], littleEndian);
+        if (ifd0 < 0) {
+            return null;
+        }
+
+        // The offset of IFD1 follows the elements of IFD0.
+        int next = ifd0 + 2 + pack(jpeg, offset + ifd0, 2, littleEndian) * 12;
+        if (next > length[0] - 4) {
+            return null;
+        }
+        int ifd1 = pack(jpeg, offset + next, 4, littleEndian);
+        if (ifd1 < 8 || ifd1 > length[0] - 2) {
+            return null;
+        }
+
+        // JPEGInterchangeFormat and JPEGInterchangeFormatLength.
+        int start = getValue(jpeg, findEntry(jpeg, offset, length[0], ifd1, 0x0201,
+                littleEndian), littleEndian);
+        int size = getValue(jpeg, findEntry(jpeg, offset, length[0], ifd1, 0x0202,
+                littleEndian), littleEndian);
+        if (start < 8 || size <= 0 || start > length[0] - size) {
+            return null;
+        }
+        return new int[] {offset + start, size};
+    }
+
+    // Returns the offset of the TIFF header in the EXIF of the jpeg and puts
+    // the length of the EXIF data from there in length[0], or returns -1 if
+    // there is no EXIF.
+    private static int findTiffHeader(byte[] jpeg, int[] length) {
+        if (jpeg == null) {
+            return -1;
+        }
+
         int offset = 0;
-        int length = 0;
+        length[0] = 0;
 
         // ISO/IEC 10918-1:1993(E)
         while (offset + 3 < jpeg.length && (jpeg[offset++] & 0xFF) == 0xFF) {
@@ -50,73 +121,81 @@ public class Exif {
             }
 
             // Get the length and check if it is reasonable.
-            length = pack(jpeg, offset, 2, false);
-            if (length < 2 || offset + length > jpeg.length) {
+            int size = pack(jpeg, offset, 2, false);
+            if (size < 2 || offset + size > jpeg.length) {
                 Log.e(TAG, "Invalid length");
-                return 0;
+                return -1;
             }
 
             // Break if the marker is EXIF in APP1.
-            if (marker == 0xE1 && length >= 8 &&
+            if (marker == 0xE1 && size >= 8 &&
                     pack(jpeg, offset + 2, 4, false) == 0x45786966 &&
                     pack(jpeg, offset + 6, 2, false) == 0) {
-                offset += 8;
-                length -= 8;
+                length[0] = size - 8;
                 break;
             }
 
             // Skip other markers.
-            offset += length;
-            length = 0;
+            offset += size;
         }
 
         // JEITA CP-3451 Exif Version 2.2
-        if (length > 8) {
-            // Identify the byte order.
-            int tag = pack(jpeg, offset, 4, false);
-            if (tag != 0x49492A00 && tag != 0x4D4D002A) {
-                Log.e(TAG, "Invalid byte order");
-                return 0;
-            }
-            boolean littleEndian = (tag == 0x49492A00);
+        if (length[0] <= 8) {
+            return -1;
+        }
+        offset += 8;
 
-            // Get the offset and check if it is reasonable.
-            int count = pack(jpeg, offset + 4, 4, littleEndian) + 2;
-            if (count < 10 || count > length) {
-                Log.e(TAG, "Invalid offset");
-                return 0;
-            }
-            offset += count;
-            length -= count;
-
-            // Get the count and go through all the elements.
-            count = pack(jpeg, offset - 2, 2, littleEndian);
-            while (count-- > 0 && length >= 12) {
-                // Get the tag and check if it is orientation.
-                tag = pack(jpeg, offset, 2, littleEndian);
-                if (tag == 0x0112) {
-                    // We do not really care about type and count, do we?
-                    int orientation = pack(jpeg, offset + 8, 2, littleEndian);
-                    switch (orientation) {
-                        case 1:
-                            return 0;
-                        case 3:
-                            return 180;
-                        case 6:
-                            return 90;
-                        case 8:
-                            return 270;
-                    }
-                    Log.i(TAG, "Unsupported orientation");
-                    return 0;
-                }
-                offset += 12;
-                length -= 12;
+        // Identify the byte order.
+        int tag = pack(jpeg, offset, 4, false);
+        if (tag != 0x49492A00 && tag != 0x4D4D002A) {
+            Log.e(TAG, "Invalid byte order");
+            return -1;
+        }
+        return offset;
+    }
+
+    private static boolean isLittleEndian(byte[] jpeg, int tiff) {
+        return pack(jpeg, tiff, 4, false) == 0x49492A00;
+    }
+
+    // Returns the offset of IFD0 from the TIFF header, or -1 if it is not
+    // reasonable.
+    private static int firstIfd(byte[] jpeg, int tiff, int length,
+            boolean littleEndian) {
+        int ifd = pack(jpeg, tiff + 4, 4, littleEndian);
+        if (ifd < 8 || ifd > length - 2) {
+            Log.e(TAG, "Invalid offset");
+            return -1;
+        }
+        return ifd;
+    }
+
+    // Returns the offset in the jpeg of the element with the tag in the IFD,
+    // or -1 if there is none.
+    private static int findEntry(byte[] jpeg, int tiff, int length, int ifd,
+            int tag, boolean littleEndian) {
+        if (ifd < 0) {
+            return -1;
+        }
+        // Get the count and go through all the elements.
+        int count = pack(jpeg, tiff + ifd, 2, littleEndian);
+        int offset = ifd + 2;
+        while (count-- > 0 && offset + 12 <= length) {
+            if (pack(jpeg, tiff + offset, 2, littleEndian) == tag) {
+                return tiff + offset;
             }
+            offset += 12;
         }
+        return -1;
+    }
 
-        Log.i(TAG, "Orientation not found");
-        return 0;
+    // Returns the value of a SHORT or LONG element, or -1 if there is none.
+    private static int getValue(byte[] jpeg, int entry, boolean littleEndian) {
+        if (entry < 0) {
+            return -1;
+        }
+        int type = pack(jpeg, entry + 2, 2, littleEndian);
+        return pack(jpeg, entry + 8, type == 3 ? 2 : 4, littleEndian);
     }
 
     private static int pack(byte[] bytes, int offset, int length,
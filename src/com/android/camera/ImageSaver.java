@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ti.omap.android.camera;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.location.Location;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+// ImageSaver saves the captured images in three stages, each on its own
+// thread: the writer writes the jpeg file, the updater fills in the
+// MediaStore entry created by ImageNamer, and the thumbnail maker decodes the
+// thumbnail. The updater takes the images in the order the writer finishes
+// them. The thumbnail maker runs beside them and only makes the thumbnail of
+// the latest image, because the thumbnails of the images before it would be
+// replaced soon.
+//
+// The writer and the updater take all the images waiting for them, up to
+// MAX_BATCH_SIZE, so a burst is saved in batches: the files of a batch are
+// completed together by StorageWriter, and the MediaStore entries of a batch
+// are recorded in one transaction. The images of a burst may come without an
+// uri, and then the updater inserts their entries.
+//
+// The main thread needs to wait for the stages to finish all the work, when
+// the activity's onPause() is called, so other programs (like Gallery) can
+// see all the images.
+//
+// addImage() does not wait while the jpeg data held by the stages is below
+// HARD_LIMIT_BYTES. The camera should check isFull() before taking a new
+// picture, so only a burst which is already running can reach the hard
+// limit. isFull() also uses the rate the stages have saved the images at, to
+// keep the work waiting for them below MAX_PENDING_MS. If we don't limit the
+// data, we may OOM, and we may ANR when we need to wait for the stages to
+// finish all the work.
+class ImageSaver {
+    private static final String TAG = "ImageSaver";
+
+    private static final long HARD_LIMIT_BYTES = Math.min(
+            Runtime.getRuntime().maxMemory() / 4, 48 * 1024 * 1024);
+    private static final long SOFT_LIMIT_BYTES = HARD_LIMIT_BYTES / 3;
+    private static final long MAX_PENDING_MS = 3000;
+
+    private static final int MAX_BATCH_SIZE = 8;
+    // Set to force the files of each batch to the storage before they get
+    // their names.
+    private static final boolean SYNC_FILES = false;
+
+    private static final int STAGE_WRITE = 0;
+    private static final int STAGE_UPDATE = 1;
+    private static final int STAGE_THUMBNAIL = 2;
+    // From addImage() to the end of the last stage of an image.
+    private static final int STAGE_TOTAL = 3;
+    private static final int STAGE_COUNT = 4;
+
+    private static final String[] STAGE_NAMES =
+            {"write", "update", "thumbnail", "total"};
+
+    public interface Listener {
+        // Called in main thread with the thumbnail of the latest saved image.
+        void onThumbnailUpdated(Thumbnail thumbnail);
+    }
+
+    // Each SaveRequest remembers the data needed to save an image.
+    private static class SaveRequest {
+        byte[] data;
+        Uri uri;
+        String title;
+        Location loc;
+        int width, height;
+        int thumbnailWidth;
+        int orientation;
+        long dateTaken;
+
+        long addTime;
+        // The number of stages which have not finished with this request.
+        int stagesLeft;
+        boolean failed;
+        Thumbnail thumbnail;
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    // All the fields below are guarded by "this".
+    private final ArrayDeque<SaveRequest> mWriteQueue =
+            new ArrayDeque<SaveRequest>();
+    private final ArrayDeque<SaveRequest> mUpdateQueue =
+            new ArrayDeque<SaveRequest>();
+    private SaveRequest mThumbnailRequest;
+    private int mPendingCount;
+    private long mPendingBytes;
+    private Thumbnail mPendingThumbnail;
+    private boolean mStop;
+
+    private final long[] mStageTotalMs = new long[STAGE_COUNT];
+    private final long[] mStageMaxMs = new long[STAGE_COUNT];
+    private final int[] mStageCount = new int[STAGE_COUNT];
+    private int mSavedCount;
+    private long mBusyMs;
+    private long mBusyStartTime;
+
+    private final Worker[] mWorkers;
+
+    private final Runnable mUpdateThumbnail = new Runnable() {
+        @Override
+        public void run() {
+            updateThumbnail();
+        }
+    };
+
+    // Runs in main thread
+    public ImageSaver(Context context, Handler handler, Listener listener) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mHandler = handler;
+        mListener = listener;
+        mWorkers = new Worker[] {
+                new Writer(), new Updater(), new ThumbnailMaker()};
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    // Runs in main thread. If uri is null, a new MediaStore entry is inserted
+    // for the image.
+    public void addImage(final byte[] data, Uri uri, String title,
+            Location loc, int width, int height, int thumbnailWidth,
+            int orientation) {
+        SaveRequest r = new SaveRequest();
+        r.data = data;
+        r.uri = uri;
+        r.title = title;
+        r.loc = (loc == null) ? null : new Location(loc);  // make a copy
+        r.width = width;
+        r.height = height;
+        r.thumbnailWidth = thumbnailWidth;
+        r.orientation = orientation;
+        r.dateTaken = System.currentTimeMillis();
+        r.addTime = SystemClock.uptimeMillis();
+        r.stagesLeft = 3;
+        synchronized (this) {
+            if (mPendingCount > 0
+                    && mPendingBytes + data.length > HARD_LIMIT_BYTES) {
+                Log.w(TAG, "Wait for " + mPendingCount + " images to save");
+                while (mPendingCount > 0
+                        && mPendingBytes + data.length > HARD_LIMIT_BYTES) {
+                    waitWithoutInterrupt();
+                }
+            }
+            if (mPendingCount++ == 0) mBusyStartTime = r.addTime;
+            mPendingBytes += data.length;
+            mWriteQueue.addLast(r);
+
+            // The thumbnail of the image before is not needed any more.
+            if (mThumbnailRequest != null) finishStage(mThumbnailRequest);
+            mThumbnailRequest = r;
+            notifyAll();  // Tell the stages there is new work to do.
+        }
+    }
+
+    // Runs in main thread. Returns true if the images being saved hold so
+    // much data, or would take so long to save, that no new picture should be
+    // taken.
+    public synchronized boolean isFull() {
+        if (mPendingBytes >= SOFT_LIMIT_BYTES) return true;
+        float savedPerSecond = getSavedPerSecond();
+        return savedPerSecond > 0
+                && mPendingCount * 1000f / savedPerSecond >= MAX_PENDING_MS;
+    }
+
+    // Runs in main thread
+    public void waitDone() {
+        synchronized (this) {
+            while (mPendingCount > 0) {
+                waitWithoutInterrupt();
+            }
+        }
+        updateThumbnail();
+    }
+
+    // Runs in main thread
+    public void finish() {
+        waitDone();
+        synchronized (this) {
+            mStop = true;
+            notifyAll();
+        }
+        for (Worker worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                // ignore.
+            }
+        }
+        Log.v(TAG, getStatistics());
+    }
+
+    // Runs in main thread (because we need to update the thumbnail view in the
+    // main thread)
+    public void updateThumbnail() {
+        Thumbnail t;
+        synchronized (this) {
+            mHandler.removeCallbacks(mUpdateThumbnail);
+            t = mPendingThumbnail;
+            mPendingThumbnail = null;
+        }
+        if (t != null) mListener.onThumbnailUpdated(t);
+    }
+
+    // Returns the average time in ms an image spends in the given stage.
+    // Caller should hold synchronized on "this".
+    private float getAverageLatency(int stage) {
+        int count = mStageCount[stage];
+        return count == 0 ? 0 : (float) mStageTotalMs[stage] / count;
+    }
+
+    // Returns the number of images saved per second while there were images
+    // to save, which is the rate the stages can sustain in a burst.
+    // Caller should hold synchronized on "this".
+    private float getSavedPerSecond() {
+        long busyMs = mBusyMs;
+        if (mPendingCount > 0) {
+            busyMs += SystemClock.uptimeMillis() - mBusyStartTime;
+        }
+        return busyMs == 0 ? 0 : mSavedCount * 1000f / busyMs;
+    }
+
+    private synchronized String getStatistics() {
+        StringBuilder s = new StringBuilder();
+        s.append(mSavedCount).append(" images saved, ")
+                .append(getSavedPerSecond()).append(" per second");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            s.append(", ").append(STAGE_NAMES[i]).append(' ')
+                    .append(getAverageLatency(i)).append("ms (max ")
+                    .append(mStageMaxMs[i]).append("ms)");
+        }
+        return s.toString();
+    }
+
+    // Caller should hold synchronized on "this".
+    private void waitWithoutInterrupt() {
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            // ignore.
+        }
+    }
+
+    // Caller should hold synchronized on "this".
+    private void recordLatency(int stage, long startTime) {
+        long ms = SystemClock.uptimeMillis() - startTime;
+        mStageTotalMs[stage] += ms;
+        mStageMaxMs[stage] = Math.max(mStageMaxMs[stage], ms);
+        mStageCount[stage]++;
+    }
+
+    // Caller should hold synchronized on "this".
+    private void finishStage(SaveRequest r) {
+        if (--r.stagesLeft > 0) return;
+
+        recordLatency(STAGE_TOTAL, r.addTime);
+        mPendingBytes -= r.data.length;
+        r.data = null;
+        if (!r.failed) {
+            ++mSavedCount;
+            if (r.thumbnail != null) {
+                r.thumbnail.setUri(r.uri);
+                // We need to update the thumbnail in the main thread.
+                mPendingThumbnail = r.thumbnail;
+                mHandler.post(mUpdateThumbnail);
+            }
+        }
+        if (--mPendingCount == 0) {
+            mBusyMs += SystemClock.uptimeMillis() - mBusyStartTime;
+        }
+        notifyAll();  // the main thread may wait in addImage or waitDone
+    }
+
+    // Caller should hold synchronized on "this".
+    private static void takeBatch(ArrayDeque<SaveRequest> queue,
+            ArrayList<SaveRequest> batch) {
+        while (batch.size() < MAX_BATCH_SIZE && !queue.isEmpty()) {
+            batch.add(queue.removeFirst());
+        }
+    }
+
+    private abstract class Worker extends Thread {
+        private final ArrayList<SaveRequest> mBatch =
+                new ArrayList<SaveRequest>();
+
+        public Worker(String name) {
+            super(name);
+        }
+
+        // Adds the next requests of this stage to the batch, if there are
+        // any. Runs with "this" of ImageSaver held.
+        protected abstract void take(ArrayList<SaveRequest> batch);
+
+        protected abstract void process(ArrayList<SaveRequest> batch);
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (ImageSaver.this) {
+                    // Note that we can only stop after we saved all images.
+                    while (true) {
+                        take(mBatch);
+                        if (!mBatch.isEmpty() || mStop) break;
+                        waitWithoutInterrupt();
+                    }
+                    if (mBatch.isEmpty()) break;
+                }
+                process(mBatch);
+                mBatch.clear();
+            }
+        }
+    }
+
+    private class Writer extends Worker {
+        private final StorageWriter mStorageWriter = new StorageWriter(SYNC_FILES);
+
+        public Writer() {
+            super("ImageWriter");
+        }
+
+        @Override
+        protected void take(ArrayList<SaveRequest> batch) {
+            takeBatch(mWriteQueue, batch);
+        }
+
+        @Override
+        protected void process(ArrayList<SaveRequest> batch) {
+            long start = SystemClock.uptimeMillis();
+            for (SaveRequest r : batch) {
+                mStorageWriter.write(Storage.generateFilepath(r.title), r.data);
+            }
+            boolean[] ok = mStorageWriter.flush();
+            long now = System.currentTimeMillis();
+            synchronized (ImageSaver.this) {
+                for (int i = 0, n = batch.size(); i < n; i++) {
+                    SaveRequest r = batch.get(i);
+                    recordLatency(STAGE_WRITE, start);
+                    if (ok[i]) {
+                        Log.v(TAG, "PPM: StoreImage: " + (now - r.dateTaken) + " ms");
+                        mUpdateQueue.addLast(r);
+                    } else {
+                        // There is nothing to update.
+                        r.failed = true;
+                        finishStage(r);
+                    }
+                    finishStage(r);
+                }
+                ImageSaver.this.notifyAll();
+            }
+        }
+    }
+
+    private class Updater extends Worker {
+        public Updater() {
+            super("ImageUpdater");
+        }
+
+        @Override
+        protected void take(ArrayList<SaveRequest> batch) {
+            takeBatch(mUpdateQueue, batch);
+        }
+
+        @Override
+        protected void process(ArrayList<SaveRequest> batch) {
+            long start = SystemClock.uptimeMillis();
+            int n = batch.size();
+            Uri[] uris = new Uri[n];
+            SaveRequest first = batch.get(0);
+            if (n == 1 && first.uri != null) {
+                if (Storage.updateImageInfo(mResolver, first.uri, first.title,
+                        first.loc, first.orientation, first.data.length,
+                        first.width, first.height)) {
+                    uris[0] = first.uri;
+                }
+            } else {
+                ArrayList<ContentProviderOperation> operations =
+                        new ArrayList<ContentProviderOperation>(n);
+                for (SaveRequest r : batch) {
+                    operations.add(Storage.newImageOperation(r.uri, r.title,
+                            r.dateTaken, r.loc, r.orientation, r.data.length,
+                            r.width, r.height));
+                }
+                ContentProviderResult[] results =
+                        Storage.applyImageOperations(mResolver, operations);
+                if (results != null) {
+                    for (int i = 0; i < n; i++) {
+                        Uri uri = batch.get(i).uri;
+                        uris[i] = (uri != null) ? uri : results[i].uri;
+                    }
+                }
+            }
+            for (Uri uri : uris) {
+                if (uri != null) Util.broadcastNewPicture(mContext, uri);
+            }
+            synchronized (ImageSaver.this) {
+                for (int i = 0; i < n; i++) {
+                    SaveRequest r = batch.get(i);
+                    recordLatency(STAGE_UPDATE, start);
+                    r.uri = uris[i];
+                    if (uris[i] == null) r.failed = true;
+                    finishStage(r);
+                }
+            }
+        }
+    }
+
+    private class ThumbnailMaker extends Worker {
+        public ThumbnailMaker() {
+            super("ThumbnailMaker");
+        }
+
+        @Override
+        protected void take(ArrayList<SaveRequest> batch) {
+            if (mThumbnailRequest == null) return;
+            batch.add(mThumbnailRequest);
+            mThumbnailRequest = null;
+        }
+
+        @Override
+        protected void process(ArrayList<SaveRequest> batch) {
+            SaveRequest r = batch.get(0);
+            long start = SystemClock.uptimeMillis();
+            // Create a thumbnail whose width is equal or bigger than that of
+            // the thumbnail view. The uri may not be known yet, so it is set
+            // in finishStage().
+            int ratio = (int) Math.ceil((double) r.width / r.thumbnailWidth);
+            int inSampleSize = Integer.highestOneBit(ratio);
+            Thumbnail t = Thumbnail.createThumbnail(
+                    r.data, r.orientation, inSampleSize, null);
+            synchronized (ImageSaver.this) {
+                recordLatency(STAGE_THUMBNAIL, start);
+                r.thumbnail = t;
+                finishStage(r);
+            }
+        }
+    }
+}
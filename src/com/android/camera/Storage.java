@@ -16,18 +16,21 @@
 
 package com.ti.omap.android.camera;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.util.ArrayList;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
@@ -50,40 +53,13 @@ public class Storage {
     public static Uri addImage(ContentResolver resolver, String title, long date,
                 Location location, int orientation, byte[] jpeg, int width, int height) {
         // Save the image.
-        String path = generateFilepath(title);
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(path);
-            out.write(jpeg);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to write image", e);
-            return null;
-        } finally {
-            try {
-                out.close();
-            } catch (Exception e) {
-            }
-        }
-
-        Log.e(TAG, "PPM: StoreImage: " + (System.currentTimeMillis() - date) + " ms");
+        if (!writeImage(title, jpeg, date)) return null;
 
         // Insert into MediaStore.
-        ContentValues values = new ContentValues(9);
-        values.put(ImageColumns.TITLE, title);
-        values.put(ImageColumns.DISPLAY_NAME, title + ".jpg");
+        ContentValues values = getImageValues(title, location, orientation,
+                jpeg.length, width, height);
         values.put(ImageColumns.DATE_TAKEN, date);
-        values.put(ImageColumns.MIME_TYPE, "image/jpeg");
-        // Clockwise rotation in degrees. 0, 90, 180, or 270.
-        values.put(ImageColumns.ORIENTATION, orientation);
-        values.put(ImageColumns.DATA, path);
-        values.put(ImageColumns.SIZE, jpeg.length);
-        values.put(ImageColumns.WIDTH, width);
-        values.put(ImageColumns.HEIGHT, height);
-
-        if (location != null) {
-            values.put(ImageColumns.LATITUDE, location.getLatitude());
-            values.put(ImageColumns.LONGITUDE, location.getLongitude());
-        }
+        values.put(ImageColumns.DATA, generateFilepath(title));
 
         Uri uri = null;
         try {
@@ -138,37 +114,84 @@ public class Storage {
     public static boolean updateImage(ContentResolver resolver, Uri uri,
             String title, Location location, int orientation, byte[] jpeg,
             int width, int height, long date) {
-        // Save the image.
-        String path = generateFilepath(title);
-        String tmpPath = path + ".tmp";
-        FileOutputStream out = null;
+        return writeImage(title, jpeg, date) && updateImageInfo(resolver, uri,
+                title, location, orientation, jpeg.length, width, height);
+    }
+
+    // writeImage() and updateImageInfo() together do the same work as
+    // updateImage(), so the file of an image can be written while the
+    // MediaStore is updated for the one before.
+    //
+    // Returns true if the image data is saved into the file.
+    public static boolean writeImage(String title, byte[] jpeg, long date) {
+        StorageWriter writer = new StorageWriter(false);
+        writer.write(generateFilepath(title), jpeg);
+        if (!writer.flush()[0]) return false;
+
+        Log.e(TAG, "PPM: StoreImage: " + (System.currentTimeMillis() - date) + " ms");
+        return true;
+    }
+
+    // Returns true if the MediaStore is updated.
+    public static boolean updateImageInfo(ContentResolver resolver, Uri uri,
+            String title, Location location, int orientation, int size,
+            int width, int height) {
+        ContentValues values = getImageValues(title, location, orientation,
+                size, width, height);
         try {
-            // Write to a temporary file and rename it to the final name. This
-            // avoids other apps reading incomplete data.
-            out = new FileOutputStream(tmpPath);
-            out.write(jpeg);
-            out.close();
-            new File(tmpPath).renameTo(new File(path));
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to write image", e);
+            resolver.update(uri, values, null, null);
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to update image" + th);
             return false;
-        } finally {
-            try {
-                out.close();
-            } catch (Exception e) {
-            }
         }
 
-        Log.e(TAG, "PPM: StoreImage: " + (System.currentTimeMillis() - date) + " ms");
+        return true;
+    }
 
-        // Insert into MediaStore.
-        ContentValues values = new ContentValues(9);
+    // Returns the operation which records an image into MediaStore. It
+    // updates the entry of uri like updateImageInfo(), or inserts a new entry
+    // like addImage() if uri is null. The operations of a burst can be applied
+    // together by applyImageOperations().
+    public static ContentProviderOperation newImageOperation(Uri uri,
+            String title, long date, Location location, int orientation,
+            int size, int width, int height) {
+        ContentValues values = getImageValues(title, location, orientation,
+                size, width, height);
+        if (uri != null) {
+            return ContentProviderOperation.newUpdate(uri).withValues(values)
+                    .build();
+        }
+        values.put(ImageColumns.DATE_TAKEN, date);
+        values.put(ImageColumns.DATA, generateFilepath(title));
+        return ContentProviderOperation.newInsert(
+                Images.Media.EXTERNAL_CONTENT_URI).withValues(values).build();
+    }
+
+    // Applies the operations in one transaction of MediaStore, instead of one
+    // transaction for each image. Returns the results, or null if it fails.
+    public static ContentProviderResult[] applyImageOperations(
+            ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations) {
+        try {
+            return resolver.applyBatch(MediaStore.AUTHORITY, operations);
+        } catch (Throwable th) {
+            // See addImage() for when this can happen.
+            Log.e(TAG, "Failed to apply " + operations.size()
+                    + " image operations" + th);
+            return null;
+        }
+    }
+
+    private static ContentValues getImageValues(String title,
+            Location location, int orientation, int size, int width,
+            int height) {
+        ContentValues values = new ContentValues(11);
         values.put(ImageColumns.TITLE, title);
         values.put(ImageColumns.DISPLAY_NAME, title + ".jpg");
         values.put(ImageColumns.MIME_TYPE, "image/jpeg");
         // Clockwise rotation in degrees. 0, 90, 180, or 270.
         values.put(ImageColumns.ORIENTATION, orientation);
-        values.put(ImageColumns.SIZE, jpeg.length);
+        values.put(ImageColumns.SIZE, size);
         values.put(ImageColumns.WIDTH, width);
         values.put(ImageColumns.HEIGHT, height);
 
@@ -176,15 +199,7 @@ public class Storage {
             values.put(ImageColumns.LATITUDE, location.getLatitude());
             values.put(ImageColumns.LONGITUDE, location.getLongitude());
         }
-
-        try {
-            resolver.update(uri, values, null, null);
-        } catch (Throwable th) {
-            Log.e(TAG, "Failed to update image" + th);
-            return false;
-        }
-
-        return true;
+        return values;
     }
 
     public static void deleteImage(ContentResolver resolver, Uri uri) {
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ti.omap.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+// StorageWriter writes jpeg files through a FileChannel, each with a single
+// write of the whole data.
+//
+// The files are written to temporary names and get their names in flush(),
+// so other apps never read incomplete data. If sync is set, flush() also
+// forces the data to the storage before the renames. Forcing the files of a
+// burst one after another, after all of them are written, lets the storage
+// write them back together instead of stalling after every image.
+//
+// StorageWriter is not thread safe.
+public class StorageWriter {
+    private static final String TAG = "StorageWriter";
+
+    private static class PendingFile {
+        String path;
+        FileOutputStream file;  // null if the write failed
+    }
+
+    private final boolean mSync;
+    private final ArrayList<PendingFile> mPendingFiles =
+            new ArrayList<PendingFile>();
+
+    public StorageWriter(boolean sync) {
+        mSync = sync;
+    }
+
+    // Writes the data to a temporary file for the path. Returns true if the
+    // data is written. The file is kept open until flush().
+    public boolean write(String path, byte[] data) {
+        PendingFile pending = new PendingFile();
+        pending.path = path;
+        mPendingFiles.add(pending);
+
+        String tmpPath = path + ".tmp";
+        FileOutputStream file = null;
+        try {
+            file = new FileOutputStream(tmpPath);
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write image", e);
+            Util.closeSilently(file);
+            new File(tmpPath).delete();
+            return false;
+        }
+        pending.file = file;
+        return true;
+    }
+
+    // Completes the files written since the last flush(). Returns whether
+    // each of them has got its name, in the order they were written.
+    public boolean[] flush() {
+        int n = mPendingFiles.size();
+        boolean[] result = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            PendingFile pending = mPendingFiles.get(i);
+            if (pending.file == null) continue;
+            String tmpPath = pending.path + ".tmp";
+            try {
+                if (mSync) pending.file.getChannel().force(false);
+                pending.file.close();
+                result[i] = new File(tmpPath).renameTo(new File(pending.path));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to complete image", e);
+            } finally {
+                Util.closeSilently(pending.file);
+            }
+            if (!result[i]) new File(tmpPath).delete();
+        }
+        mPendingFiles.clear();
+        return result;
+    }
+}
@@ -65,6 +65,10 @@ public class Thumbnail {
         return mUri;
     }
 
+    public void setUri(Uri uri) {
+        mUri = uri;
+    }
+
     public Bitmap getBitmap() {
         return mBitmap;
     }
@@ -257,13 +261,50 @@ public class Thumbnail {
 
     public static Thumbnail createThumbnail(byte[] jpeg, int orientation, int inSampleSize,
             Uri uri) {
-        // Create the thumbnail.
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = inSampleSize;
-        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        Bitmap bitmap = decodeExifThumbnail(jpeg, inSampleSize);
+        if (bitmap == null) {
+            // Create the thumbnail. The decoder scales the image down while it
+            // decodes the DCT blocks, so this is cheaper than a full decode.
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = inSampleSize;
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        }
         return createThumbnail(uri, bitmap, orientation);
     }
 
+    // Returns the thumbnail embedded in the EXIF of the jpeg if it is at least
+    // as big as the image decoded with inSampleSize, and has the same aspect
+    // ratio. Otherwise returns null.
+    private static Bitmap decodeExifThumbnail(byte[] jpeg, int inSampleSize) {
+        int[] range = Exif.getThumbnail(jpeg);
+        if (range == null) return null;
+
+        // Only the headers are decoded to get the sizes.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        long width = options.outWidth;
+        long height = options.outHeight;
+        options.outWidth = options.outHeight = -1;
+        BitmapFactory.decodeByteArray(jpeg, range[0], range[1], options);
+        long thumbWidth = options.outWidth;
+        long thumbHeight = options.outHeight;
+        if (width <= 0 || height <= 0 || thumbWidth <= 0 || thumbHeight <= 0) {
+            return null;
+        }
+
+        if (thumbWidth * inSampleSize < width || thumbHeight * inSampleSize < height) {
+            return null;
+        }
+        // Some cameras pad the thumbnail of a wide image to 4:3.
+        if (Math.abs(thumbWidth * height - thumbHeight * width) * 50 > width * thumbHeight) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(jpeg, range[0], range[1], options);
+    }
+
     public static Bitmap createVideoThumbnailBitmap(FileDescriptor fd, int targetWidth) {
         return createVideoThumbnailBitmap(null, fd, targetWidth);
     }
@@ -56,8 +56,11 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 import com.ti.omap.android.camera.CameraDisabledException;
@@ -166,13 +169,59 @@ public class Util {
         return b;
     }
 
-    public static ArrayList<int[]> parseRange(String str) {
+    // The supported values are parsed again each time the parameters are
+    // read, but they rarely change, so keep the lists parsed recently. The
+    // lists returned are shared and cannot be modified.
+    private static final int PARSE_CACHE_SIZE = 16;
+
+    private static class ParseCache<T> extends LinkedHashMap<String, List<T>> {
+        ParseCache() {
+            super(PARSE_CACHE_SIZE, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<T>> eldest) {
+            return size() > PARSE_CACHE_SIZE;
+        }
+    }
+
+    private static final ParseCache<String> sListCache = new ParseCache<String>();
+    private static final ParseCache<int[]> sRangeCache = new ParseCache<int[]>();
+
+    // Parses a list of values separated by commas, like "auto,on,off".
+    public static List<String> parseToList(String str) {
+        if (str == null) return null;
+
+        synchronized (sListCache) {
+            List<String> list = sListCache.get(str);
+            if (list != null) return list;
+        }
+
+        StringTokenizer tokenizer = new StringTokenizer(str, ",");
+        ArrayList<String> substrings = new ArrayList<String>();
+        while (tokenizer.hasMoreElements()) {
+            substrings.add(tokenizer.nextToken());
+        }
+
+        List<String> list = Collections.unmodifiableList(substrings);
+        synchronized (sListCache) {
+            sListCache.put(str, list);
+        }
+        return list;
+    }
+
+    public static List<int[]> parseRange(String str) {
         if ( ( str == null ) ||
              ( str.charAt(0) != '(' ) ||
              ( str.charAt(str.length() - 1) != ')') ) {
             return null;
         }
 
+        synchronized (sRangeCache) {
+            List<int[]> list = sRangeCache.get(str);
+            if (list != null) return list;
+        }
+
         String token = "),(";
         int start = 1;
         int end = 1;
@@ -191,7 +240,11 @@ public class Util {
             start = end + token.length();
         } while (end != str.length() - 1);
 
-        return rangeList;
+        List<int[]> list = Collections.unmodifiableList(rangeList);
+        synchronized (sRangeCache) {
+            sRangeCache.put(str, list);
+        }
+        return list;
     }
 
     private static boolean parsePair(String str, int[] pair) {
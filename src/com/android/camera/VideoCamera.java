@@ -678,7 +678,7 @@ public class VideoCamera extends ActivityBase
 
     @Override
     public void setTouchParameters() {
-        mParameters = mCameraDevice.getParameters();
+        mParameters = mCameraDevice.refreshParameters(mParameters);
         mParameters.setMeteringAreas(mTouchManager.getMeteringAreas());
         mCameraDevice.setParameters(mParameters);
     }
@@ -810,7 +810,7 @@ public class VideoCamera extends ActivityBase
     }
 
     private void getDesiredPreviewSize() {
-        mParameters = mCameraDevice.getParameters();
+        mParameters = mCameraDevice.refreshParameters(mParameters);
         if (mParameters.getSupportedVideoSizes() == null || effectsActive()) {
             mDesiredPreviewWidth = mProfile.videoFrameWidth;
             mDesiredPreviewHeight = mProfile.videoFrameHeight;
@@ -17,6 +17,7 @@
 package com.ti.omap.android.camera.stress;
 
 import com.ti.omap.android.camera.Camera;
+import com.ti.omap.android.camera.CameraManager;
 
 import android.app.Instrumentation;
 import android.os.Environment;
@@ -50,6 +51,9 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
     private long mAvgShutterToPictureDisplayedTime;
     private long mAvgPictureDisplayedToJpegCallbackTime;
     private long mAvgJpegCallbackFinishTime;
+    private long mMainThreadBlockedTime;
+    private int mCommandCount;
+    private int mCoalescedCount;
 
     public CameraLatency() {
         super(Camera.class);
@@ -71,6 +75,10 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
         Log.v(TAG, "start testImageCapture test");
         Instrumentation inst = getInstrumentation();
         inst.sendKeyDownUpSync(KeyEvent.KEYCODE_DPAD_DOWN);
+        CameraManager manager = CameraManager.instance();
+        long blockedTime = manager.getMainThreadBlockedTime();
+        int commandCount = manager.getCommandCount();
+        int coalescedCount = manager.getCoalescedCount();
         try {
             for (int i = 0; i < TOTAL_NUMBER_OF_IMAGECAPTURE; i++) {
                 Thread.sleep(WAIT_FOR_IMAGE_CAPTURE_TO_BE_TAKEN);
@@ -91,6 +99,10 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
         } catch (Exception e) {
             Log.v(TAG, "Got exception", e);
         }
+        // The time the UI thread waited for the camera in this session.
+        mMainThreadBlockedTime = manager.getMainThreadBlockedTime() - blockedTime;
+        mCommandCount = manager.getCommandCount() - commandCount;
+        mCoalescedCount = manager.getCoalescedCount() - coalescedCount;
         //ToDO: yslau
         //1) Need to get the baseline from the cupcake so that we can add the
         //failure condition of the camera latency.
@@ -120,6 +132,9 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
                     + mAvgPictureDisplayedToJpegCallbackTime + "\n");
             out.write("Avg mJpegCallbackFinishTime = " +
                     mAvgJpegCallbackFinishTime + "\n");
+            out.write("Main thread blocked by camera = " + mMainThreadBlockedTime
+                    + "ms for " + mCommandCount + " commands, "
+                    + mCoalescedCount + " setParameters merged\n");
             out.close();
             fstream.close();
         } catch (Exception e) {
@@ -134,6 +149,9 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
         Log.v(TAG, "Avg mPictureDisplayedToJpegCallbackTime = "
                 + mAvgPictureDisplayedToJpegCallbackTime);
         Log.v(TAG, "Avg mJpegCallbackFinishTime = " + mAvgJpegCallbackFinishTime);
+        Log.v(TAG, "Main thread blocked by camera = " + mMainThreadBlockedTime
+                + "ms for " + mCommandCount + " commands, "
+                + mCoalescedCount + " setParameters merged");
     }
 }
 
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ti.omap.android.camera.unittest;
+
+import com.ti.omap.android.camera.CameraManager;
+import com.ti.omap.android.camera.CameraManager.CameraDevice;
+import com.ti.omap.android.camera.CameraManager.CameraProxy;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera.AutoFocusCallback;
+import android.hardware.Camera.AutoFocusMoveCallback;
+import android.hardware.Camera.ErrorCallback;
+import android.hardware.Camera.FaceDetectionListener;
+import android.hardware.Camera.OnZoomChangeListener;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Constructor;
+
+// Runs a camera session against a fake camera, whose calls take about as
+// long as the HAL calls they stand for, and measures how long the main
+// thread waits for the camera handler.
+@MediumTest
+public class CameraManagerTest extends TestCase {
+    private static final String TAG = "CameraManagerTest";
+
+    private static final int FAST_CALL_MS = 2;
+    private static final int GET_PARAMETERS_MS = 5;
+    private static final int SET_PARAMETERS_MS = 20;
+    private static final int START_PREVIEW_MS = 60;
+    private static final int STOP_PREVIEW_MS = 40;
+    private static final int TAKE_PICTURE_MS = 30;
+    // The main thread draws a frame, or gets a touch event, this often.
+    private static final int FRAME_MS = 16;
+    private static final int TOUCH_MS = 8;
+    private static final int ZOOM_STEPS = 10;
+
+    private static Parameters newParameters() {
+        // Camera.Parameters has no public constructor.
+        try {
+            Constructor<Parameters> constructor = Parameters.class
+                    .getDeclaredConstructor(android.hardware.Camera.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance((Object) null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class FakeCameraDevice implements CameraDevice {
+        final Parameters mParameters = newParameters();
+        volatile int mSetParametersCount;
+        volatile int mGetParametersCount;
+        volatile boolean mPreviewStarted;
+
+        public android.hardware.Camera getCamera() {
+            return null;
+        }
+
+        public void release() {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void reconnect() {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void unlock() {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void lock() {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void setPreviewTexture(SurfaceTexture surfaceTexture) {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void startPreview() {
+            SystemClock.sleep(START_PREVIEW_MS);
+            mPreviewStarted = true;
+        }
+
+        public void stopPreview() {
+            SystemClock.sleep(STOP_PREVIEW_MS);
+            mPreviewStarted = false;
+        }
+
+        public void setPreviewCallbackWithBuffer(PreviewCallback cb) {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void addCallbackBuffer(byte[] callbackBuffer) {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void autoFocus(AutoFocusCallback cb) {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void cancelAutoFocus() {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void setAutoFocusMoveCallback(AutoFocusMoveCallback cb) {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void takePicture(ShutterCallback shutter, PictureCallback raw,
+                PictureCallback postview, PictureCallback jpeg) {
+            SystemClock.sleep(TAKE_PICTURE_MS);
+            mPreviewStarted = false;
+        }
+
+        public void setDisplayOrientation(int degrees) {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void setZoomChangeListener(OnZoomChangeListener listener) {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void setFaceDetectionListener(FaceDetectionListener listener) {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void startFaceDetection() {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void stopFaceDetection() {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public void setErrorCallback(ErrorCallback cb) {
+            SystemClock.sleep(FAST_CALL_MS);
+        }
+
+        public synchronized void setParameters(Parameters params) {
+            SystemClock.sleep(SET_PARAMETERS_MS);
+            mParameters.unflatten(params.flatten());
+            ++mSetParametersCount;
+        }
+
+        public synchronized Parameters getParameters() {
+            SystemClock.sleep(GET_PARAMETERS_MS);
+            Parameters params = newParameters();
+            params.unflatten(mParameters.flatten());
+            ++mGetParametersCount;
+            return params;
+        }
+    }
+
+    // Opens the camera, zooms, takes a picture and stops the preview, with
+    // the main thread drawing or handling touches in between. If wait is
+    // set, every command waits for the camera handler, the way CameraProxy
+    // used to.
+    private static void runSession(CameraProxy camera, boolean wait) {
+        camera.setErrorCallback(null);
+        if (wait) camera.waitForIdle();
+        camera.setDisplayOrientation(90);
+        if (wait) camera.waitForIdle();
+        Parameters params = camera.getParameters();
+        params.set("picture-size", "2592x1944");
+        camera.setParameters(params);
+        if (wait) camera.waitForIdle();
+        params.set("preview-size", "1280x720");
+        camera.setParameters(params);
+        if (wait) camera.waitForIdle();
+        camera.setPreviewTextureAsync(null);
+        if (wait) camera.waitForIdle();
+        camera.startPreviewAsync();
+        if (wait) camera.waitForIdle();
+        camera.setFaceDetectionListener(null);
+        if (wait) camera.waitForIdle();
+        camera.startFaceDetection();
+        if (wait) camera.waitForIdle();
+        SystemClock.sleep(3 * FRAME_MS);
+
+        for (int i = 1; i <= ZOOM_STEPS; i++) {
+            params.set("zoom", i);
+            camera.setParameters(params);
+            if (wait) camera.waitForIdle();
+            SystemClock.sleep(TOUCH_MS);
+        }
+
+        camera.autoFocus(null);
+        if (wait) camera.waitForIdle();
+        SystemClock.sleep(FRAME_MS);
+        camera.takePicture(null, null, null, null);
+        if (wait) camera.waitForIdle();
+        SystemClock.sleep(6 * FRAME_MS);
+        camera.startPreviewAsync();
+        if (wait) camera.waitForIdle();
+        SystemClock.sleep(3 * FRAME_MS);
+
+        camera.stopFaceDetection();
+        if (wait) camera.waitForIdle();
+        camera.stopPreview();
+    }
+
+    // Runs the session on the main thread. Returns the time the main thread
+    // waited for the camera handler.
+    private static long runOnMainThread(final CameraManager manager,
+            final CameraProxy camera, final boolean wait) {
+        final ConditionVariable done = new ConditionVariable();
+        final long[] blockedTime = new long[1];
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                long start = manager.getMainThreadBlockedTime();
+                runSession(camera, wait);
+                blockedTime[0] = manager.getMainThreadBlockedTime() - start;
+                done.open();
+            }
+        });
+        done.block();
+        return blockedTime[0];
+    }
+
+    public void testMainThreadBlockedTime() {
+        CameraManager manager = CameraManager.newInstanceForTesting();
+        FakeCameraDevice device = new FakeCameraDevice();
+        CameraProxy camera = manager.openForTesting(device);
+
+        long blocking = runOnMainThread(manager, camera, true);
+        int blockingSets = device.mSetParametersCount;
+        assertFalse(device.mPreviewStarted);
+
+        int commandCount = manager.getCommandCount();
+        int coalescedCount = manager.getCoalescedCount();
+        long queued = runOnMainThread(manager, camera, false);
+        int queuedSets = device.mSetParametersCount - blockingSets;
+        commandCount = manager.getCommandCount() - commandCount;
+        coalescedCount = manager.getCoalescedCount() - coalescedCount;
+        // stopPreview() returns only after the camera has stopped.
+        assertFalse(device.mPreviewStarted);
+        camera.release();
+
+        Log.v(TAG, "Main thread blocked by camera per session: "
+                + blocking + "ms waiting for each command, " + queued
+                + "ms with the queue; setParameters reached the camera "
+                + blockingSets + " and " + queuedSets + " times, "
+                + coalescedCount + " merged, " + commandCount + " commands");
+        assertEquals(ZOOM_STEPS + 2, blockingSets);
+        assertTrue(queuedSets < blockingSets);
+        assertTrue(queued < blocking);
+    }
+
+    public void testRefreshParametersAfterHandOut() {
+        CameraManager manager = CameraManager.newInstanceForTesting();
+        FakeCameraDevice device = new FakeCameraDevice();
+        CameraProxy camera = manager.openForTesting(device);
+
+        Parameters params = camera.getParameters();
+        assertEquals(1, device.mGetParametersCount);
+        // Nothing may have changed the parameters since they were read.
+        camera.setDisplayOrientation(90);
+        params = camera.refreshParameters(params);
+        assertEquals(1, device.mGetParametersCount);
+
+        // The same parameters are still sent, because the camera may have
+        // been changed by someone else.
+        camera.setParameters(params);
+        camera.waitForIdle();
+        assertEquals(1, device.mSetParametersCount);
+
+        // Whoever got the camera may change its parameters at any time.
+        int getCount = device.mGetParametersCount;
+        camera.getCamera();
+        camera.refreshParameters(params);
+        camera.refreshParameters(params);
+        assertEquals(getCount + 2, device.mGetParametersCount);
+        camera.release();
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.ti.omap.android.camera.unittest;
 
+import com.ti.omap.android.camera.Exif;
 import com.ti.omap.android.camera.Util;
 
 import android.graphics.Matrix;
@@ -23,6 +24,10 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
 @SmallTest
 public class CameraUnitTest extends TestCase {
     public void testRoundOrientation() {
@@ -99,6 +104,91 @@ public class CameraUnitTest extends TestCase {
         assertEquals(expected, points);
     }
 
+    public void testParseToList() {
+        List<String> list = Util.parseToList("auto,on,off");
+        assertEquals(3, list.size());
+        assertEquals("on", list.get(1));
+        // The same string gives the same list.
+        assertSame(list, Util.parseToList("auto,on,off"));
+        assertNull(Util.parseToList(null));
+    }
+
+    public void testParseRange() {
+        List<int[]> ranges = Util.parseRange("(15000,30000),(30000,30000)");
+        assertEquals(2, ranges.size());
+        assertEquals(15000, ranges.get(0)[0]);
+        assertEquals(30000, ranges.get(0)[1]);
+        assertEquals(30000, ranges.get(1)[0]);
+        assertSame(ranges, Util.parseRange("(15000,30000),(30000,30000)"));
+        assertNull(Util.parseRange("15000,30000"));
+    }
+
+    public void testExifThumbnail() {
+        for (boolean littleEndian : new boolean[] {true, false}) {
+            byte[] jpeg = createExifJpeg(littleEndian, true);
+            assertEquals(90, Exif.getOrientation(jpeg));
+            int[] range = Exif.getThumbnail(jpeg);
+            assertEquals(THUMBNAIL_OFFSET, range[0]);
+            assertEquals(THUMBNAIL_LENGTH, range[1]);
+            assertEquals(0xFF, jpeg[range[0]] & 0xFF);
+            assertEquals(0xD8, jpeg[range[0] + 1] & 0xFF);
+
+            jpeg = createExifJpeg(littleEndian, false);
+            assertEquals(90, Exif.getOrientation(jpeg));
+            assertNull(Exif.getThumbnail(jpeg));
+
+            // Offsets which overflow when the size of an IFD is added.
+            ByteBuffer b = ByteBuffer.wrap(createExifJpeg(littleEndian, true));
+            b.order(littleEndian ? ByteOrder.LITTLE_ENDIAN
+                    : ByteOrder.BIG_ENDIAN);
+            b.putInt(12 + 22, 0x7FFFFFFF);
+            assertNull(Exif.getThumbnail(b.array()));
+            b.putInt(12 + 4, 0x7FFFFFFE);
+            assertEquals(0, Exif.getOrientation(b.array()));
+            assertNull(Exif.getThumbnail(b.array()));
+        }
+        assertNull(Exif.getThumbnail(null));
+        assertNull(Exif.getThumbnail(new byte[] {(byte) 0xFF, (byte) 0xD8}));
+    }
+
+    // The thumbnail follows the 56 bytes of TIFF data, which start at 12.
+    private static final int THUMBNAIL_OFFSET = 68;
+    private static final int THUMBNAIL_LENGTH = 4;
+
+    // Returns the start of a jpeg with an EXIF holding the orientation in
+    // IFD0 and, if withThumbnail is set, a thumbnail in IFD1.
+    private static byte[] createExifJpeg(boolean littleEndian,
+            boolean withThumbnail) {
+        ByteBuffer b = ByteBuffer.allocate(74);
+        b.order(littleEndian ? ByteOrder.LITTLE_ENDIAN
+                : ByteOrder.BIG_ENDIAN);
+        // SOI, then APP1 with the EXIF header.
+        b.put(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1});
+        b.put((byte) 0).put((byte) 68);
+        b.put(new byte[] {'E', 'x', 'i', 'f', 0, 0});
+        // The TIFF header, at 12.
+        int tiff = b.position();
+        b.put(littleEndian ? new byte[] {'I', 'I'} : new byte[] {'M', 'M'});
+        b.putShort((short) 42).putInt(8);
+        // IFD0 with the orientation, then the offset of IFD1.
+        b.putShort((short) 1);
+        b.putShort((short) 0x0112).putShort((short) 3).putInt(1);
+        b.putShort((short) 6).putShort((short) 0);
+        b.putInt(withThumbnail ? 26 : 0);
+        // IFD1 with the offset and the length of the thumbnail.
+        b.putShort((short) 2);
+        b.putShort((short) 0x0201).putShort((short) 4).putInt(1);
+        b.putInt(THUMBNAIL_OFFSET - tiff);
+        b.putShort((short) 0x0202).putShort((short) 4).putInt(1);
+        b.putInt(THUMBNAIL_LENGTH);
+        b.putInt(0);
+        // The thumbnail.
+        b.put(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9});
+        // SOS of the image.
+        b.put(new byte[] {(byte) 0xFF, (byte) 0xDA});
+        return b.array();
+    }
+
     private void assertEquals(int expected[], float[] actual) {
         for (int i = 0; i < expected.length; i++) {
             assertEquals("Array index " + i + " mismatch", expected[i], Math.round(actual[i]));
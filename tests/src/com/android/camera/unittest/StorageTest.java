@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ti.omap.android.camera.unittest;
+
+import com.ti.omap.android.camera.Storage;
+import com.ti.omap.android.camera.StorageWriter;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Images.ImageColumns;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class StorageTest extends AndroidTestCase {
+    private static final String TAG = "StorageTest";
+
+    private static final int BURST_SIZE = 20;
+    private static final int BATCH_SIZE = 8;
+    private static final int IMAGE_SIZE = 1024 * 1024;
+
+    // A stand-in for MediaProvider which keeps the images in a database
+    // file, so each transaction costs about what it costs in MediaProvider.
+    private static class ImageProvider extends ContentProvider {
+        private static final String TABLE = "images";
+
+        private SQLiteDatabase mDatabase;
+
+        @Override
+        public boolean onCreate() {
+            File file = getContext().getDatabasePath("storage_test.db");
+            file.getParentFile().mkdirs();
+            file.delete();
+            mDatabase = SQLiteDatabase.openOrCreateDatabase(file, null);
+            mDatabase.execSQL("CREATE TABLE " + TABLE + " ("
+                    + ImageColumns._ID + " INTEGER PRIMARY KEY,"
+                    + ImageColumns.TITLE + " TEXT,"
+                    + ImageColumns.DISPLAY_NAME + " TEXT,"
+                    + ImageColumns.MIME_TYPE + " TEXT,"
+                    + ImageColumns.DATE_TAKEN + " INTEGER,"
+                    + ImageColumns.DATA + " TEXT,"
+                    + ImageColumns.ORIENTATION + " INTEGER,"
+                    + ImageColumns.SIZE + " INTEGER,"
+                    + ImageColumns.WIDTH + " INTEGER,"
+                    + ImageColumns.HEIGHT + " INTEGER,"
+                    + ImageColumns.LATITUDE + " DOUBLE,"
+                    + ImageColumns.LONGITUDE + " DOUBLE)");
+            return true;
+        }
+
+        public void close() {
+            mDatabase.close();
+        }
+
+        // Applies the batch in one transaction, like MediaProvider does.
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            mDatabase.beginTransaction();
+            try {
+                ContentProviderResult[] results = super.applyBatch(operations);
+                mDatabase.setTransactionSuccessful();
+                return results;
+            } finally {
+                mDatabase.endTransaction();
+            }
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            long id = mDatabase.insert(TABLE, null, values);
+            return id < 0 ? null : ContentUris.withAppendedId(uri, id);
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return mDatabase.update(TABLE, values, ImageColumns._ID + "=?",
+                    new String[] {uri.getLastPathSegment()});
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mDatabase.delete(TABLE, ImageColumns._ID + "=?",
+                    new String[] {uri.getLastPathSegment()});
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return mDatabase.query(TABLE, projection, selection, selectionArgs,
+                    null, null, sortOrder);
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+    }
+
+    private ImageProvider mProvider;
+    private MockContentResolver mResolver;
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new ImageProvider();
+        mProvider.attachInfo(getContext(), null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(MediaStore.AUTHORITY, mProvider);
+        mDirectory = new File(getContext().getCacheDir(), TAG);
+        mDirectory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.close();
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private int countImages() {
+        Cursor cursor = mProvider.query(Images.Media.EXTERNAL_CONTENT_URI,
+                null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @SmallTest
+    public void testStorageWriter() throws IOException {
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        File file = new File(mDirectory, "a.jpg");
+        File missing = new File(new File(mDirectory, "missing"), "b.jpg");
+
+        StorageWriter writer = new StorageWriter(true);
+        assertTrue(writer.write(file.getPath(), data));
+        assertFalse(writer.write(missing.getPath(), data));
+        // The file gets its name only when it is complete.
+        assertFalse(file.exists());
+        boolean[] result = writer.flush();
+        assertTrue(Arrays.equals(new boolean[] {true, false}, result));
+        assertEquals(data.length, file.length());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals(0, writer.flush().length);
+    }
+
+    @SmallTest
+    public void testApplyImageOperations() {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < 3; i++) {
+            operations.add(Storage.newImageOperation(null, "IMG_" + i, 1000 + i,
+                    null, 90, 100 + i, 640, 480));
+        }
+        ContentProviderResult[] results =
+                Storage.applyImageOperations(mResolver, operations);
+        assertEquals(3, results.length);
+        assertEquals(3, countImages());
+
+        // Update the second image.
+        Uri uri = results[1].uri;
+        operations.clear();
+        operations.add(Storage.newImageOperation(uri, "IMG_X", 0, null, 0,
+                5000, 480, 640));
+        results = Storage.applyImageOperations(mResolver, operations);
+        assertEquals(1, (int) results[0].count);
+        assertEquals(3, countImages());
+
+        Cursor cursor = mProvider.query(uri, new String[] {ImageColumns.TITLE,
+                ImageColumns.SIZE, ImageColumns.DATE_TAKEN, ImageColumns.DATA},
+                ImageColumns._ID + "=" + ContentUris.parseId(uri), null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("IMG_X", cursor.getString(0));
+            assertEquals(5000, cursor.getInt(1));
+            // An update keeps the date and the path of the insert.
+            assertEquals(1001, cursor.getLong(2));
+            assertEquals(Storage.generateFilepath("IMG_1"), cursor.getString(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Compares saving a burst one image at a time, the way the images were
+    // saved before StorageWriter and the batched MediaStore operations, with
+    // saving it in batches.
+    @LargeTest
+    public void testBurstBenchmark() throws IOException {
+        byte[][] images = new byte[BURST_SIZE][IMAGE_SIZE];
+        Random random = new Random(1);
+        for (byte[] image : images) {
+            random.nextBytes(image);
+        }
+
+        long start = SystemClock.uptimeMillis();
+        for (int i = 0; i < BURST_SIZE; i++) {
+            String title = "SINGLE_" + i;
+            Uri uri = Storage.newImage(mResolver, title, i, 640, 480);
+            writeWithStream(new File(mDirectory, title + ".jpg"), images[i]);
+            assertTrue(Storage.updateImageInfo(mResolver, uri, title, null, 0,
+                    IMAGE_SIZE, 640, 480));
+        }
+        long single = SystemClock.uptimeMillis() - start;
+
+        start = SystemClock.uptimeMillis();
+        StorageWriter writer = new StorageWriter(false);
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < BURST_SIZE; i++) {
+            String title = "BATCH_" + i;
+            writer.write(new File(mDirectory, title + ".jpg").getPath(), images[i]);
+            operations.add(Storage.newImageOperation(null, title, i, null, 0,
+                    IMAGE_SIZE, 640, 480));
+            if (operations.size() == BATCH_SIZE || i == BURST_SIZE - 1) {
+                for (boolean ok : writer.flush()) {
+                    assertTrue(ok);
+                }
+                assertNotNull(Storage.applyImageOperations(mResolver, operations));
+                operations.clear();
+            }
+        }
+        long batched = SystemClock.uptimeMillis() - start;
+
+        assertEquals(BURST_SIZE * 2, countImages());
+        Log.v(TAG, BURST_SIZE + " images: one at a time "
+                + BURST_SIZE * 1000f / Math.max(single, 1)
+                + " images/s, in batches of " + BATCH_SIZE + " "
+                + BURST_SIZE * 1000f / Math.max(batched, 1) + " images/s");
+    }
+
+    private static void writeWithStream(File file, byte[] data)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        assertTrue(tmp.renameTo(file));
+    }
+}